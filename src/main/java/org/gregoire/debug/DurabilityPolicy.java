@@ -0,0 +1,23 @@
+package org.gregoire.debug;
+
+/**
+ * How often the fragments written to a recording are forced to stable storage.
+ *
+ * @author Paul Gregoire
+ */
+public enum DurabilityPolicy {
+
+    /**
+     * Leave it to the operating system; fragments may be lost on power failure.
+     */
+    NONE,
+    /**
+     * Force as soon as possible after each fragment, coalesced with any other writers on the same file system.
+     */
+    PER_FRAGMENT,
+    /**
+     * Force at most once per configured interval, bounding the loss to that interval.
+     */
+    INTERVAL;
+
+}
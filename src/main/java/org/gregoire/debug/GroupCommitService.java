@@ -0,0 +1,238 @@
+package org.gregoire.debug;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Forces recordings to stable storage in groups. Each file system gets one committer thread which, per round, forces
+ * every registered channel that has unforced fragments and is due according to its policy. Many fragments from many
+ * writers are covered by one force per file per round and the rounds are spaced by a minimum interval, so the number of
+ * syncs stays fixed no matter how many fragments are written.
+ *
+ * @author Paul Gregoire
+ */
+public class GroupCommitService {
+
+    private static Logger log = LoggerFactory.getLogger(GroupCommitService.class);
+
+    private static final GroupCommitService instance = new GroupCommitService();
+
+    // committers keyed by file store
+    private final ConcurrentHashMap<Object, Committer> committers = new ConcurrentHashMap<>();
+
+    // minimum time between rounds on a file system
+    private volatile long minCommitInterval = 10L;
+
+    private final AtomicLong forceCount = new AtomicLong();
+
+    public static GroupCommitService getInstance() {
+        return instance;
+    }
+
+    /**
+     * Registers a channel for group commits.
+     *
+     * @param path path of the file, used to find its file system
+     * @param channel channel to force
+     * @param policy durability policy
+     * @param interval interval in milliseconds for the INTERVAL policy
+     * @return registration used to report written fragments
+     */
+    public Registration register(Path path, FileChannel channel, DurabilityPolicy policy, long interval) {
+        Object storeKey;
+        try {
+            FileStore store = Files.getFileStore(path.toAbsolutePath().getParent());
+            storeKey = store;
+        } catch (IOException e) {
+            log.debug("File store lookup failed for {}, grouping by root", path, e);
+            storeKey = path.toAbsolutePath().getRoot();
+        }
+        Committer committer = committers.computeIfAbsent(storeKey, Committer::new);
+        Registration registration = new Registration(committer, channel, policy, interval);
+        if (policy != DurabilityPolicy.NONE) {
+            committer.registrations.add(registration);
+        }
+        return registration;
+    }
+
+    /**
+     * Returns the number of forces performed, across all file systems.
+     *
+     * @return force count
+     */
+    public long getForceCount() {
+        return forceCount.get();
+    }
+
+    public long getMinCommitInterval() {
+        return minCommitInterval;
+    }
+
+    public void setMinCommitInterval(long minCommitInterval) {
+        this.minCommitInterval = minCommitInterval;
+    }
+
+    /**
+     * A writer's registration; tracks the last written and the last durable fragment.
+     */
+    public class Registration {
+
+        private final Committer committer;
+
+        private final FileChannel channel;
+
+        private final DurabilityPolicy policy;
+
+        private final long intervalNanos;
+
+        private volatile long lastWritten = -1L;
+
+        private volatile long lastDurable = -1L;
+
+        private volatile long lastForced = System.nanoTime();
+
+        Registration(Committer committer, FileChannel channel, DurabilityPolicy policy, long interval) {
+            this.committer = committer;
+            this.channel = channel;
+            this.policy = policy;
+            this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(interval);
+        }
+
+        /**
+         * Reports a fragment as written to the channel.
+         *
+         * @param sequenceNumber fragment sequence number
+         */
+        public void fragmentWritten(long sequenceNumber) {
+            lastWritten = sequenceNumber;
+            if (policy == DurabilityPolicy.PER_FRAGMENT) {
+                committer.wakeup();
+            }
+        }
+
+        /**
+         * Returns the sequence number of the last fragment known to be on stable storage.
+         *
+         * @return sequence number or -1 if none
+         */
+        public long getLastDurableFragment() {
+            return lastDurable;
+        }
+
+        public DurabilityPolicy getPolicy() {
+            return policy;
+        }
+
+        boolean isDue(long now) {
+            if (lastWritten == lastDurable) {
+                return false;
+            }
+            return policy == DurabilityPolicy.PER_FRAGMENT || now - lastForced >= intervalNanos;
+        }
+
+        long nextDue() {
+            return policy == DurabilityPolicy.PER_FRAGMENT ? 0L : lastForced + intervalNanos;
+        }
+
+        /**
+         * Forces the channel, unless it has nothing new.
+         */
+        synchronized void force() throws IOException {
+            long written = lastWritten;
+            if (written != lastDurable) {
+                channel.force(false);
+                forceCount.incrementAndGet();
+                lastDurable = written;
+            }
+            lastForced = System.nanoTime();
+        }
+
+        /**
+         * Removes the registration; unless the policy is NONE, everything written is forced first.
+         */
+        public void close() {
+            if (committer.registrations.remove(this)) {
+                try {
+                    force();
+                } catch (IOException e) {
+                    log.warn("Exception forcing channel at close", e);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Commit thread for a single file system.
+     */
+    private class Committer implements Runnable {
+
+        private final CopyOnWriteArrayList<Registration> registrations = new CopyOnWriteArrayList<>();
+
+        private boolean signalled;
+
+        Committer(Object storeKey) {
+            Thread thread = new Thread(this, "GroupCommit-" + storeKey);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        synchronized void wakeup() {
+            signalled = true;
+            notify();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    synchronized (this) {
+                        // sleep until signalled or the nearest interval registration is due
+                        long now = System.nanoTime(), wait = Long.MAX_VALUE;
+                        for (Registration registration : registrations) {
+                            if (registration.lastWritten != registration.lastDurable) {
+                                wait = Math.min(wait, registration.nextDue() - now);
+                            }
+                        }
+                        if (!signalled && wait > 0L) {
+                            long millis = wait == Long.MAX_VALUE ? 1000L : Math.max(1L, TimeUnit.NANOSECONDS.toMillis(wait));
+                            wait(millis);
+                        }
+                        signalled = false;
+                    }
+                    // force outside of the lock so the writers reporting fragments never wait on the disk
+                    long now = System.nanoTime();
+                    for (Registration registration : registrations) {
+                        if (registration.isDue(now)) {
+                            try {
+                                registration.force();
+                            } catch (ClosedChannelException e) {
+                                registrations.remove(registration);
+                            } catch (IOException e) {
+                                log.warn("Exception forcing channel", e);
+                            }
+                        }
+                    }
+                    // space the rounds so a burst of fragments shares a single force
+                    Thread.sleep(minCommitInterval);
+                } catch (InterruptedException e) {
+                    log.debug("Committer interrupted");
+                    return;
+                }
+            }
+        }
+
+    }
+
+}
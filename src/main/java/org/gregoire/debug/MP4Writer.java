@@ -3,25 +3,45 @@ package org.gregoire.debug;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.mina.core.buffer.IoBuffer;
 import org.bouncycastle.util.encoders.Hex;
 import org.mp4parser.streaming.StreamingTrack;
+import org.mp4parser.streaming.input.PayloadStore;
 import org.mp4parser.streaming.input.aac.AACStreamingTrack;
 import org.mp4parser.streaming.input.h264.AnnexBStreamingTrack;
-import org.mp4parser.streaming.output.mp4.FragmentedMp4Writer;
+import org.mp4parser.streaming.jfr.StreamingEvents;
+import org.mp4parser.streaming.jfr.TagEvent;
+import org.mp4parser.streaming.output.mp4.CommonEncryption;
+import org.mp4parser.streaming.output.mp4.MultiTrackFragmentedMp4Writer;
+import org.mp4parser.streaming.output.mp4.MultiTrackFragmentedMp4Writer.LagPolicy;
+import org.mp4parser.streaming.output.mp4.SegmentCache;
+import org.mp4parser.streaming.output.mp4.TimeShiftBuffer;
 import org.red5.codec.AudioCodec;
 import org.red5.codec.VideoCodec;
 import org.red5.io.IStreamableFile;
@@ -49,9 +69,39 @@ public class MP4Writer implements ITagWriter {
             "SVC Coded slice of an auxiliary coded picture without partitioning 19", "Coded slice extension 20", "Coded slice extension for depth view components 21", "Reserved 22", "Reserved 23", "STAP-A 24", "STAP-B 25", "Unspecified 26", "Unspecified 27", "FUA 28", "Unspecified 29", "SVC PACSI 30", "NI-MTAP 31" };
 
     /**
-     * Executor service for tasks within this MP4Writer. Each writer manages its own futures.
+     * Executor service for tasks within this MP4Writer. Each writer manages its own futures; a pooled writer keeps its
+     * threads between streams.
      */
-    private ExecutorService executor = Executors.newFixedThreadPool(2);
+    private ThreadPoolExecutor executor = newExecutor();
+
+    /**
+     * Timer shared by all writers for close timeouts.
+     */
+    private final static ScheduledExecutorService closeTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "MP4Writer-close-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Writes the remaining fragments and closes the files once the tracks are done, shared by all writers; neither a
+     * track thread, which may be stuck, nor the close timer is held up with it.
+     */
+    private final static ExecutorService closeExecutor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "MP4Writer-close");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Closes the files left behind by a rollover and runs their post processors, and those of pooled writers, shared by
+     * all writers.
+     */
+    private final static ExecutorService rolloverExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "MP4Writer-rollover");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     /**
      * MP4 object
@@ -88,13 +138,25 @@ public class MP4Writer implements ITagWriter {
      */
     private AtomicBoolean videoConfigWritten = new AtomicBoolean(false);
 
-    // Path to the output file
-    private Path filePath;
+    // Path to the output file, replaced on rollover
+    private volatile Path filePath;
+
+    // Path the writer was created or reset with, the rolled over files are named after it
+    private volatile Path basePath;
+
+    // id of the stream in the flight recorder events, the path it was bound with
+    private volatile String streamId;
+
+    // pool the writer goes back to once closed, null if not pooled
+    private final MP4WriterPool pool;
 
     private AACStreamingTrack aacTrack;
 
     private AnnexBStreamingTrack h264Track;
 
+    // measured from the tags as they are parsed
+    private final StreamHealth streamHealth = new StreamHealth();
+
     private int audioSampleRate = 44100;
 
     /*
@@ -140,12 +202,137 @@ public class MP4Writer implements ITagWriter {
 
     private FileOutputStream fos;
 
-    private WritableByteChannel dataChannel;
+    private volatile WritableByteChannel dataChannel;
+
+    /**
+     * Rolls the recording over to a new file past this many bytes or milliseconds of media, zero or less for no limit
+     */
+    private volatile long rolloverBytes, rolloverDuration;
+
+    // number of the last file rolled over to by a limit
+    private int rolloverIndex;
+
+    // file and channel of a rollover waiting for the next key frame fragment
+    private volatile Path pendingPath;
+
+    private FileChannel pendingChannel;
+
+    private MultiTrackFragmentedMp4Writer multiTrackFragmentedMp4Writer;
+
+    /**
+     * Fragment writers for the file and any additional outputs
+     */
+    private CopyOnWriteArrayList<MultiTrackFragmentedMp4Writer> fragmentWriters = new CopyOnWriteArrayList<>();
+
+    /**
+     * Milliseconds of media time a track may lag before the other tracks' fragments are written without waiting for it
+     */
+    private long interleaveWindow;
+
+    private LagPolicy lagPolicy = LagPolicy.WAIT;
+
+    /**
+     * Off-heap store holding the samples until their fragments are written, null to keep them on the heap
+     */
+    private PayloadStore payloadStore;
+
+    /**
+     * How often the recording is forced to stable storage
+     */
+    private DurabilityPolicy durabilityPolicy = DurabilityPolicy.NONE;
+
+    private long durabilityInterval;
+
+    private GroupCommitService.Registration durability;
+
+    /**
+     * Whether video samples are timed by the FLV composition time and frame type, bypassing the reordering
+     */
+    private volatile boolean flvTiming;
+
+    // avc3, the parameter sets stay in the video samples
+    private boolean inBandParameterSets;
+
+    // set on the caller's thread once a tag is taken, from then on the settings for the whole stream are fixed
+    private volatile boolean mediaWritten;
+
+    /**
+     * Milliseconds of tag time a track may go without media from the start of the stream before it is left out of the
+     * file, so an audio-only or video-only stream doesn't wait on the missing track
+     */
+    private long trackProbeWindow = 5000L;
+
+    // timestamp of the first media tag and which tracks have had media since, until the track set is decided
+    private int firstMediaTimestamp = -1;
+
+    private boolean audioSeen, videoSeen, tracksProbed;
+
+    /**
+     * Filters the nal units before they reach the video track, null to forward all of them
+     */
+    private NalFilter nalFilter;
+
+    /**
+     * Keeps the init segment and latest GOP of the file output for late joiners, null when not enabled
+     */
+    private SegmentCache segmentCache;
+
+    /**
+     * Keeps the fragments of the last few minutes for rewinding, null for none
+     */
+    private TimeShiftBuffer timeShiftBuffer;
+
+    /**
+     * Common encryption of all outputs, null for clear output
+     */
+    private CommonEncryption encryption;
+
+    /**
+     * Account charged with the media this writer buffers
+     */
+    private MemoryAccountant.Account memoryAccount;
+
+    /**
+     * Whether the fragment writers are dropping disposable frames to shed memory
+     */
+    private boolean droppingDisposable;
+
+    // time of the last flush forced by memory pressure
+    private long lastPressureFlush;
+
+    // minimum time between flushes forced by memory pressure, so the fragments don't shrink to single frames
+    private static final long PRESSURE_FLUSH_INTERVAL = 1000L;
 
-    private FragmentedMp4Writer multiTrackFragmentedMp4Writer;
+    /**
+     * Publishes the samples from our tracks to the fragment writer and any additional outputs
+     */
+    private SampleFanOut sampleFanOut = new SampleFanOut();
+
+    /**
+     * Channels opened for additional outputs, closed along with the file
+     */
+    private CopyOnWriteArrayList<WritableByteChannel> outputChannels = new CopyOnWriteArrayList<>();
 
     private CopyOnWriteArrayList<Future<?>> futures = new CopyOnWriteArrayList<>();
 
+    /**
+     * Completed as each of the tracks exits, used to close without blocking
+     */
+    private CopyOnWriteArrayList<CompletableFuture<Void>> trackCompletions = new CopyOnWriteArrayList<>();
+
+    /**
+     * Set when close is first requested
+     */
+    private final AtomicReference<CompletableFuture<Void>> closeFuture = new AtomicReference<>();
+
+    // set once close has released the files
+    private volatile boolean finished;
+
+    /**
+     * Post processors to run once the file has been closed
+     */
+    private CopyOnWriteArrayList<IPostProcessor> postProcessors = new CopyOnWriteArrayList<>();
+
     // used to signal the end of data
     public final static byte[] DATA_END_MARKER = new byte[0];
 
@@ -185,34 +372,224 @@ public class MP4Writer implements ITagWriter {
      */
     public MP4Writer(Path path, boolean append) {
         log.debug("Writing to: {}", path);
-        filePath = path;
         if (append) {
             // XXX at some later point we could use a post-proc to concatenate mp4's
             throw new UnsupportedOperationException("MP4 append not supported");
         }
-        log.debug("Writing to: {} {}", filePath, mp4);
+        pool = null;
+        createTracks();
+        // rejects the writer when the node has no memory to spare
+        memoryAccount = MemoryAccountant.getInstance().open(path.toString());
         try {
-            // instance streaming tracks for a/v
-            h264Track = new AnnexBStreamingTrack();
-            // since our vui params are bogus, we'll force 25fps for now 
-            h264Track.setFrametick(videoFrametick);
-            h264Track.setTimescale(videoTimescale);
-            // assuming / expecting non 'fixed_frame_rate_flag' style media
-            fps = videoTimescale / videoFrametick;
-            aacTrack = new AACStreamingTrack(avgAudioBitrate, maxAudioBitrate);
-            // create file output and its channel for the fragment writer
-            fos = new FileOutputStream(filePath.toFile());
-            dataChannel = fos.getChannel();
-            // write moof and mdat boxes
-            multiTrackFragmentedMp4Writer = new FragmentedMp4Writer(Arrays.<StreamingTrack> asList(h264Track, aacTrack), dataChannel);
-            // submit (streaming tracks) and keep references of our futures
-            futures.add(executor.submit(h264Track));
-            futures.add(executor.submit(aacTrack));
+            bind(path);
         } catch (Exception e) {
             log.error("Failed to create MP4 writer", e);
         }
     }
 
+    /**
+     * Creates an unbound writer for a pool, with its tracks built and its threads started; {@link #reset(Path)} binds
+     * it to a file.
+     * 
+     * @param pool pool the writer returns to once closed
+     */
+    MP4Writer(MP4WriterPool pool) {
+        this.pool = pool;
+        createTracks();
+        executor.prestartAllCoreThreads();
+    }
+
+    private static ThreadPoolExecutor newExecutor() {
+        return new ThreadPoolExecutor(2, 2, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+    }
+
+    /**
+     * Instances the streaming tracks for a/v.
+     */
+    private void createTracks() {
+        h264Track = new AnnexBStreamingTrack();
+        aacTrack = new AACStreamingTrack(avgAudioBitrate, maxAudioBitrate);
+        configureTracks();
+    }
+
+    private void configureTracks() {
+        // since our vui params are bogus, we'll force 25fps for now 
+        h264Track.setFrametick(videoFrametick);
+        h264Track.setTimescale(videoTimescale);
+        // assuming / expecting non 'fixed_frame_rate_flag' style media
+        fps = videoTimescale / videoFrametick;
+        streamHealth.setExpectedFrameRate((double) videoTimescale / videoFrametick);
+        h264Track.setPayloadStore(payloadStore);
+        aacTrack.setPayloadStore(payloadStore);
+        h264Track.setInBandParameterSets(inBandParameterSets);
+    }
+
+    /**
+     * Opens the file and fragment writer for a stream and starts the tracks; the memory account is already open.
+     * 
+     * @param path file path
+     * @throws IOException
+     */
+    private void bind(Path path) throws IOException {
+        filePath = path;
+        basePath = path;
+        streamId = path.toString();
+        log.debug("Writing to: {} {}", filePath, mp4);
+        // create file output and its channel for the fragment writer
+        fos = new FileOutputStream(filePath.toFile());
+        dataChannel = fos.getChannel();
+        // write moof and mdat boxes
+        multiTrackFragmentedMp4Writer = new MultiTrackFragmentedMp4Writer(Arrays.<StreamingTrack> asList(h264Track, aacTrack), dataChannel);
+        multiTrackFragmentedMp4Writer.setInterleaveWindow(interleaveWindow, lagPolicy);
+        multiTrackFragmentedMp4Writer.setStreamId(streamId);
+        fragmentWriters.add(multiTrackFragmentedMp4Writer);
+        // report each fragment to the group commit service, when one is configured
+        multiTrackFragmentedMp4Writer.addFragmentListener((sequenceNumber, position) -> {
+            GroupCommitService.Registration registration = durability;
+            if (registration != null) {
+                registration.fragmentWritten(sequenceNumber);
+            }
+            checkRolloverLimits();
+        });
+        multiTrackFragmentedMp4Writer.addRolloverListener(this::rolledOver);
+        // the tracks parse once and publish to all outputs via the fan-out
+        sampleFanOut.addOutput(multiTrackFragmentedMp4Writer);
+        h264Track.setSampleSink(sampleFanOut);
+        aacTrack.setSampleSink(sampleFanOut);
+        h264Track.setStreamId(streamId);
+        aacTrack.setStreamId(streamId);
+        // submit (streaming tracks) and keep references of our futures
+        submitTrack(h264Track);
+        submitTrack(aacTrack);
+    }
+
+    /**
+     * Readies a closed or unbound writer for another stream written to the given file, reusing its threads, tracks and
+     * buffers. Everything learned from the previous stream and every setting is cleared, ie. the parameter sets, reorder
+     * buffers, configs, counters, outputs, post processors and limits, and the writer is bound to the new file. A writer
+     * must not be used through references kept from before the reset.
+     * 
+     * @param path file path
+     * @throws IOException if the file cannot be created
+     * @throws IllegalStateException if the writer is in use or still closing
+     */
+    public void reset(Path path) throws IOException {
+        CompletableFuture<Void> closed = closeFuture.get();
+        if (closed == null ? dataChannel != null : !finished) {
+            throw new IllegalStateException("Writer is in use or still closing");
+        }
+        if (executor.isShutdown()) {
+            // a writer which isn't pooled gives its threads up at close
+            executor = newExecutor();
+        }
+        if (memoryAccount != null) {
+            // left open by a failed bind
+            memoryAccount.close();
+        }
+        clearStreamState();
+        h264Track.reset();
+        aacTrack.reset();
+        configureTracks();
+        memoryAccount = MemoryAccountant.getInstance().open(path.toString());
+        try {
+            bind(path);
+        } catch (IOException | RuntimeException e) {
+            // leave the writer unbound, so it may be reset again
+            memoryAccount.close();
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException ce) {
+                }
+            }
+            dataChannel = null;
+            throw e;
+        }
+        finished = false;
+        closeFuture.set(null);
+    }
+
+    /**
+     * Restores the per stream state and the settings to their defaults.
+     */
+    private void clearStreamState() {
+        mediaWritten = false;
+        bytesWritten = 0L;
+        offset = 0;
+        audioCodecId = -1;
+        videoCodecId = -1;
+        audioConfigWritten.set(false);
+        videoConfigWritten.set(false);
+        audioSampleRate = 44100;
+        audioChannels = 1;
+        aacProfile = 2;
+        aacFrequencyIndex = -1;
+        avgAudioBitrate = 48000;
+        maxAudioBitrate = 128000;
+        videoTimescale = 90000;
+        videoFrametick = 3600;
+        streamHealth.reset();
+        fos = null;
+        dataChannel = null;
+        rolloverBytes = 0L;
+        rolloverDuration = 0L;
+        rolloverIndex = 0;
+        pendingPath = null;
+        pendingChannel = null;
+        multiTrackFragmentedMp4Writer = null;
+        fragmentWriters.clear();
+        interleaveWindow = 0L;
+        lagPolicy = LagPolicy.WAIT;
+        payloadStore = null;
+        durabilityPolicy = DurabilityPolicy.NONE;
+        durabilityInterval = 0L;
+        durability = null;
+        flvTiming = false;
+        inBandParameterSets = false;
+        trackProbeWindow = 5000L;
+        firstMediaTimestamp = -1;
+        audioSeen = false;
+        videoSeen = false;
+        tracksProbed = false;
+        nalFilter = null;
+        segmentCache = null;
+        timeShiftBuffer = null;
+        encryption = null;
+        droppingDisposable = false;
+        lastPressureFlush = 0L;
+        sampleFanOut = new SampleFanOut();
+        outputChannels.clear();
+        futures.clear();
+        trackCompletions.clear();
+        postProcessors.clear();
+    }
+
+    /**
+     * Releases the threads of a writer which won't be reused.
+     */
+    void destroy() {
+        executor.shutdown();
+    }
+
+    /**
+     * Submits a track to the executor, tracking its completion so close can proceed without polling.
+     * 
+     * @param track
+     */
+    private void submitTrack(Callable<Void> track) {
+        CompletableFuture<Void> completion = new CompletableFuture<>();
+        trackCompletions.add(completion);
+        futures.add(executor.submit(() -> {
+            try {
+                track.call();
+                completion.complete(null);
+            } catch (Throwable t) {
+                completion.completeExceptionally(t);
+            }
+            return null;
+        }));
+    }
+
     @Override
     public void writeHeader() throws IOException {
         // no-op
@@ -233,6 +610,96 @@ public class MP4Writer implements ITagWriter {
     @Override
     public boolean writeTag(ITag tag) throws IOException {
         log.trace("writeTag: {}", tag);
+        checkOpen();
+        applyMemoryPressure();
+        return ingestTag(tag, null);
+    }
+
+    /**
+     * Writes a batch of tags, such as those of an aggregate message. The tags are parsed in order and their nals and
+     * frames handed to each track in one go, so the checks, queueing and wakeups are paid once per batch rather than
+     * once per tag.
+     * 
+     * @param tags tags in decode order
+     * @return number of tags accepted
+     * @throws IOException if the writer is closed
+     */
+    public int writeTags(Iterable<? extends ITag> tags) throws IOException {
+        checkOpen();
+        applyMemoryPressure();
+        TagBatch batch = new TagBatch();
+        int accepted = 0;
+        try {
+            for (ITag tag : tags) {
+                if (ingestTag(tag, batch)) {
+                    accepted++;
+                }
+            }
+        } finally {
+            // whatever was parsed before a failure is still queued, in order
+            h264Track.add(batch.video);
+            aacTrack.addAll(batch.audio);
+        }
+        return accepted;
+    }
+
+    /**
+     * Throws if the channel is closed or the writer is closing.
+     */
+    private void checkOpen() throws IOException {
+        if (dataChannel == null || !dataChannel.isOpen() || closeFuture.get() != null) {
+            // throw an exception and let them know the cause
+            throw new IOException("MP4 write channel has been closed", new ClosedChannelException());
+        }
+    }
+
+    /**
+     * Parses a tag, timed by a flight recorder event when recorded.
+     */
+    private boolean ingestTag(ITag tag, TagBatch batch) throws IOException {
+        TagEvent event = StreamingEvents.beginTag();
+        boolean accepted = parseTag(tag, batch);
+        if (accepted && !mediaWritten) {
+            mediaWritten = true;
+        }
+        StreamingEvents.endTag(event, streamId, tag.getDataType(), tag.getTimestamp(), tag.getBodySize(), accepted);
+        if (!tracksProbed && accepted) {
+            probeTracks(tag.getTimestamp());
+        }
+        return accepted;
+    }
+
+    /**
+     * Decides the track set once both tracks have had media or, when only one has, once the probe window has passed
+     * since the first media tag; the missing track is then left out of the files. Decided here from the tags as they
+     * arrive, rather than in the fragment writers, where the track threads may run well apart on a fast ingest.
+     */
+    private void probeTracks(int timestamp) throws IOException {
+        if (audioSeen && videoSeen) {
+            tracksProbed = true;
+        } else if (audioSeen || videoSeen) {
+            if (firstMediaTimestamp < 0) {
+                firstMediaTimestamp = timestamp;
+            } else if (trackProbeWindow > 0L && timestamp - firstMediaTimestamp >= trackProbeWindow) {
+                tracksProbed = true;
+                StreamingTrack absent = audioSeen ? h264Track : aacTrack;
+                log.info("No {} within {}ms, writing {} only", audioSeen ? "video" : "audio", trackProbeWindow, audioSeen ? "audio" : "video");
+                for (MultiTrackFragmentedMp4Writer writer : fragmentWriters) {
+                    writer.leaveOut(absent);
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses a tag and queues its nals or frames for the tracks, or adds them to the batch.
+     * 
+     * @param tag tag
+     * @param batch batch or null to queue them straight away
+     * @return true if the tag was accepted
+     * @throws IOException
+     */
+    private boolean parseTag(ITag tag, TagBatch batch) throws IOException {
         long prevBytesWritten = bytesWritten;
         log.trace("Previous bytes written: {}", prevBytesWritten);
         // skip tags with no data
@@ -240,145 +707,563 @@ public class MP4Writer implements ITagWriter {
         if (isTrace) {
             log.trace("Tag body size: {}", bodySize);
         }
-        // ensure that the channel is still open
-        if (dataChannel != null && dataChannel.isOpen()) {
-            // get the data type
-            byte dataType = tag.getDataType();
-            // when tag is ImmutableTag which is in red5-server-common.jar, tag.getBody().reset() will throw InvalidMarkException because 
-            // ImmutableTag.getBody() returns a new IoBuffer instance every time.
-            IoBuffer tagBody = tag.getBody();
-            if (isTrace) {
-                log.trace("Tag body: {}", Hex.toHexString(tagBody.array()));
-            }
-            if (bodySize > 0) {
-                byte[] data;
-                // get the audio or video codec identifier
-                if (dataType == ITag.TYPE_AUDIO) {
-                    int id = tagBody.get() & 0xff; // must be unsigned
-                    audioCodecId = (id & ITag.MASK_SOUND_FORMAT) >> 4;
-                    log.trace("Audio codec id: {}", audioCodecId);
-                    // if aac use defaults
-                    if (audioCodecId == AudioCodec.AAC.getId()) {
-                        log.trace("AAC audio type");
-                        // this is aac data, so a config chunk should be written before any media data
-                        if (tagBody.get() == 0) { // position 1
-                            // when this config is written set the flag
-                            audioConfigWritten.set(true);
-                            // pull-out in-line config data
-                            byte objAndFreq = tagBody.get();
-                            byte freqAndChannel = tagBody.get();
-                            aacProfile = ((objAndFreq & 0xFF) >> 3) & 0x1F;
-                            aacFrequencyIndex = (objAndFreq & 0x7) << 1 | (freqAndChannel >> 7) & 0x1;
-                            audioSampleRate = AACStreamingTrack.samplingFrequencyIndexMap.get(aacFrequencyIndex);
-                            audioChannels = (freqAndChannel & 0x78) >> 3;
-                            log.debug("AAC config - profile: {} freq: {} rate: {} channels: {}", new Object[] { aacProfile, aacFrequencyIndex, audioSampleRate, audioChannels });
-                            // return true, the aac streaming track impl doesnt like our af 00 configs
-                            return true;
-                        } else if (!audioConfigWritten.get()) {
-                            // reject packet since config hasnt been written yet
-                            log.debug("Rejecting AAC data since config has not yet been written");
-                            return false;
-                        }
-                    } else {
-                        log.debug("Rejecting non-AAC data");
+        // get the data type
+        byte dataType = tag.getDataType();
+        // when tag is ImmutableTag which is in red5-server-common.jar, tag.getBody().reset() will throw InvalidMarkException because 
+        // ImmutableTag.getBody() returns a new IoBuffer instance every time.
+        IoBuffer tagBody = tag.getBody();
+        if (isTrace) {
+            log.trace("Tag body: {}", Hex.toHexString(tagBody.array()));
+        }
+        if (bodySize > 0) {
+            byte[] data;
+            // get the audio or video codec identifier
+            if (dataType == ITag.TYPE_AUDIO) {
+                int id = tagBody.get() & 0xff; // must be unsigned
+                audioCodecId = (id & ITag.MASK_SOUND_FORMAT) >> 4;
+                log.trace("Audio codec id: {}", audioCodecId);
+                // if aac use defaults
+                if (audioCodecId == AudioCodec.AAC.getId()) {
+                    log.trace("AAC audio type");
+                    // this is aac data, so a config chunk should be written before any media data
+                    if (tagBody.get() == 0) { // position 1
+                        // when this config is written set the flag
+                        audioConfigWritten.set(true);
+                        // pull-out in-line config data
+                        byte objAndFreq = tagBody.get();
+                        byte freqAndChannel = tagBody.get();
+                        aacProfile = ((objAndFreq & 0xFF) >> 3) & 0x1F;
+                        aacFrequencyIndex = (objAndFreq & 0x7) << 1 | (freqAndChannel >> 7) & 0x1;
+                        audioSampleRate = AACStreamingTrack.samplingFrequencyIndexMap.get(aacFrequencyIndex);
+                        audioChannels = (freqAndChannel & 0x78) >> 3;
+                        log.debug("AAC config - profile: {} freq: {} rate: {} channels: {}", new Object[] { aacProfile, aacFrequencyIndex, audioSampleRate, audioChannels });
+                        // return true, the aac streaming track impl doesnt like our af 00 configs
+                        return true;
+                    } else if (!audioConfigWritten.get()) {
+                        // reject packet since config hasnt been written yet
+                        log.debug("Rejecting AAC data since config has not yet been written");
                         return false;
                     }
-                    // add ADTS header
-                    // ref https://wiki.multimedia.cx/index.php/ADTS
-                    data = new byte[bodySize + 5]; // (bodySize - 2) + 7 (no protection)
-                    if (aacFrequencyIndex == -1) {
-                        aacFrequencyIndex = AACStreamingTrack.samplingFrequencyIndexMap.get(audioSampleRate);
-                    }
-                    int finallength = data.length;
-                    data[0] = (byte) 0xff; // syncword 0xFFF, all bits must be 1
-                    data[1] = (byte) 0b11110001; // mpeg v0, layer 0, protection absent
-                    data[2] = (byte) (((aacProfile - 1) << 6) + (aacFrequencyIndex << 2) + (audioChannels >> 2));
-                    data[3] = (byte) (((audioChannels & 0x3) << 6) + (finallength >> 11));
-                    data[4] = (byte) ((finallength & 0x7ff) >> 3);
-                    data[5] = (byte) (((finallength & 7) << 5) + 0x1f);
-                    data[6] = (byte) 0xfc;
-                    // slice out what we want, skip af 01; offset to 7
-                    tagBody.get(data, 7, bodySize - 2);
-                    if (isTrace) {
-                        log.trace("ADTS body: {}", Hex.toHexString(data));
-                    }
-                    // write to audio out
+                } else {
+                    log.debug("Rejecting non-AAC data");
+                    return false;
+                }
+                // add ADTS header
+                // ref https://wiki.multimedia.cx/index.php/ADTS
+                data = new byte[bodySize + 5]; // (bodySize - 2) + 7 (no protection)
+                if (aacFrequencyIndex == -1) {
+                    aacFrequencyIndex = AACStreamingTrack.samplingFrequencyIndexMap.get(audioSampleRate);
+                }
+                int finallength = data.length;
+                data[0] = (byte) 0xff; // syncword 0xFFF, all bits must be 1
+                data[1] = (byte) 0b11110001; // mpeg v0, layer 0, protection absent
+                data[2] = (byte) (((aacProfile - 1) << 6) + (aacFrequencyIndex << 2) + (audioChannels >> 2));
+                data[3] = (byte) (((audioChannels & 0x3) << 6) + (finallength >> 11));
+                data[4] = (byte) ((finallength & 0x7ff) >> 3);
+                data[5] = (byte) (((finallength & 7) << 5) + 0x1f);
+                data[6] = (byte) 0xfc;
+                // slice out what we want, skip af 01; offset to 7
+                tagBody.get(data, 7, bodySize - 2);
+                if (isTrace) {
+                    log.trace("ADTS body: {}", Hex.toHexString(data));
+                }
+                // write to audio out
+                if (batch != null) {
+                    batch.audio.add(ByteBuffer.wrap(data));
+                } else {
                     aacTrack.add(data);
-                    // increment bytes written
-                    bytesWritten += data.length;
-                } else if (dataType == ITag.TYPE_VIDEO) {
-                    int id = tagBody.get() & 0xff; // must be unsigned
-                    videoCodecId = id & ITag.MASK_VIDEO_CODEC;
-                    log.trace("Video codec id: {}", videoCodecId);
-                    if (videoCodecId == VideoCodec.AVC.getId()) {
-                        // this is avc/h264 data, so a config chunk should be written before any media data
-                        if (tagBody.get() == 0) { // position 1
-                            log.debug("Config body: {}", tagBody);
-                            // move past bytes we dont care about
-                            tagBody.skip(9);
-                            int spsLength = ((tagBody.get() & 0xFF) << 8) | (tagBody.get() & 0xFF);
-                            byte[] sps = new byte[spsLength];
-                            tagBody.get(sps, 0, spsLength);
-                            // write sps
-                            if (isTrace) {
-                                log.trace("SPS - length: {} {}", spsLength, Hex.toHexString(sps));
+                }
+                streamHealth.audioFrame(tag.getTimestamp(), bodySize);
+                audioSeen = true;
+                // increment bytes written
+                bytesWritten += data.length;
+            } else if (dataType == ITag.TYPE_VIDEO) {
+                int id = tagBody.get() & 0xff; // must be unsigned
+                videoCodecId = id & ITag.MASK_VIDEO_CODEC;
+                log.trace("Video codec id: {}", videoCodecId);
+                if (videoCodecId == VideoCodec.AVC.getId()) {
+                    // this is avc/h264 data, so a config chunk should be written before any media data
+                    if (tagBody.get() == 0) { // position 1
+                        log.debug("Config body: {}", tagBody);
+                        // move past bytes we dont care about
+                        tagBody.skip(9);
+                        int spsLength = ((tagBody.get() & 0xFF) << 8) | (tagBody.get() & 0xFF);
+                        byte[] sps = new byte[spsLength];
+                        tagBody.get(sps, 0, spsLength);
+                        // write sps
+                        if (isTrace) {
+                            log.trace("SPS - length: {} {}", spsLength, Hex.toHexString(sps));
+                        }
+                        writeNal(sps, batch);
+                        tagBody.get(); // pps count
+                        int ppsLength = ((tagBody.get() & 0xFF) << 8) | (tagBody.get() & 0xFF);
+                        byte[] pps = new byte[ppsLength];
+                        tagBody.get(pps, 0, ppsLength);
+                        // write pps
+                        if (isTrace) {
+                            log.trace("PPS - length: {} {}", ppsLength, Hex.toHexString(pps));
+                        }
+                        writeNal(pps, batch);
+                        // when this config is written set the flag
+                        videoConfigWritten.set(true);
+                    } else if (!videoConfigWritten.get()) {
+                        // reject packet since config hasnt been written yet
+                        log.debug("Rejecting AVC data since config has not yet been written");
+                        return false;
+                    } else {
+                        // composition time offset in milliseconds, signed 24 bits
+                        int compositionTime = ((tagBody.get() & 0xFF) << 16) | ((tagBody.get() & 0xFF) << 8) | (tagBody.get() & 0xFF);
+                        compositionTime = (compositionTime << 8) >> 8;
+                        // frame type 1 is a key frame
+                        boolean keyFrame = (id >> 4) == 1;
+                        // with flv timing the tag's nals are queued as one frame
+                        List<ByteBuffer> frame = flvTiming ? new ArrayList<>() : null;
+                        // slice type of the first slice, for the stream health
+                        int sliceType = -1;
+                        // need at least the size of the frame, so 4 bytes minimum
+                        while (tagBody.remaining() >= 4) {
+                            // H264 data, size prepended
+                            int frameSize = (tagBody.get() & 0xFF);
+                            frameSize = frameSize << 8 | (tagBody.get() & 0xFF);
+                            frameSize = frameSize << 8 | (tagBody.get() & 0xFF);
+                            frameSize = frameSize << 8 | (tagBody.get() & 0xFF);
+                            if (isDebug) {
+                                log.debug("Frame size: {}", frameSize);
                             }
-                            writeNal(sps);
-                            tagBody.get(); // pps count
-                            int ppsLength = ((tagBody.get() & 0xFF) << 8) | (tagBody.get() & 0xFF);
-                            byte[] pps = new byte[ppsLength];
-                            tagBody.get(pps, 0, ppsLength);
-                            // write pps
-                            if (isTrace) {
-                                log.trace("PPS - length: {} {}", ppsLength, Hex.toHexString(pps));
+                            if (frameSize > tagBody.remaining()) {
+                                log.warn("Bad h264 frame...frameSize {} available: {}", frameSize, tagBody.remaining());
+                                return false;
                             }
-                            writeNal(pps);
-                            // when this config is written set the flag
-                            videoConfigWritten.set(true);
-                        } else if (!videoConfigWritten.get()) {
-                            // reject packet since config hasnt been written yet
-                            log.debug("Rejecting AVC data since config has not yet been written");
-                            return false;
-                        } else {
-                            // skip 3 bytes that we dont need
-                            tagBody.skip(3);
-                            // need at least the size of the frame, so 4 bytes minimum
-                            while (tagBody.remaining() >= 4) {
-                                // H264 data, size prepended
-                                int frameSize = (tagBody.get() & 0xFF);
-                                frameSize = frameSize << 8 | (tagBody.get() & 0xFF);
-                                frameSize = frameSize << 8 | (tagBody.get() & 0xFF);
-                                frameSize = frameSize << 8 | (tagBody.get() & 0xFF);
-                                log.debug("Frame size: {}", frameSize);
-                                if (frameSize > tagBody.remaining()) {
-                                    log.warn("Bad h264 frame...frameSize {} available: {}", frameSize, tagBody.remaining());
-                                    return false;
-                                }
-                                // get the frame
-                                data = new byte[frameSize];
-                                //log.debug("Data length: {}", data.length);
-                                //log.trace("Position: {} remaining: {} {}", tagBody.position(), tagBody.remaining(), tagBody);
-                                tagBody.get(data);
-                                if (isDebug) {
-                                    log.debug("NAL type: {}", AVC_NAL_TYPES[data[0] & 0x1f]);
-                                }
-                                // write video data
-                                writeNal(data);
+                            // get the frame
+                            data = new byte[frameSize];
+                            //log.debug("Data length: {}", data.length);
+                            //log.trace("Position: {} remaining: {} {}", tagBody.position(), tagBody.remaining(), tagBody);
+                            tagBody.get(data);
+                            if (isDebug) {
+                                log.debug("NAL type: {}", AVC_NAL_TYPES[data[0] & 0x1f]);
+                            }
+                            if (sliceType < 0) {
+                                sliceType = StreamHealth.sliceType(data);
+                            }
+                            // write video data
+                            if (frame == null) {
+                                writeNal(data, batch);
+                            } else if (acceptNal(data)) {
+                                frame.add(ByteBuffer.wrap(data));
+                                bytesWritten += data.length;
                             }
                         }
-                    } else {
-                        log.debug("Rejecting non-AVC data");
-                        return false;
+                        if (frame != null && !frame.isEmpty()) {
+                            if (batch != null) {
+                                batch.video.addFrame(frame, tag.getTimestamp(), compositionTime, keyFrame);
+                            } else {
+                                h264Track.addFrame(frame, tag.getTimestamp(), compositionTime, keyFrame);
+                            }
+                        }
+                        streamHealth.videoFrame(tag.getTimestamp(), bodySize, keyFrame, compositionTime, sliceType);
+                        videoSeen = true;
                     }
+                } else {
+                    log.debug("Rejecting non-AVC data");
+                    return false;
                 }
             }
-            if (log.isTraceEnabled()) {
-                log.trace("Tag written, check value: {}", (bytesWritten - prevBytesWritten));
+        }
+        if (log.isTraceEnabled()) {
+            log.trace("Tag written, check value: {}", (bytesWritten - prevBytesWritten));
+        }
+        return true;
+    }
+
+    /**
+     * Rolls over to the next numbered file once what was written to the current one has reached the size or duration
+     * limit; called as each fragment is written.
+     */
+    private void checkRolloverLimits() {
+        long maxBytes = rolloverBytes, maxDuration = rolloverDuration;
+        // the fragments written at close are the end of the current file
+        if ((maxBytes > 0L || maxDuration > 0L) && pendingPath == null && !multiTrackFragmentedMp4Writer.isClosed()) {
+            if ((maxBytes > 0L && multiTrackFragmentedMp4Writer.getBytesWritten() >= maxBytes) || (maxDuration > 0L && multiTrackFragmentedMp4Writer.getWrittenDuration() >= maxDuration)) {
+                try {
+                    rollover(nextRolloverPath());
+                } catch (IOException e) {
+                    log.warn("Exception rolling over {}", filePath, e);
+                }
             }
-            return true;
-        } else {
-            // throw an exception and let them know the cause
-            throw new IOException("MP4 write channel has been closed", new ClosedChannelException());
+        }
+    }
+
+    /**
+     * Returns the path of the next file rolled over to by a limit, the original path numbered, ie. rec-1.mp4.
+     */
+    private Path nextRolloverPath() {
+        String name = basePath.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String numbered = dot > 0 ? name.substring(0, dot) + '-' + (++rolloverIndex) + name.substring(dot) : name + '-' + (++rolloverIndex);
+        return basePath.resolveSibling(numbered);
+    }
+
+    /**
+     * Continues the recording in a new file from the next key frame fragment, without tearing the writer down. The
+     * configured tracks carry on, the new file starts with its own init segment and no frames are lost; the decode times
+     * continue from the previous file. The previous file is completed, closed and handed to the post processors on a
+     * background thread. A rollover requested while another is pending replaces it.
+     * 
+     * @param path file to continue in
+     * @throws IOException if the file cannot be created
+     * @throws IllegalStateException if the writer has been closed
+     */
+    public void rollover(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        Path replacedPath;
+        FileChannel replacedChannel;
+        try {
+            // the switch may happen right away, the listener picks the pending file up under the same lock
+            synchronized (multiTrackFragmentedMp4Writer) {
+                replacedPath = pendingPath;
+                replacedChannel = pendingChannel;
+                pendingPath = path;
+                pendingChannel = channel;
+                multiTrackFragmentedMp4Writer.rollover(channel);
+            }
+        } catch (IOException | RuntimeException e) {
+            discard(path, channel);
+            throw e;
+        }
+        if (replacedChannel != null) {
+            discard(replacedPath, replacedChannel);
+        }
+        log.debug("Rollover to {} requested", path);
+    }
+
+    /**
+     * Called by the fragment writer once it has switched to the pending file.
+     */
+    private void rolledOver(WritableByteChannel previous, long previousBytes, long sequenceNumber) {
+        Path previousPath = filePath;
+        GroupCommitService.Registration previousDurability = durability;
+        filePath = pendingPath;
+        dataChannel = pendingChannel;
+        pendingPath = null;
+        pendingChannel = null;
+        // the new file is made durable from its first fragment on
+        durability = durabilityPolicy != DurabilityPolicy.NONE ? GroupCommitService.getInstance().register(filePath, (FileChannel) dataChannel, durabilityPolicy, durabilityInterval) : null;
+        FileOutputStream previousStream = previous == fos.getChannel() ? fos : null;
+        log.info("Rolled over from {} ({} bytes) to {} at fragment {}", previousPath, previousBytes, filePath, sequenceNumber);
+        rolloverExecutor.execute(() -> {
+            if (previousDurability != null) {
+                previousDurability.close();
+            }
+            try {
+                if (previousStream != null) {
+                    previousStream.close();
+                } else {
+                    previous.close();
+                }
+            } catch (IOException e) {
+                log.warn("Exception closing {}", previousPath, e);
+            }
+            for (IPostProcessor postProcessor : postProcessors) {
+                try {
+                    postProcessor.init(previousPath);
+                    postProcessor.run();
+                } catch (Exception e) {
+                    log.warn("Exception in post processor: {}", postProcessor, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Closes and deletes the file of a rollover which never happened.
+     */
+    private void discard(Path path, FileChannel channel) {
+        try {
+            channel.close();
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("Exception discarding {}", path, e);
+        }
+    }
+
+    /**
+     * Rolls the recording over to a new file, named after the original with a number, once the current file reaches a
+     * size or duration of media. The file is cut at the first key frame fragment past the limit, so it runs over by up
+     * to a GOP.
+     * 
+     * @param maxBytes size of a file in bytes, zero or less for no limit
+     * @param maxDuration duration of a file in milliseconds, zero or less for no limit
+     */
+    public void setRollover(long maxBytes, long maxDuration) {
+        this.rolloverBytes = maxBytes;
+        this.rolloverDuration = maxDuration;
+    }
+
+    public long getRolloverBytes() {
+        return rolloverBytes;
+    }
+
+    public long getRolloverDuration() {
+        return rolloverDuration;
+    }
+
+    /**
+     * Returns the file currently written to, which changes on rollover.
+     * 
+     * @return path
+     */
+    public Path getFilePath() {
+        return filePath;
+    }
+
+    /**
+     * Charges what this writer buffers to its account and sheds memory as the pressure asks: disposable frames are
+     * dropped and, past the limit, the buffered samples are flushed into fragments early.
+     * 
+     * @throws IOException
+     */
+    private void applyMemoryPressure() throws IOException {
+        SegmentCache cache = segmentCache;
+        TimeShiftBuffer timeShift = timeShiftBuffer;
+        long buffered = getBufferedBytes() + (cache != null ? cache.getCachedBytes() : 0L) + (timeShift != null ? timeShift.getMemoryBytes() : 0L);
+        MemoryAccountant.Pressure pressure = memoryAccount.charge(buffered);
+        boolean drop = pressure != MemoryAccountant.Pressure.NONE;
+        if (drop) {
+            StreamingEvents.backPressure(streamId, pressure.name(), buffered);
+        }
+        if (drop != droppingDisposable) {
+            droppingDisposable = drop;
+            for (MultiTrackFragmentedMp4Writer writer : fragmentWriters) {
+                writer.setDropDisposableSamples(drop);
+            }
+        }
+        if (pressure == MemoryAccountant.Pressure.FLUSH) {
+            long now = System.currentTimeMillis();
+            if (now - lastPressureFlush >= PRESSURE_FLUSH_INTERVAL) {
+                lastPressureFlush = now;
+                if (cache != null) {
+                    // late joiners wait for the next key frame again
+                    cache.evict();
+                }
+                if (timeShift != null) {
+                    // the window stays, from the spill file
+                    timeShift.shed();
+                }
+                for (MultiTrackFragmentedMp4Writer writer : fragmentWriters) {
+                    writer.flush();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the bytes of media buffered by this writer, queued for the tracks or waiting to be written in a fragment.
+     * 
+     * @return bytes
+     */
+    public long getBufferedBytes() {
+        long buffered = 0L;
+        // the outputs share the sample data, so count the one holding the most
+        for (MultiTrackFragmentedMp4Writer writer : fragmentWriters) {
+            buffered = Math.max(buffered, writer.getBufferedBytes());
+        }
+        if (h264Track != null) {
+            buffered += h264Track.getQueuedBytes();
+        }
+        if (aacTrack != null) {
+            buffered += aacTrack.getQueuedBytes();
+        }
+        return buffered;
+    }
+
+    /**
+     * Returns the number of disposable frames dropped under memory pressure, by the output which dropped the most.
+     * 
+     * @return frame count
+     */
+    public long getDroppedFrames() {
+        long dropped = 0L;
+        for (MultiTrackFragmentedMp4Writer writer : fragmentWriters) {
+            dropped = Math.max(dropped, writer.getDroppedSamples());
+        }
+        return dropped;
+    }
+
+    /**
+     * Returns the health of the stream measured from the tags written: GOP length, frame rate, bitrates, B-frames,
+     * reorder depth and A/V skew.
+     * 
+     * @return stream health, queryable while the stream is written
+     */
+    public StreamHealth getStreamHealth() {
+        return streamHealth;
+    }
+
+    /**
+     * Keeps the init segment and the fragments since the last key frame of this stream, so subscribers joining late can
+     * start playing straight away. The cached bytes are charged to the memory account and the GOP is evicted under
+     * memory pressure. Must be set before media is written.
+     * 
+     * @param segmentCache cache or null for none
+     */
+    public void setSegmentCache(SegmentCache segmentCache) {
+        if (mediaWritten) {
+            throw new IllegalStateException("The segment cache must be set before media is written");
+        }
+        this.segmentCache = segmentCache;
+        multiTrackFragmentedMp4Writer.setSegmentCache(segmentCache);
+    }
+
+    public SegmentCache getSegmentCache() {
+        return segmentCache;
+    }
+
+    /**
+     * Keeps the init segment and the fragments of the last few minutes of this stream, so viewers can rewind or catch up
+     * without the recording being read. The fragments held in memory are charged to the memory account and spilled to
+     * the buffer's file under memory pressure. The buffer stays readable after this writer is closed and is closed by
+     * its owner. Must be set before media is written.
+     * 
+     * @param timeShiftBuffer buffer or null for none
+     */
+    public void setTimeShiftBuffer(TimeShiftBuffer timeShiftBuffer) {
+        if (mediaWritten) {
+            throw new IllegalStateException("The time-shift buffer must be set before media is written");
+        }
+        this.timeShiftBuffer = timeShiftBuffer;
+        multiTrackFragmentedMp4Writer.setTimeShiftBuffer(timeShiftBuffer);
+    }
+
+    public TimeShiftBuffer getTimeShiftBuffer() {
+        return timeShiftBuffer;
+    }
+
+    /**
+     * Encrypts the samples of every output with common encryption as they are fragmented, so protected recordings need
+     * no second pass. Must be set before media is written.
+     * 
+     * @param encryption encryption or null for clear output
+     */
+    public void setEncryption(CommonEncryption encryption) {
+        if (mediaWritten) {
+            throw new IllegalStateException("Encryption must be set before media is written");
+        }
+        this.encryption = encryption;
+        for (MultiTrackFragmentedMp4Writer writer : fragmentWriters) {
+            writer.setEncryption(encryption);
+        }
+    }
+
+    public CommonEncryption getEncryption() {
+        return encryption;
+    }
+
+    /**
+     * Sets whether video samples take their timing and sync flag from the FLV video tag. Each tag is then queued as one
+     * frame whose duration runs to the next tag's timestamp and whose composition offset is the tag's, so decode and
+     * presentation times share the tag time base, rather than the samples being timed by the frame tick and their
+     * offsets inferred from the picture order count, which holds up to max_dec_frame_buffering + 1 frames for
+     * reordering. Should be set before media is written.
+     * 
+     * @param flvTiming true to use the flv timing
+     */
+    public void setFlvTiming(boolean flvTiming) {
+        this.flvTiming = flvTiming;
+    }
+
+    public boolean isFlvTiming() {
+        return flvTiming;
+    }
+
+    /**
+     * Sets whether the video track is described as avc3 with its parameter sets kept in the samples where they arrive,
+     * so the publisher may change resolution or encoder settings mid-stream and playback follows at the next IDR. Must
+     * be set before media is written. The nal filter then drops no parameter sets as redundant.
+     * 
+     * @param inBandParameterSets true for avc3
+     */
+    public void setInBandParameterSets(boolean inBandParameterSets) {
+        if (mediaWritten) {
+            throw new IllegalStateException("In-band parameter sets must be set before media is written");
+        }
+        this.inBandParameterSets = inBandParameterSets;
+        h264Track.setInBandParameterSets(inBandParameterSets);
+    }
+
+    public boolean isInBandParameterSets() {
+        return inBandParameterSets;
+    }
+
+    /**
+     * Sets how long, in milliseconds of tag time from the first media, a track may go without media before it is left
+     * out of the file. Whichever track is missing when the window passes is left out for the rest of the stream, and
+     * a track still missing on close is left out then. A window of zero or less waits for both tracks until close.
+     * 
+     * @param trackProbeWindow window in milliseconds
+     */
+    public void setTrackProbeWindow(long trackProbeWindow) {
+        this.trackProbeWindow = trackProbeWindow;
+    }
+
+    public long getTrackProbeWindow() {
+        return trackProbeWindow;
+    }
+
+    /**
+     * Sets the filter deciding which nal units reach the video track; by default all of them do. A filter isn't shared
+     * between writers, as it remembers the parameter sets it has forwarded.
+     * 
+     * @param nalFilter filter or null to forward all units
+     */
+    public void setNalFilter(NalFilter nalFilter) {
+        this.nalFilter = nalFilter;
+    }
+
+    public NalFilter getNalFilter() {
+        return nalFilter;
+    }
+
+    public MemoryAccountant.Account getMemoryAccount() {
+        return memoryAccount;
+    }
+
+    /**
+     * Adds an output which receives its own fragmented mp4 of this stream, such as a backup copy or a live feed. The
+     * ingest, parsing and sample assembly are shared with the primary file. Outputs must be added before any media
+     * tags are written and the channel is closed along with this writer.
+     * 
+     * @param channel output channel
+     * @throws IOException
+     */
+    public void addOutput(WritableByteChannel channel) throws IOException {
+        if (mediaWritten) {
+            throw new IllegalStateException("Outputs must be added before media is written");
+        }
+        // the fragment writer registers itself with the tracks, so point them back at the fan-out afterward
+        MultiTrackFragmentedMp4Writer output = new MultiTrackFragmentedMp4Writer(Arrays.<StreamingTrack> asList(h264Track, aacTrack), channel);
+        output.setInterleaveWindow(interleaveWindow, lagPolicy);
+        output.setEncryption(encryption);
+        output.setStreamId(streamId);
+        fragmentWriters.add(output);
+        h264Track.setSampleSink(sampleFanOut);
+        aacTrack.setSampleSink(sampleFanOut);
+        sampleFanOut.addOutput(output);
+        outputChannels.add(channel);
+    }
+
+    /**
+     * Adds a file output which receives its own fragmented mp4 of this stream.
+     * 
+     * @param path output file path
+     * @throws IOException
+     */
+    public void addOutput(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try {
+            addOutput(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
         }
     }
 
@@ -388,13 +1273,45 @@ public class MP4Writer implements ITagWriter {
      * @param data
      * @throws IOException
      */
-    private void writeNal(byte[] data) throws IOException {
+    private void writeNal(byte[] data, TagBatch batch) throws IOException {
+        if (!acceptNal(data)) {
+            return;
+        }
         // write to video out
-        h264Track.add(data);
+        if (batch != null) {
+            batch.video.add(ByteBuffer.wrap(data));
+        } else {
+            h264Track.add(data);
+        }
         // increment bytes written
         bytesWritten += data.length;
     }
 
+    /**
+     * Returns whether a nalu passes the nal filter.
+     * 
+     * @param data
+     * @return true if it's to be written
+     */
+    private boolean acceptNal(byte[] data) {
+        NalFilter filter = nalFilter;
+        if (filter == null) {
+            return true;
+        }
+        int type = data.length > 0 ? data[0] & 0x1f : 0;
+        if (inBandParameterSets && (type == 7 || type == 8)) {
+            // with avc3 the repeats ahead of each IDR are what a player starting there decodes with
+            return true;
+        }
+        if (!filter.accept(data)) {
+            if (isTrace) {
+                log.trace("Dropped NAL: {}", AVC_NAL_TYPES[type]);
+            }
+            return false;
+        }
+        return true;
+    }
+
     /**
      * Decode an SEI nal; if we had one, we could get timing information when its absent from
      * the SPS nal vuiParams.
@@ -447,44 +1364,130 @@ public class MP4Writer implements ITagWriter {
         */
     }
 
+    /**
+     * Closes the writer and waits for it to finish; the tracks are given up to 5 seconds to drain.
+     */
     @Override
     public void close() {
-        log.debug("close");
-        // spawn a thread to finish up our mp4 writer work
         try {
-            // wrap-up writing to the mp4
-            if (h264Track != null) {
-                // add null entry to end blocking on take
-                h264Track.add(DATA_END_MARKER);
-            }
-            if (aacTrack != null) {
-                // add null entry to end blocking on take
-                aacTrack.add(DATA_END_MARKER);
-            }
-            // clean up futures
-            for (Future<?> future : futures) {
-                log.debug("Future: {}", future);
+            // up to 5 seconds to drain, as long again to exit once closed, and the rest for writing out
+            closeAsync().get(15L, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            log.warn("Timed out waiting for close of {}", filePath);
+        } catch (Exception e) {
+            log.warn("Exception at close", e);
+        }
+    }
+
+    /**
+     * Closes the writer without blocking the caller; the tracks are given up to 5 seconds to drain.
+     * 
+     * @return future completed once the file and outputs are closed
+     */
+    public CompletableFuture<Void> closeAsync() {
+        return closeAsync(5L, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Closes the writer without blocking the caller. The end markers are posted to the tracks and once they have
+     * drained, or the timeout expires and they have been closed and exited with what they have queued dropped, the
+     * remaining fragments are written and the files closed on a close thread. The tracks aren't interrupted, since a
+     * track interrupted while writing would have its file channel closed under it; a track which doesn't exit within
+     * the timeout again is left behind. A writer whose close timed out isn't reused. Repeated calls return the same
+     * future.
+     * 
+     * @param timeout maximum time to wait for the tracks to drain
+     * @param unit timeout unit
+     * @return future completed once the file and outputs are closed
+     */
+    public CompletableFuture<Void> closeAsync(long timeout, TimeUnit unit) {
+        CompletableFuture<Void> closed = new CompletableFuture<>();
+        if (!closeFuture.compareAndSet(null, closed)) {
+            return closeFuture.get();
+        }
+        log.debug("close");
+        // wrap-up writing to the mp4
+        if (h264Track != null) {
+            // add null entry to end blocking on take
+            h264Track.add(DATA_END_MARKER);
+        }
+        if (aacTrack != null) {
+            // add null entry to end blocking on take
+            aacTrack.add(DATA_END_MARKER);
+        }
+        CompletableFuture<Void> tracksDone = CompletableFuture.allOf(trackCompletions.toArray(new CompletableFuture<?>[0]));
+        AtomicBoolean timedOut = new AtomicBoolean();
+        // if the tracks dont drain in time, close and cancel them and finish with what we have; the timer only cancels,
+        // the finishing is done on the close executor
+        ScheduledFuture<?> timer = closeTimer.schedule(() -> {
+            log.info("Timed out waiting for callable");
+            timedOut.set(true);
+            for (StreamingTrack track : new StreamingTrack[] { h264Track, aacTrack }) {
                 try {
-                    // don't wait too long, 5 seconds seems like more than enough
-                    future.get(5L, TimeUnit.SECONDS);
-                } catch (TimeoutException te) {
-                    log.info("Timed out waiting for callable");
-                } catch (Exception e) {
-                    log.warn("Exception waiting for callable", e);
+                    track.close();
+                } catch (IOException e) {
+                    log.warn("Exception closing track", e);
                 }
-                // if the future isnt done yet, cancel it
+            }
+            for (Future<?> future : futures) {
                 if (!future.isDone()) {
                     log.debug("Cancelling {}", future);
                     future.cancel(false);
                 }
             }
+            closeTimer.schedule(() -> {
+                for (CompletableFuture<Void> completion : trackCompletions) {
+                    completion.completeExceptionally(new TimeoutException("Track did not exit once closed"));
+                }
+            }, timeout, unit);
+        }, timeout, unit);
+        tracksDone.whenCompleteAsync((result, failure) -> {
+            timer.cancel(false);
+            if (failure != null) {
+                log.warn("Exception waiting for callable", failure);
+            }
             log.debug("Exited future section");
-            // write the remaining samples (also calls close on the tracks internally)
-            multiTrackFragmentedMp4Writer.close();
-            log.debug("Fragment writer closed");
+            Throwable error = null;
+            try {
+                finish();
+            } catch (Throwable t) {
+                error = t;
+            }
+            finished = true;
+            if (pool != null) {
+                // a track which didn't drain may still be running, so such a writer isn't reused
+                pool.recycle(this, failure == null && error == null && !timedOut.get());
+            }
+            if (error == null) {
+                closed.complete(null);
+            } else {
+                closed.completeExceptionally(error);
+            }
+        }, closeExecutor);
+        return closed;
+    }
+
+    /**
+     * Writes the remaining samples and releases the files, channels and executor.
+     */
+    private void finish() {
+        try {
+            // write the remaining samples for every output (also calls close on the tracks internally)
+            sampleFanOut.close();
+            log.debug("Fragment writers closed");
         } catch (Exception e) {
             log.warn("Exception at close", e);
         } finally {
+            if (durability != null) {
+                // force whatever is left before the file is closed
+                durability.close();
+            }
+            if (memoryAccount != null) {
+                memoryAccount.close();
+            }
+            if (nalFilter != null && nalFilter.getDroppedNals() > 0L) {
+                log.info("{} for {}", nalFilter, filePath);
+            }
             if (fos != null) {
                 // close output stream
                 try {
@@ -492,16 +1495,136 @@ public class MP4Writer implements ITagWriter {
                 } catch (IOException e) {
                 }
             }
-            if (executor != null && !executor.isTerminated()) {
+            if (dataChannel != null && dataChannel.isOpen()) {
+                // a file rolled over to
+                try {
+                    dataChannel.close();
+                } catch (IOException e) {
+                }
+            }
+            if (pendingChannel != null) {
+                discard(pendingPath, pendingChannel);
+                pendingPath = null;
+                pendingChannel = null;
+            }
+            for (WritableByteChannel channel : outputChannels) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                }
+            }
+            outputChannels.clear();
+            // hand the finished file to any post processors, they'll run before the executor terminates
+            for (IPostProcessor postProcessor : postProcessors) {
+                try {
+                    postProcessor.init(filePath);
+                    if (pool != null) {
+                        // the executor may be running the tracks of the next stream by then
+                        rolloverExecutor.execute(postProcessor);
+                    } else {
+                        executor.submit(postProcessor);
+                    }
+                } catch (Exception e) {
+                    log.warn("Exception submitting post processor: {}", postProcessor, e);
+                }
+            }
+            if (pool == null && !executor.isTerminated()) {
                 executor.shutdown();
             }
             futures.clear();
         }
     }
 
+    /**
+     * Returns whether or not close has been requested.
+     * 
+     * @return true if closing or closed
+     */
+    public boolean isClosing() {
+        return closeFuture.get() != null;
+    }
+
+    /**
+     * Sets how often the recording is forced to stable storage. The forces are batched with the other writers on the
+     * same file system by the group commit service.
+     * 
+     * @param durabilityPolicy policy
+     * @param interval interval in milliseconds, used with the INTERVAL policy
+     */
+    public void setDurabilityPolicy(DurabilityPolicy durabilityPolicy, long interval) {
+        if (durability != null) {
+            durability.close();
+            durability = null;
+        }
+        this.durabilityPolicy = durabilityPolicy;
+        this.durabilityInterval = interval;
+        if (durabilityPolicy != DurabilityPolicy.NONE && dataChannel instanceof FileChannel) {
+            durability = GroupCommitService.getInstance().register(filePath, (FileChannel) dataChannel, durabilityPolicy, interval);
+        }
+    }
+
+    public DurabilityPolicy getDurabilityPolicy() {
+        return durabilityPolicy;
+    }
+
+    /**
+     * Sets how far, in milliseconds of media time, one track may lag the other before fragments stop waiting for it, eg.
+     * a muted microphone sending no audio. A lagging audio track is filled with silence under FILL_SILENCE, otherwise
+     * the fragments are written without the lagging track. A window of zero or less waits indefinitely, holding the
+     * other track's samples in memory, which is the default.
+     * 
+     * @param interleaveWindow lag in milliseconds
+     * @param lagPolicy policy for a lagging track
+     */
+    public void setInterleaveWindow(long interleaveWindow, LagPolicy lagPolicy) {
+        this.interleaveWindow = interleaveWindow;
+        this.lagPolicy = lagPolicy;
+        for (MultiTrackFragmentedMp4Writer writer : fragmentWriters) {
+            writer.setInterleaveWindow(interleaveWindow, lagPolicy);
+        }
+    }
+
+    /**
+     * Sets the store which holds the samples off-heap until their fragments are written, such as the one shared by all
+     * writers from {@link PayloadStore#getShared()}; by default the samples stay on the heap. The direct memory a store
+     * reserves is kept for reuse and counts against -XX:MaxDirectMemorySize. Must be set before media is written.
+     * 
+     * @param payloadStore store or null to keep the samples on the heap
+     */
+    public void setPayloadStore(PayloadStore payloadStore) {
+        if (mediaWritten) {
+            throw new IllegalStateException("The payload store must be set before media is written");
+        }
+        this.payloadStore = payloadStore;
+        h264Track.setPayloadStore(payloadStore);
+        aacTrack.setPayloadStore(payloadStore);
+    }
+
+    public PayloadStore getPayloadStore() {
+        return payloadStore;
+    }
+
+    public long getInterleaveWindow() {
+        return interleaveWindow;
+    }
+
+    public LagPolicy getLagPolicy() {
+        return lagPolicy;
+    }
+
+    /**
+     * Returns the sequence number of the last fragment known to be on stable storage.
+     * 
+     * @return sequence number or -1 if none is known to be
+     */
+    public long getLastDurableFragment() {
+        GroupCommitService.Registration registration = durability;
+        return registration != null ? registration.getLastDurableFragment() : -1L;
+    }
+
     @Override
     public void addPostProcessor(IPostProcessor postProcessor) {
-        throw new UnsupportedOperationException("Post-processing not supported for MP4");
+        postProcessors.add(postProcessor);
     }
 
     @Override
@@ -583,4 +1706,15 @@ public class MP4Writer implements ITagWriter {
         this.videoFrametick = videoFrametick;
     }
 
+    /**
+     * The nals, frames and adts frames parsed from a batch of tags, queued to the tracks together.
+     */
+    private static final class TagBatch {
+
+        final AnnexBStreamingTrack.Batch video = new AnnexBStreamingTrack.Batch();
+
+        final List<ByteBuffer> audio = new ArrayList<>();
+
+    }
+
 }
@@ -0,0 +1,136 @@
+package org.gregoire.debug;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands out pre-warmed writers, so a storm of publishes doesn't build an executor, threads and tracks for each stream.
+ * A writer from the pool is closed as usual and goes back to the pool once its file is complete, to be reset for the
+ * next stream; it must not be used after it has been closed.
+ *
+ * @author Paul Gregoire
+ */
+public class MP4WriterPool implements AutoCloseable {
+
+    private static Logger log = LoggerFactory.getLogger(MP4WriterPool.class);
+
+    private final ConcurrentLinkedDeque<MP4Writer> idle = new ConcurrentLinkedDeque<>();
+
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    // idle writers kept beyond this are released
+    private final int maxIdle;
+
+    private final AtomicLong created = new AtomicLong(), reused = new AtomicLong();
+
+    private volatile boolean closed;
+
+    /**
+     * Creates a pool.
+     *
+     * @param prewarm writers to create up front
+     * @param maxIdle most idle writers to keep
+     */
+    public MP4WriterPool(int prewarm, int maxIdle) {
+        this.maxIdle = maxIdle;
+        for (int i = 0; i < Math.min(prewarm, maxIdle); i++) {
+            idle.push(newWriter());
+            idleCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns a writer bound to the given file, an idle one if there is one.
+     *
+     * @param path file path
+     * @return writer
+     * @throws IOException if the file cannot be created
+     */
+    public MP4Writer acquire(Path path) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Pool is closed");
+        }
+        MP4Writer writer = idle.poll();
+        if (writer != null) {
+            idleCount.decrementAndGet();
+            reused.incrementAndGet();
+        } else {
+            writer = newWriter();
+        }
+        try {
+            writer.reset(path);
+        } catch (IOException | RuntimeException e) {
+            recycle(writer, true);
+            throw e;
+        }
+        return writer;
+    }
+
+    private MP4Writer newWriter() {
+        created.incrementAndGet();
+        return new MP4Writer(this);
+    }
+
+    /**
+     * Takes a closed writer back, or releases it when it can't be reused or isn't needed.
+     *
+     * @param writer
+     * @param reusable whether the writer closed cleanly
+     */
+    void recycle(MP4Writer writer, boolean reusable) {
+        if (reusable && !closed) {
+            if (idleCount.incrementAndGet() <= maxIdle) {
+                idle.push(writer);
+                // the pool may have closed in the meantime
+                if (closed && idle.remove(writer)) {
+                    writer.destroy();
+                }
+                return;
+            }
+            idleCount.decrementAndGet();
+        }
+        log.debug("Releasing writer, reusable: {}", reusable);
+        writer.destroy();
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Returns the number of writers created by the pool.
+     *
+     * @return count
+     */
+    public long getCreatedCount() {
+        return created.get();
+    }
+
+    /**
+     * Returns the number of times an idle writer was handed out instead of a new one.
+     *
+     * @return count
+     */
+    public long getReusedCount() {
+        return reused.get();
+    }
+
+    /**
+     * Releases the idle writers; writers in use are released as they close.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        MP4Writer writer;
+        while ((writer = idle.poll()) != null) {
+            writer.destroy();
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+package org.gregoire.debug;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the active writers on a node so they may be drained together, ie. for a deploy.
+ *
+ * @author Paul Gregoire
+ */
+public class MP4WriterRegistry {
+
+    private static Logger log = LoggerFactory.getLogger(MP4WriterRegistry.class);
+
+    private final ConcurrentHashMap<String, MP4Writer> writers = new ConcurrentHashMap<>();
+
+    /**
+     * Registers a writer under the given stream name.
+     * 
+     * @param name stream name
+     * @param writer
+     * @return previously registered writer or null
+     */
+    public MP4Writer register(String name, MP4Writer writer) {
+        return writers.put(name, writer);
+    }
+
+    public MP4Writer unregister(String name) {
+        return writers.remove(name);
+    }
+
+    public MP4Writer get(String name) {
+        return writers.get(name);
+    }
+
+    public int size() {
+        return writers.size();
+    }
+
+    /**
+     * Closes the given writer and removes it from the registry.
+     * 
+     * @param name stream name
+     * @return future completed once the writer has closed or null if no writer is registered under the name
+     */
+    public CompletableFuture<Void> closeAsync(String name) {
+        MP4Writer writer = writers.remove(name);
+        return writer != null ? writer.closeAsync() : null;
+    }
+
+    /**
+     * Closes all the registered writers in parallel. Each writer runs its close on its own threads, so the drain takes
+     * about as long as the slowest writer rather than the sum of them.
+     * 
+     * @param timeout time allowed for the tracks of each writer to drain
+     * @param unit timeout unit
+     * @return future completed once every writer has closed
+     */
+    public CompletableFuture<Void> closeAllAsync(long timeout, TimeUnit unit) {
+        List<CompletableFuture<Void>> closes = new ArrayList<>(writers.size());
+        for (Map.Entry<String, MP4Writer> entry : writers.entrySet()) {
+            if (writers.remove(entry.getKey(), entry.getValue())) {
+                closes.add(entry.getValue().closeAsync(timeout, unit));
+            }
+        }
+        return CompletableFuture.allOf(closes.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Closes all the registered writers in parallel and waits for them, bounded by a single deadline shared by all of
+     * them. Writers that are still writing their last fragments when the deadline passes are left to finish on their
+     * own threads.
+     * 
+     * @param timeout overall time allowed for the drain
+     * @param unit timeout unit
+     * @return true if every writer closed before the deadline
+     */
+    public boolean closeAll(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int count = writers.size();
+        CompletableFuture<Void> all = closeAllAsync(timeout, unit);
+        try {
+            all.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            log.debug("Closed {} writers", count);
+            return true;
+        } catch (TimeoutException e) {
+            log.warn("Not all of the {} writers closed within {} {}", count, timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.warn("Exception closing writers", e);
+        }
+        return false;
+    }
+
+}
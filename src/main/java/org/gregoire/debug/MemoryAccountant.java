@@ -0,0 +1,211 @@
+package org.gregoire.debug;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Charges the media buffered by each writer against per-writer and JVM-wide limits, so one misbehaving publisher cannot
+ * starve the node. Each writer opens an account and reports its buffered bytes as it ingests; the accountant answers
+ * with the pressure the writer should act on. Past three quarters of either limit the writer drops disposable frames,
+ * past the limit it also flushes its fragments early, and while the node as a whole is past three quarters of its limit
+ * new writers are rejected.
+ * <br>
+ * The limits are set with the mp4frag.memory.maxBytes and mp4frag.memory.writerMaxBytes system properties and default
+ * to 512 MB and 64 MB.
+ *
+ * @author Paul Gregoire
+ */
+public class MemoryAccountant {
+
+    private static Logger log = LoggerFactory.getLogger(MemoryAccountant.class);
+
+    private static final MemoryAccountant instance = new MemoryAccountant(Long.getLong("mp4frag.memory.maxBytes", 512L << 20), Long.getLong("mp4frag.memory.writerMaxBytes", 64L << 20));
+
+    private volatile long maxBytes;
+
+    private volatile long writerMaxBytes;
+
+    // bytes charged to all accounts
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    private final AtomicLong rejectedWriters = new AtomicLong();
+
+    private final CopyOnWriteArrayList<Account> accounts = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param maxBytes limit for all writers
+     * @param writerMaxBytes limit for each writer
+     */
+    public MemoryAccountant(long maxBytes, long writerMaxBytes) {
+        this.maxBytes = maxBytes;
+        this.writerMaxBytes = writerMaxBytes;
+    }
+
+    public static MemoryAccountant getInstance() {
+        return instance;
+    }
+
+    /**
+     * Opens an account for a new writer.
+     *
+     * @param name name of the writer, used in logging
+     * @return account
+     * @throws IllegalStateException if the node is past three quarters of its limit
+     */
+    public Account open(String name) {
+        long used = usedBytes.get();
+        if (used > highWater(maxBytes)) {
+            rejectedWriters.incrementAndGet();
+            log.warn("Rejecting writer {}, {} bytes buffered of {}", name, used, maxBytes);
+            throw new IllegalStateException("Memory limit reached, rejecting writer " + name);
+        }
+        Account account = new Account(name);
+        accounts.add(account);
+        return account;
+    }
+
+    /**
+     * Sets the limits.
+     *
+     * @param maxBytes limit for all writers
+     * @param writerMaxBytes limit for each writer
+     */
+    public void setLimits(long maxBytes, long writerMaxBytes) {
+        this.maxBytes = maxBytes;
+        this.writerMaxBytes = writerMaxBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getWriterMaxBytes() {
+        return writerMaxBytes;
+    }
+
+    /**
+     * Returns the bytes charged to all accounts.
+     *
+     * @return bytes
+     */
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * Returns the number of writers rejected since the node was past its limit.
+     *
+     * @return count
+     */
+    public long getRejectedWriters() {
+        return rejectedWriters.get();
+    }
+
+    public int getAccountCount() {
+        return accounts.size();
+    }
+
+    private static long highWater(long limit) {
+        return limit - (limit >> 2);
+    }
+
+    /**
+     * Pressure on a writer, each level includes the actions of the ones before it.
+     */
+    public enum Pressure {
+
+        /**
+         * Within the limits.
+         */
+        NONE,
+
+        /**
+         * Past three quarters of a limit, disposable frames are dropped.
+         */
+        DROP_DISPOSABLE,
+
+        /**
+         * Past a limit, buffered samples are also flushed into fragments early.
+         */
+        FLUSH
+
+    }
+
+    /**
+     * Bytes buffered by one writer.
+     */
+    public class Account implements AutoCloseable {
+
+        private final String name;
+
+        private long charged;
+
+        private Pressure pressure = Pressure.NONE;
+
+        private long peakBytes;
+
+        private Account(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Charges the bytes the writer currently buffers, replacing what was charged before.
+         *
+         * @param bytes buffered bytes
+         * @return pressure to act on
+         */
+        public synchronized Pressure charge(long bytes) {
+            long used = usedBytes.addAndGet(bytes - charged);
+            charged = bytes;
+            peakBytes = Math.max(peakBytes, bytes);
+            long writerLimit = writerMaxBytes, limit = maxBytes;
+            Pressure current;
+            if (bytes > writerLimit || used > limit) {
+                current = Pressure.FLUSH;
+            } else if (bytes > highWater(writerLimit) || used > highWater(limit)) {
+                current = Pressure.DROP_DISPOSABLE;
+            } else {
+                current = Pressure.NONE;
+            }
+            if (current != pressure) {
+                log.info("Writer {} pressure {} - {} bytes buffered, {} on the node", name, current, bytes, used);
+                pressure = current;
+            }
+            return current;
+        }
+
+        public synchronized long getCharged() {
+            return charged;
+        }
+
+        public synchronized long getPeakBytes() {
+            return peakBytes;
+        }
+
+        public synchronized Pressure getPressure() {
+            return pressure;
+        }
+
+        /**
+         * Returns the charged bytes to the node and closes the account.
+         */
+        @Override
+        public synchronized void close() {
+            if (accounts.remove(this)) {
+                usedBytes.addAndGet(-charged);
+                charged = 0L;
+                pressure = Pressure.NONE;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Account [name=" + name + ", charged=" + getCharged() + "]";
+        }
+
+    }
+
+}
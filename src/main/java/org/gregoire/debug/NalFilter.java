@@ -0,0 +1,219 @@
+package org.gregoire.debug;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides which NAL units of a stream reach the video track. Units of the dropped types are discarded, by default
+ * filler data and access unit delimiters which only pad the output, and parameter sets identical to the last one
+ * forwarded with their id are discarded as redundant; the first copies end up in the avcC so in-band repeats, such as
+ * an SPS and PPS ahead of every IDR, add nothing. A parameter set which replaces the last one of its id is always
+ * forwarded, also when it switches back to an earlier one, and a changed SPS has the next PPS of each id forwarded
+ * again. A parameter set whose id can't be read is forwarded.
+ * <br>
+ * The dropped units and bytes are counted per type; the bytes include the four byte length each unit would have been
+ * given in the sample.
+ *
+ * @author Paul Gregoire
+ */
+public class NalFilter {
+
+    public static final int AU_UNIT_DELIMITER = 9, FILLER_DATA = 12;
+
+    private static final int SPS = 7, PPS = 8;
+
+    private final boolean[] dropTypes = new boolean[32];
+
+    private volatile boolean dropRedundantParameterSets = true;
+
+    // last forwarded per seq_parameter_set_id and pic_parameter_set_id
+    private final byte[][] sequenceParameterSets = new byte[32][];
+
+    private final byte[][] pictureParameterSets = new byte[256][];
+
+    private final AtomicLongArray droppedNals = new AtomicLongArray(32);
+
+    private final AtomicLongArray droppedBytes = new AtomicLongArray(32);
+
+    /**
+     * Creates a filter dropping filler data, access unit delimiters and redundant parameter sets.
+     */
+    public NalFilter() {
+        this(AU_UNIT_DELIMITER, FILLER_DATA);
+    }
+
+    /**
+     * Creates a filter dropping the given types and redundant parameter sets.
+     *
+     * @param types nal unit types to drop
+     */
+    public NalFilter(int... types) {
+        for (int type : types) {
+            setDropped(type, true);
+        }
+    }
+
+    /**
+     * Sets whether units of a type are dropped.
+     *
+     * @param type nal unit type
+     * @param dropped true to drop them
+     */
+    public synchronized void setDropped(int type, boolean dropped) {
+        dropTypes[type & 0x1f] = dropped;
+    }
+
+    public synchronized boolean isDropped(int type) {
+        return dropTypes[type & 0x1f];
+    }
+
+    /**
+     * Sets whether parameter sets identical to the last one forwarded with their id are dropped.
+     *
+     * @param dropRedundantParameterSets true to drop them
+     */
+    public void setDropRedundantParameterSets(boolean dropRedundantParameterSets) {
+        this.dropRedundantParameterSets = dropRedundantParameterSets;
+    }
+
+    public boolean isDropRedundantParameterSets() {
+        return dropRedundantParameterSets;
+    }
+
+    /**
+     * Returns whether a unit is forwarded, counting it when it's dropped.
+     *
+     * @param nal raw nal unit with no prefix
+     * @return true to forward it and false to drop it
+     */
+    public synchronized boolean accept(byte[] nal) {
+        if (nal.length == 0) {
+            return true;
+        }
+        int type = nal[0] & 0x1f;
+        if (dropTypes[type]) {
+            count(type, nal.length);
+            return false;
+        }
+        if (type == SPS || type == PPS) {
+            // the id follows profile_idc, the constraint flags and level_idc in an sps and leads a pps
+            byte[][] parameterSets = type == SPS ? sequenceParameterSets : pictureParameterSets;
+            int id = parameterSetId(nal, type == SPS ? 3 : 0);
+            if (id < 0 || id >= parameterSets.length) {
+                return true;
+            }
+            if (Arrays.equals(parameterSets[id], nal)) {
+                if (dropRedundantParameterSets) {
+                    count(type, nal.length);
+                    return false;
+                }
+                return true;
+            }
+            if (type == SPS && parameterSets[id] != null) {
+                // the picture parameter sets are read against the new sps
+                Arrays.fill(pictureParameterSets, null);
+            }
+            parameterSets[id] = nal.clone();
+        }
+        return true;
+    }
+
+    /**
+     * Reads the ue(v) id of a parameter set, the emulation prevention bytes taken out.
+     *
+     * @param nal raw nal unit with no prefix
+     * @param skip payload bytes ahead of the id
+     * @return id or -1 if it can't be read
+     */
+    private static int parameterSetId(byte[] nal, int skip) {
+        long bits = 0L;
+        int count = 0, zeros = 0, index = 0;
+        for (int i = 1; i < nal.length && count < 64; i++) {
+            int b = nal[i] & 0xff;
+            if (zeros >= 2 && b == 3) {
+                zeros = 0;
+                continue;
+            }
+            zeros = b == 0 ? zeros + 1 : 0;
+            if (index++ >= skip) {
+                bits = bits << 8 | b;
+                count += 8;
+            }
+        }
+        // leading zeros, a one and as many bits again
+        int leadingZeros = 0;
+        while (leadingZeros < count && (bits >>> (count - 1 - leadingZeros) & 1L) == 0L) {
+            leadingZeros++;
+        }
+        int length = 2 * leadingZeros + 1;
+        if (leadingZeros > 8 || length > count) {
+            return -1;
+        }
+        return (int) ((bits >>> (count - length)) & ((1L << (leadingZeros + 1)) - 1L)) - 1;
+    }
+
+    private void count(int type, int length) {
+        droppedNals.incrementAndGet(type);
+        droppedBytes.addAndGet(type, length + 4);
+    }
+
+    /**
+     * Returns the number of units of a type dropped.
+     *
+     * @param type nal unit type
+     * @return count
+     */
+    public long getDroppedNals(int type) {
+        return droppedNals.get(type & 0x1f);
+    }
+
+    /**
+     * Returns the bytes saved by dropping units of a type.
+     *
+     * @param type nal unit type
+     * @return bytes
+     */
+    public long getDroppedBytes(int type) {
+        return droppedBytes.get(type & 0x1f);
+    }
+
+    /**
+     * Returns the number of units dropped.
+     *
+     * @return count
+     */
+    public long getDroppedNals() {
+        long total = 0L;
+        for (int type = 0; type < 32; type++) {
+            total += droppedNals.get(type);
+        }
+        return total;
+    }
+
+    /**
+     * Returns the bytes saved by dropping units.
+     *
+     * @return bytes
+     */
+    public long getDroppedBytes() {
+        long total = 0L;
+        for (int type = 0; type < 32; type++) {
+            total += droppedBytes.get(type);
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("NalFilter [dropped=");
+        sb.append(getDroppedNals()).append(", saved=").append(getDroppedBytes());
+        for (int type = 0; type < 32; type++) {
+            long nals = droppedNals.get(type);
+            if (nals > 0L) {
+                sb.append(", ").append(MP4Writer.AVC_NAL_TYPES[type]).append(": ").append(nals).append('/').append(droppedBytes.get(type));
+            }
+        }
+        return sb.append(']').toString();
+    }
+
+}
@@ -0,0 +1,154 @@
+package org.gregoire.debug;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.mp4parser.streaming.SampleExtension;
+import org.mp4parser.streaming.StreamingSample;
+import org.mp4parser.streaming.StreamingTrack;
+import org.mp4parser.streaming.input.Payload;
+import org.mp4parser.streaming.output.SampleSink;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sample sink which publishes each sample produced by the streaming tracks to any number of output sinks. The tags are
+ * parsed and the access units assembled once per stream; every output gets its own read-only view of the same sample
+ * so they may fragment and write independently.
+ *
+ * @author Paul Gregoire
+ */
+public class SampleFanOut implements SampleSink {
+
+    private static Logger log = LoggerFactory.getLogger(SampleFanOut.class);
+
+    private final CopyOnWriteArrayList<SampleSink> outputs = new CopyOnWriteArrayList<>();
+
+    // set once the first sample has been published, outputs cannot be added after this point
+    private final AtomicBoolean started = new AtomicBoolean(false);
+
+    /**
+     * Adds an output; outputs must be added before the first sample arrives since a fragment writer has to see the
+     * streams from their beginning.
+     *
+     * @param output
+     */
+    public void addOutput(SampleSink output) {
+        if (started.get()) {
+            throw new IllegalStateException("Outputs must be added before the first sample is published");
+        }
+        outputs.add(output);
+    }
+
+    public boolean isStarted() {
+        return started.get();
+    }
+
+    public int getOutputCount() {
+        return outputs.size();
+    }
+
+    @Override
+    public void acceptSample(StreamingSample streamingSample, StreamingTrack streamingTrack) throws IOException {
+        started.compareAndSet(false, true);
+        int outputCount = outputs.size();
+        // each output releases pooled sample data once it has written the sample, so take a reference for each
+        Payload payload = streamingSample.getSampleExtension(Payload.class);
+        if (payload != null) {
+            if (outputCount == 0) {
+                payload.release();
+            } else if (outputCount > 1) {
+                payload.retain(outputCount - 1);
+            }
+        }
+        // a single output may use the sample as-is
+        StreamingSample sample = outputCount > 1 ? new SharedStreamingSample(streamingSample) : streamingSample;
+        int delivered = 0;
+        for (SampleSink output : outputs) {
+            delivered++;
+            try {
+                output.acceptSample(sample, streamingTrack);
+            } catch (IOException e) {
+                // one failed output (ie. a dropped live feed) must not take down the others
+                log.warn("Removing output {} after write failure", output, e);
+                outputs.remove(output);
+                closeQuietly(output);
+            }
+        }
+        // drop the references of outputs removed by the other track in the meantime
+        for (; payload != null && delivered < outputCount; delivered++) {
+            payload.release();
+        }
+    }
+
+    /**
+     * Closes all the outputs, which writes their remaining fragments.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (SampleSink output : outputs) {
+            try {
+                output.close();
+            } catch (IOException e) {
+                log.warn("Exception closing output {}", output, e);
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static void closeQuietly(SampleSink output) {
+        try {
+            output.close();
+        } catch (Exception e) {
+        }
+    }
+
+    /**
+     * Immutable sample shared between outputs. Each call to getContent returns a new view positioned at the start of
+     * the sample, so the outputs never disturb each others buffer positions.
+     */
+    private static class SharedStreamingSample implements StreamingSample {
+
+        private final StreamingSample sample;
+
+        private final ByteBuffer content;
+
+        SharedStreamingSample(StreamingSample sample) {
+            this.sample = sample;
+            this.content = sample.getContent().slice().asReadOnlyBuffer();
+        }
+
+        @Override
+        public ByteBuffer getContent() {
+            return content.duplicate();
+        }
+
+        @Override
+        public long getDuration() {
+            return sample.getDuration();
+        }
+
+        @Override
+        public <T extends SampleExtension> T getSampleExtension(Class<T> clazz) {
+            return sample.getSampleExtension(clazz);
+        }
+
+        @Override
+        public void addSampleExtension(SampleExtension sampleExtension) {
+            throw new UnsupportedOperationException("Shared samples are immutable");
+        }
+
+        @Override
+        public <T extends SampleExtension> T removeSampleExtension(Class<T> clazz) {
+            throw new UnsupportedOperationException("Shared samples are immutable");
+        }
+
+    }
+
+}
@@ -0,0 +1,419 @@
+package org.gregoire.debug;
+
+/**
+ * Health of a stream measured from its tags as they are written, so bad encoders show without running a probe: GOP
+ * length and key frame interval, frame rate against the configured one, bitrate per track, B-frames and reorder depth,
+ * and the skew between the audio and video timestamps.
+ * <br>
+ * Everything is computed incrementally in fixed memory; the windowed values come from one second buckets of media
+ * time, covering the completed seconds of the window. Fed by the publishing thread, queried from any.
+ *
+ * @author Paul Gregoire
+ */
+public class StreamHealth {
+
+    // slice types, modulo 5
+    static final int SLICE_P = 0, SLICE_B = 1, SLICE_I = 2;
+
+    private final int windowSeconds;
+
+    // per second of media time, indexed by second modulo the window
+    private final long[] bucketSecond, videoBytes, audioBytes;
+
+    private final int[] frames, bFrames, maxReorderDepth, maxSkew;
+
+    private double expectedFrameRate;
+
+    private long lastVideoTimestamp = -1L, lastAudioTimestamp = -1L, lastKeyFrameTimestamp = -1L;
+
+    // frames since the last key frame
+    private int framesSinceKeyFrame;
+
+    private int gopLength, keyFrameInterval, maxGopLength;
+
+    private long totalFrames, totalBFrames, keyFrames;
+
+    // frame duration in milliseconds, smoothed
+    private double frameDuration;
+
+    /**
+     * Creates the analytics with a ten second window.
+     */
+    public StreamHealth() {
+        this(10);
+    }
+
+    /**
+     * Creates the analytics.
+     *
+     * @param windowSeconds seconds of media time the bitrates, frame rate, reorder depth and skew are measured over
+     */
+    public StreamHealth(int windowSeconds) {
+        if (windowSeconds < 2) {
+            throw new IllegalArgumentException("The window must span at least two seconds");
+        }
+        this.windowSeconds = windowSeconds;
+        bucketSecond = new long[windowSeconds];
+        videoBytes = new long[windowSeconds];
+        audioBytes = new long[windowSeconds];
+        frames = new int[windowSeconds];
+        bFrames = new int[windowSeconds];
+        maxReorderDepth = new int[windowSeconds];
+        maxSkew = new int[windowSeconds];
+        reset();
+    }
+
+    /**
+     * Forgets the stream, for the next one.
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < windowSeconds; i++) {
+            clearBucket(i, -1L);
+        }
+        expectedFrameRate = 0d;
+        lastVideoTimestamp = -1L;
+        lastAudioTimestamp = -1L;
+        lastKeyFrameTimestamp = -1L;
+        framesSinceKeyFrame = 0;
+        gopLength = 0;
+        keyFrameInterval = 0;
+        maxGopLength = 0;
+        totalFrames = 0L;
+        totalBFrames = 0L;
+        keyFrames = 0L;
+        frameDuration = 0d;
+    }
+
+    /**
+     * Records a video frame.
+     *
+     * @param timestamp decode timestamp in milliseconds
+     * @param size bytes
+     * @param keyFrame whether it's a key frame
+     * @param compositionTime composition offset in milliseconds
+     * @param sliceType slice type of its first slice, modulo 5, or -1 if unknown
+     */
+    public synchronized void videoFrame(long timestamp, int size, boolean keyFrame, int compositionTime, int sliceType) {
+        if (lastVideoTimestamp >= 0L && timestamp > lastVideoTimestamp) {
+            long delta = timestamp - lastVideoTimestamp;
+            frameDuration = frameDuration == 0d ? delta : frameDuration * 0.9d + delta * 0.1d;
+        }
+        int bucket = bucket(timestamp);
+        videoBytes[bucket] += size;
+        frames[bucket]++;
+        totalFrames++;
+        if (sliceType == SLICE_B) {
+            bFrames[bucket]++;
+            totalBFrames++;
+        }
+        if (compositionTime > 0 && frameDuration > 0d) {
+            // frames decoded ahead of this one's presentation
+            int depth = (int) Math.round(compositionTime / frameDuration);
+            maxReorderDepth[bucket] = Math.max(maxReorderDepth[bucket], depth);
+        }
+        if (keyFrame) {
+            if (lastKeyFrameTimestamp >= 0L) {
+                gopLength = framesSinceKeyFrame;
+                maxGopLength = Math.max(maxGopLength, gopLength);
+                keyFrameInterval = (int) (timestamp - lastKeyFrameTimestamp);
+            }
+            lastKeyFrameTimestamp = timestamp;
+            framesSinceKeyFrame = 0;
+            keyFrames++;
+        }
+        framesSinceKeyFrame++;
+        lastVideoTimestamp = timestamp;
+        skew(bucket);
+    }
+
+    /**
+     * Records an audio frame.
+     *
+     * @param timestamp timestamp in milliseconds
+     * @param size bytes
+     */
+    public synchronized void audioFrame(long timestamp, int size) {
+        int bucket = bucket(timestamp);
+        audioBytes[bucket] += size;
+        lastAudioTimestamp = timestamp;
+        skew(bucket);
+    }
+
+    private void skew(int bucket) {
+        if (lastVideoTimestamp >= 0L && lastAudioTimestamp >= 0L) {
+            int skew = (int) Math.abs(lastVideoTimestamp - lastAudioTimestamp);
+            maxSkew[bucket] = Math.max(maxSkew[bucket], skew);
+        }
+    }
+
+    /**
+     * Returns the bucket of the timestamp's second, clearing it if it last held an earlier second.
+     */
+    private int bucket(long timestamp) {
+        long second = timestamp / 1000L;
+        int bucket = (int) (second % windowSeconds);
+        if (bucketSecond[bucket] != second) {
+            clearBucket(bucket, second);
+        }
+        return bucket;
+    }
+
+    private void clearBucket(int bucket, long second) {
+        bucketSecond[bucket] = second;
+        videoBytes[bucket] = 0L;
+        audioBytes[bucket] = 0L;
+        frames[bucket] = 0;
+        bFrames[bucket] = 0;
+        maxReorderDepth[bucket] = 0;
+        maxSkew[bucket] = 0;
+    }
+
+    /**
+     * Sums the values of the completed seconds of the window, those before the latest timestamp's second; gaps count as
+     * zero.
+     */
+    private long sum(long[] values) {
+        long latest = latestSecond(), sum = 0L;
+        for (int i = 0; i < windowSeconds; i++) {
+            if (bucketSecond[i] < latest && bucketSecond[i] > latest - windowSeconds) {
+                sum += values[i];
+            }
+        }
+        return sum;
+    }
+
+    private long sum(int[] values) {
+        long latest = latestSecond(), sum = 0L;
+        for (int i = 0; i < windowSeconds; i++) {
+            if (bucketSecond[i] < latest && bucketSecond[i] > latest - windowSeconds) {
+                sum += values[i];
+            }
+        }
+        return sum;
+    }
+
+    private int max(int[] values) {
+        long latest = latestSecond();
+        int max = 0;
+        for (int i = 0; i < windowSeconds; i++) {
+            if (bucketSecond[i] <= latest && bucketSecond[i] > latest - windowSeconds) {
+                max = Math.max(max, values[i]);
+            }
+        }
+        return max;
+    }
+
+    private long latestSecond() {
+        return Math.max(lastVideoTimestamp, lastAudioTimestamp) / 1000L;
+    }
+
+    /**
+     * Returns the number of completed seconds in the window, up to the window less the current second.
+     */
+    private long completedSeconds() {
+        long latest = latestSecond(), first = Long.MAX_VALUE;
+        for (int i = 0; i < windowSeconds; i++) {
+            if (bucketSecond[i] >= 0L && bucketSecond[i] > latest - windowSeconds) {
+                first = Math.min(first, bucketSecond[i]);
+            }
+        }
+        return first == Long.MAX_VALUE ? 0L : latest - first;
+    }
+
+    /**
+     * Sets the frame rate the stream is configured for, ie. from the video timescale and frame tick.
+     *
+     * @param expectedFrameRate frames per second
+     */
+    public synchronized void setExpectedFrameRate(double expectedFrameRate) {
+        this.expectedFrameRate = expectedFrameRate;
+    }
+
+    public synchronized double getExpectedFrameRate() {
+        return expectedFrameRate;
+    }
+
+    /**
+     * Returns the measured frame rate over the window.
+     *
+     * @return frames per second, 0 until a second is complete
+     */
+    public synchronized double getFrameRate() {
+        long seconds = completedSeconds();
+        return seconds > 0L ? (double) sum(frames) / seconds : 0d;
+    }
+
+    /**
+     * Returns the video bitrate over the window.
+     *
+     * @return bits per second
+     */
+    public synchronized long getVideoBitrate() {
+        long seconds = completedSeconds();
+        return seconds > 0L ? sum(videoBytes) * 8L / seconds : 0L;
+    }
+
+    /**
+     * Returns the audio bitrate over the window.
+     *
+     * @return bits per second
+     */
+    public synchronized long getAudioBitrate() {
+        long seconds = completedSeconds();
+        return seconds > 0L ? sum(audioBytes) * 8L / seconds : 0L;
+    }
+
+    /**
+     * Returns the number of frames in the last complete GOP, from one key frame to the next.
+     *
+     * @return frames, 0 until two key frames were seen
+     */
+    public synchronized int getGopLength() {
+        return gopLength;
+    }
+
+    public synchronized int getMaxGopLength() {
+        return maxGopLength;
+    }
+
+    /**
+     * Returns the time between the last two key frames.
+     *
+     * @return milliseconds, 0 until two key frames were seen
+     */
+    public synchronized int getKeyFrameInterval() {
+        return keyFrameInterval;
+    }
+
+    public synchronized long getKeyFrames() {
+        return keyFrames;
+    }
+
+    public synchronized long getFrames() {
+        return totalFrames;
+    }
+
+    public synchronized long getBFrames() {
+        return totalBFrames;
+    }
+
+    /**
+     * Returns the share of B-frames over the window.
+     *
+     * @return ratio from 0 to 1
+     */
+    public synchronized double getBFrameRatio() {
+        long count = sum(frames);
+        return count > 0L ? (double) sum(bFrames) / count : 0d;
+    }
+
+    /**
+     * Returns the deepest frame reordering over the window: how many frames, at most, are decoded ahead of a frame's
+     * presentation, from the composition offsets.
+     *
+     * @return frames
+     */
+    public synchronized int getReorderDepth() {
+        return max(maxReorderDepth);
+    }
+
+    /**
+     * Returns the difference between the latest audio and video timestamps.
+     *
+     * @return milliseconds, positive when video is ahead
+     */
+    public synchronized long getAvSkew() {
+        return lastVideoTimestamp >= 0L && lastAudioTimestamp >= 0L ? lastVideoTimestamp - lastAudioTimestamp : 0L;
+    }
+
+    /**
+     * Returns the largest difference between the audio and video timestamps over the window.
+     *
+     * @return milliseconds
+     */
+    public synchronized int getMaxAvSkew() {
+        return max(maxSkew);
+    }
+
+    /**
+     * Returns the slice type of a slice nal unit, parsed from the start of its header, or -1 if it's not a slice.
+     *
+     * @param nal nal unit with its header byte
+     * @return slice type modulo 5
+     */
+    static int sliceType(byte[] nal) {
+        int type = nal.length > 0 ? nal[0] & 0x1f : 0;
+        if (type < 1 || type > 5) {
+            return -1;
+        }
+        BitReader reader = new BitReader(nal);
+        // first_mb_in_slice, then slice_type
+        if (reader.readUe() < 0) {
+            return -1;
+        }
+        int sliceType = reader.readUe();
+        return sliceType < 0 ? -1 : sliceType % 5;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("StreamHealth [fps=%.2f/%.2f video=%dkbps audio=%dkbps gop=%d keyInterval=%dms bFrames=%.0f%% reorder=%d skew=%dms maxSkew=%dms]", getFrameRate(), expectedFrameRate, getVideoBitrate() / 1000L, getAudioBitrate() / 1000L, gopLength, keyFrameInterval, getBFrameRatio() * 100d, getReorderDepth(), getAvSkew(), getMaxAvSkew());
+    }
+
+    /**
+     * Reads exp-golomb codes from a nal unit after its header, skipping emulation prevention bytes.
+     */
+    private static final class BitReader {
+
+        final byte[] data;
+
+        int position = 1, bit, zeros;
+
+        int current;
+
+        BitReader(byte[] data) {
+            this.data = data;
+        }
+
+        int readBit() {
+            if (bit == 0) {
+                if (position >= data.length) {
+                    return -1;
+                }
+                current = data[position++] & 0xff;
+                if (zeros >= 2 && current == 3) {
+                    zeros = 0;
+                    if (position >= data.length) {
+                        return -1;
+                    }
+                    current = data[position++] & 0xff;
+                }
+                zeros = current == 0 ? zeros + 1 : 0;
+                bit = 8;
+            }
+            return (current >> --bit) & 1;
+        }
+
+        int readUe() {
+            int leadingZeros = 0, b;
+            while ((b = readBit()) == 0) {
+                if (++leadingZeros > 31) {
+                    return -1;
+                }
+            }
+            if (b < 0) {
+                return -1;
+            }
+            int value = 0;
+            for (int i = 0; i < leadingZeros; i++) {
+                if ((b = readBit()) < 0) {
+                    return -1;
+                }
+                value = value << 1 | b;
+            }
+            return (1 << leadingZeros) - 1 + value;
+        }
+
+    }
+
+}
@@ -0,0 +1,107 @@
+package org.gregoire.debug.capture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.red5.io.ITag;
+import org.red5.server.stream.consumer.ImmutableTag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the tags of a raw capture, as written by {@link TagCaptureWriter}. A capture cut short, ie. by a crash, ends
+ * at its last complete tag.
+ *
+ * @author Paul Gregoire
+ */
+public class TagCaptureReader implements Closeable {
+
+    private static Logger log = LoggerFactory.getLogger(TagCaptureReader.class);
+
+    private final Path path;
+
+    private final FileChannel channel;
+
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+    private boolean eof;
+
+    private long tagsRead;
+
+    public TagCaptureReader(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        buffer.flip();
+    }
+
+    /**
+     * Returns the next tag.
+     *
+     * @return tag or null at the end of the capture
+     * @throws IOException if the capture is corrupt
+     */
+    public ITag next() throws IOException {
+        if (!fill(TagCaptureWriter.HEADER_SIZE)) {
+            return null;
+        }
+        int tagLength = buffer.getInt(buffer.position());
+        byte dataType = buffer.get(buffer.position() + 4);
+        int timestamp = buffer.getInt(buffer.position() + 5);
+        int bodySize = buffer.getInt(buffer.position() + 9);
+        if (bodySize < 0 || tagLength != TagCaptureWriter.HEADER_SIZE - 4 + bodySize) {
+            throw new IOException("Corrupt capture " + path + " at tag " + tagsRead);
+        }
+        if (!fill(TagCaptureWriter.HEADER_SIZE + bodySize)) {
+            return null;
+        }
+        buffer.position(buffer.position() + TagCaptureWriter.HEADER_SIZE);
+        byte[] body = new byte[bodySize];
+        buffer.get(body);
+        tagsRead++;
+        return ImmutableTag.build(dataType, timestamp, body);
+    }
+
+    /**
+     * Reads until the given number of bytes is buffered.
+     *
+     * @return false if the capture ends first
+     */
+    private boolean fill(int length) throws IOException {
+        if (buffer.remaining() >= length) {
+            return true;
+        }
+        if (buffer.capacity() < length) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(length, buffer.capacity() * 2));
+            larger.put(buffer);
+            buffer = larger;
+        } else {
+            buffer.compact();
+        }
+        while (buffer.position() < length && !eof) {
+            eof = channel.read(buffer) < 0;
+        }
+        buffer.flip();
+        if (buffer.remaining() < length) {
+            if (buffer.hasRemaining()) {
+                log.info("Capture {} ends with a partial tag after {} tags", path, tagsRead);
+                buffer.position(buffer.limit());
+            }
+            return false;
+        }
+        return true;
+    }
+
+    public long getTagsRead() {
+        return tagsRead;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
@@ -0,0 +1,321 @@
+package org.gregoire.debug.capture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.red5.io.IStreamableFile;
+import org.red5.io.ITag;
+import org.red5.io.ITagWriter;
+import org.red5.media.processor.IPostProcessor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the tags of a stream in the raw capture format read by {@link TagCaptureReader}, so production traffic can be
+ * replayed locally. Each tag is written as its length (int, 9 + body size), data type (byte), timestamp (int), body size
+ * (int) and body.
+ * <p>
+ * The publishing thread only copies the tag into a buffer; a buffer is handed to a background thread shared by all
+ * captures once it's full, or when the next tag arrives after the flush interval. The publisher never waits on the
+ * disk: if every buffer is still waiting to be written, the tag is dropped and counted, unless the capture is set to
+ * wait for a buffer instead, ie. when recording faster than real time.
+ *
+ * @author Paul Gregoire
+ */
+public class TagCaptureWriter implements ITagWriter {
+
+    private static Logger log = LoggerFactory.getLogger(TagCaptureWriter.class);
+
+    // length, type, timestamp and body size
+    static final int HEADER_SIZE = 13;
+
+    /**
+     * Writes the buffers of all captures, in the order they were handed off.
+     */
+    private final static ExecutorService flusher = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "TagCapture-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Path path;
+
+    private final FileChannel channel;
+
+    private final int bufferSize;
+
+    // buffers ready to be filled
+    private final ArrayBlockingQueue<ByteBuffer> spare;
+
+    // buffer being filled, null until a spare one is taken
+    private ByteBuffer buffer;
+
+    // time the first tag went into the buffer, in nanoseconds
+    private long bufferStart;
+
+    private long flushInterval = TimeUnit.SECONDS.toNanos(1L);
+
+    private long bytesWritten;
+
+    private long droppedTags;
+
+    // whether to wait for a buffer rather than drop the tag
+    private volatile boolean waitWhenBehind;
+
+    private boolean closed;
+
+    // set by the flusher when a write fails, the capture stops there
+    private volatile IOException failure;
+
+    private CopyOnWriteArrayList<IPostProcessor> postProcessors = new CopyOnWriteArrayList<>();
+
+    /**
+     * Creates a capture with four 256 KiB buffers.
+     *
+     * @param path capture file
+     * @throws IOException
+     */
+    public TagCaptureWriter(Path path) throws IOException {
+        this(path, 256 * 1024, 4);
+    }
+
+    /**
+     * Creates a capture.
+     *
+     * @param path capture file
+     * @param bufferSize size of each buffer, larger tags are written from a buffer of their own
+     * @param buffers number of buffers, ie. how far the disk may fall behind before tags are dropped
+     * @throws IOException
+     */
+    public TagCaptureWriter(Path path, int bufferSize, int buffers) throws IOException {
+        this.path = path;
+        this.bufferSize = bufferSize;
+        spare = new ArrayBlockingQueue<>(buffers);
+        for (int i = 0; i < buffers; i++) {
+            spare.add(ByteBuffer.allocate(bufferSize));
+        }
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    @Override
+    public void writeHeader() throws IOException {
+        // no-op
+    }
+
+    @Override
+    public boolean writeStream(byte[] b) {
+        // not supported
+        return false;
+    }
+
+    @Override
+    public boolean writeTag(byte type, IoBuffer data) throws IOException {
+        // not supported, there's no timestamp
+        return false;
+    }
+
+    @Override
+    public synchronized boolean writeTag(ITag tag) throws IOException {
+        if (closed) {
+            throw new IOException("Capture " + path + " is closed");
+        }
+        if (failure != null) {
+            throw new IOException("Capture " + path + " failed", failure);
+        }
+        ByteBuffer body = body(tag);
+        int length = HEADER_SIZE + body.remaining();
+        long now = System.nanoTime();
+        if (buffer != null && (buffer.remaining() < length || now - bufferStart >= flushInterval)) {
+            handOff();
+        }
+        if (length > bufferSize) {
+            // rare, ie. a key frame of a high bitrate stream
+            ByteBuffer large = ByteBuffer.allocate(length);
+            put(large, tag, body);
+            large.flip();
+            flusher.execute(() -> write(large, false));
+        } else {
+            if (buffer == null) {
+                buffer = spare.poll();
+                if (buffer == null && waitWhenBehind) {
+                    try {
+                        buffer = spare.take();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                if (buffer == null) {
+                    if (droppedTags++ == 0L) {
+                        log.warn("Capture {} is falling behind, dropping tags", path);
+                    }
+                    return false;
+                }
+                bufferStart = now;
+            }
+            put(buffer, tag, body);
+        }
+        bytesWritten += length;
+        return true;
+    }
+
+    /**
+     * Returns the body of the tag without disturbing its position.
+     */
+    private static ByteBuffer body(ITag tag) {
+        IoBuffer body = tag.getBody();
+        if (body == null) {
+            return ByteBuffer.allocate(0);
+        }
+        ByteBuffer data = body.buf().duplicate();
+        data.position(0);
+        data.limit(Math.min(tag.getBodySize(), data.capacity()));
+        return data;
+    }
+
+    private static void put(ByteBuffer out, ITag tag, ByteBuffer body) {
+        out.putInt(HEADER_SIZE - 4 + body.remaining());
+        out.put(tag.getDataType());
+        out.putInt(tag.getTimestamp());
+        out.putInt(body.remaining());
+        out.put(body);
+    }
+
+    /**
+     * Passes the buffer being filled to the flusher.
+     */
+    private void handOff() {
+        ByteBuffer full = buffer;
+        buffer = null;
+        if (full != null) {
+            full.flip();
+            flusher.execute(() -> write(full, true));
+        }
+    }
+
+    /**
+     * Writes a buffer on the flusher thread and returns it to the spare buffers.
+     */
+    private void write(ByteBuffer data, boolean recycle) {
+        try {
+            if (failure == null) {
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Exception writing capture {}", path, e);
+            failure = e;
+        }
+        if (recycle) {
+            data.clear();
+            spare.offer(data);
+        }
+    }
+
+    /**
+     * Writes out the buffered tags without waiting for the buffer to fill.
+     */
+    public synchronized void flush() {
+        handOff();
+    }
+
+    /**
+     * Sets how long a tag may wait in the buffer before it's written out.
+     *
+     * @param flushInterval interval in milliseconds
+     */
+    public void setFlushInterval(long flushInterval) {
+        this.flushInterval = TimeUnit.MILLISECONDS.toNanos(flushInterval);
+    }
+
+    /**
+     * Sets whether the publisher waits for a buffer to be written when the disk falls behind, rather than dropping the
+     * tag. Off by default, so a slow disk never holds up a live stream.
+     *
+     * @param waitWhenBehind true to wait
+     */
+    public void setWaitWhenBehind(boolean waitWhenBehind) {
+        this.waitWhenBehind = waitWhenBehind;
+    }
+
+    /**
+     * Returns the number of tags dropped because the disk fell behind.
+     *
+     * @return tag count
+     */
+    public synchronized long getDroppedTags() {
+        return droppedTags;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Writes the buffered tags and closes the file, then hands it to any post processors.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            handOff();
+        }
+        try {
+            CompletableFuture.runAsync(() -> {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    log.warn("Exception closing capture {}", path, e);
+                }
+            }, flusher).get();
+        } catch (Exception e) {
+            log.warn("Exception at close", e);
+        }
+        long dropped = getDroppedTags();
+        if (dropped > 0L) {
+            log.info("Capture {} dropped {} tags", path, dropped);
+        }
+        for (IPostProcessor postProcessor : postProcessors) {
+            try {
+                postProcessor.init(path);
+                CompletableFuture.runAsync(postProcessor);
+            } catch (Exception e) {
+                log.warn("Exception submitting post processor: {}", postProcessor, e);
+            }
+        }
+    }
+
+    @Override
+    public void addPostProcessor(IPostProcessor postProcessor) {
+        postProcessors.add(postProcessor);
+    }
+
+    @Override
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public IStreamableFile getFile() {
+        return null;
+    }
+
+    @Override
+    public int getOffset() {
+        return 0;
+    }
+
+}
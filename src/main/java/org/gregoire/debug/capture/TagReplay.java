@@ -0,0 +1,125 @@
+package org.gregoire.debug.capture;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.gregoire.debug.MP4Writer;
+import org.gregoire.debug.load.PacedPublisher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replays raw captures into {@link MP4Writer}s, each from its own thread, to reproduce production load and timing
+ * locally. The tags are paced by their timestamps at the given speed, 1 for real time, or fed as fast as possible with a
+ * speed of 0.
+ * <pre>
+ * java org.gregoire.debug.capture.TagReplay -speed 4 -copies 10 -out target/replay capture1.dat capture2.dat
+ * </pre>
+ * Options: -speed x, -copies n (replays of each capture), -out dir.
+ *
+ * @author Paul Gregoire
+ */
+public class TagReplay {
+
+    private static Logger log = LoggerFactory.getLogger(TagReplay.class);
+
+    private double speed = 1d;
+
+    private int copies = 1;
+
+    private Path outputDirectory = Paths.get("target", "replay");
+
+    private final List<Path> captures = new ArrayList<>();
+
+    private PacedPublisher publisher;
+
+    // captures which couldn't be read
+    private final AtomicInteger failures = new AtomicInteger();
+
+    public static void main(String[] args) throws Exception {
+        TagReplay replay = new TagReplay();
+        replay.configure(args);
+        replay.run();
+    }
+
+    private void configure(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("-")) {
+                captures.add(Paths.get(arg));
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++i];
+            switch (arg) {
+                case "-speed":
+                    speed = Double.parseDouble(value);
+                    break;
+                case "-copies":
+                    copies = Integer.parseInt(value);
+                    break;
+                case "-out":
+                    outputDirectory = Paths.get(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        if (captures.isEmpty()) {
+            throw new IllegalArgumentException("No captures given");
+        }
+    }
+
+    private void run() throws Exception {
+        Files.createDirectories(outputDirectory);
+        int replays = captures.size() * copies;
+        publisher = new PacedPublisher(speed);
+        log.info("Replaying {} captures x {} {}", captures.size(), copies, speed > 0d ? "at " + speed + "x" : "as fast as possible");
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService publishers = Executors.newFixedThreadPool(replays, r -> new Thread(r, "TagReplay-" + threadCount.incrementAndGet()));
+        List<CompletableFuture<Void>> completions = new ArrayList<>();
+        long start = System.nanoTime();
+        for (Path capture : captures) {
+            String name = capture.getFileName().toString().replaceFirst("\\.[^.]*$", "");
+            for (int i = 0; i < copies; i++) {
+                Path path = outputDirectory.resolve(copies > 1 ? name + "-" + i + ".mp4" : name + ".mp4");
+                CompletableFuture<Void> completion = new CompletableFuture<>();
+                completions.add(completion);
+                publishers.submit(() -> {
+                    replay(capture, path, completion);
+                });
+            }
+        }
+        CompletableFuture.allOf(completions.toArray(new CompletableFuture<?>[0])).exceptionally(t -> null).join();
+        long wall = System.nanoTime() - start;
+        publishers.shutdown();
+        log.info("Replays: {} failures: {} rejected: {} tags: {} wall: {}s", replays, failures.get() + publisher.getFailures(), publisher.getRejected(), publisher.getTagsWritten(), String.format("%.2f", wall / 1e9d));
+        if (speed > 0d) {
+            log.info("Pacing: max lateness {}ms", publisher.getMaxLateness());
+        }
+    }
+
+    /**
+     * Feeds one capture to its writer and closes it, completing once the recording is finished.
+     */
+    private void replay(Path capture, Path path, CompletableFuture<Void> completion) {
+        try (TagCaptureReader reader = new TagCaptureReader(capture)) {
+            publisher.publish(path, reader::next, 5000L, completion);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Exception replaying {}", capture, e);
+            failures.incrementAndGet();
+            completion.complete(null);
+        }
+    }
+
+}
@@ -0,0 +1,492 @@
+package org.gregoire.debug.http;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mp4parser.streaming.output.mp4.SegmentCache;
+import org.mp4parser.streaming.output.mp4.TimeShiftBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Embedded non-blocking HTTP/1.1 server for the output of the writers, so edge tests need no separate web server. Live
+ * streams are served from the {@link SegmentCache} of their writer and finished recordings from a directory:
+ * <ul>
+ * <li>GET /live/{name}/init.mp4 - the init segment; the X-Start-Sequence header holds the fragment a player should
+ * fetch first, the start of the cached GOP</li>
+ * <li>GET /live/{name}/{sequence}.m4s - a fragment; a request for one of the next few fragments is held until it's
+ * written or the poll timeout passes</li>
+ * <li>GET /live/{name}.mp4 - the stream as one response, the init segment, the cached GOP and every fragment after it
+ * until the stream is removed</li>
+ * <li>GET /dvr/{name}/init.mp4?t={millis} - the init segment of a {@link TimeShiftBuffer}; X-Start-Sequence holds the
+ * random access fragment at or before the media time, or the first one kept without t, and X-Window-Start and
+ * X-Window-End the media times kept</li>
+ * <li>GET /dvr/{name}/{sequence}.m4s - a fragment kept in the time-shift buffer, from memory or its spill file</li>
+ * <li>GET /recordings/{path} - a file below the recording directory, with single byte ranges, sent with transferTo</li>
+ * </ul>
+ * Connections are spread over a few selector threads, by default half the cores up to four, and HEAD is supported
+ * everywhere.
+ * <pre>
+ * FragmentServer server = new FragmentServer(new InetSocketAddress(8080), Paths.get("recordings"));
+ * server.start();
+ * writer.setSegmentCache(cache);
+ * server.addStream("stream1", cache);
+ * </pre>
+ *
+ * @author Paul Gregoire
+ */
+public class FragmentServer implements AutoCloseable {
+
+    private static Logger log = LoggerFactory.getLogger(FragmentServer.class);
+
+    private static final String LIVE = "/live/", DVR = "/dvr/", RECORDINGS = "/recordings/";
+
+    private final InetSocketAddress address;
+
+    private final Path recordingDirectory;
+
+    private int selectorThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+
+    private volatile long pollTimeout = 10000L;
+
+    private volatile long idleTimeout = 30000L;
+
+    private volatile long maxStreamBacklog = 16L << 20;
+
+    private final ConcurrentHashMap<String, LiveStream> streams = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, TimeShiftBuffer> timeShifts = new ConcurrentHashMap<>();
+
+    private volatile ServerSocketChannel serverChannel;
+
+    private SelectorLoop[] loops;
+
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    /**
+     * @param address address to listen on, port 0 picks a free one
+     * @param recordingDirectory directory of the recordings or null to serve none
+     */
+    public FragmentServer(InetSocketAddress address, Path recordingDirectory) {
+        this.address = address;
+        this.recordingDirectory = recordingDirectory != null ? recordingDirectory.toAbsolutePath().normalize() : null;
+    }
+
+    /**
+     * Binds the server and starts the selector threads.
+     *
+     * @throws IOException if the address cannot be bound
+     */
+    public synchronized void start() throws IOException {
+        if (serverChannel != null) {
+            throw new IllegalStateException("Already started");
+        }
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address, 1024);
+        serverChannel.configureBlocking(false);
+        loops = new SelectorLoop[selectorThreads];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new SelectorLoop(this, "FragmentServer-" + i);
+            loops[i].start();
+        }
+        // the first loop accepts as well
+        SelectorLoop acceptor = loops[0];
+        acceptor.execute(() -> {
+            try {
+                serverChannel.register(acceptor.selector, SelectionKey.OP_ACCEPT);
+            } catch (IOException e) {
+                log.warn("Exception registering the server channel", e);
+            }
+        });
+        log.info("Serving fragments on {} with {} selector threads", serverChannel.getLocalAddress(), loops.length);
+    }
+
+    /**
+     * Accepts the pending connections, spreading them over the loops.
+     */
+    void accept() {
+        ServerSocketChannel server = serverChannel;
+        if (server == null) {
+            return;
+        }
+        try {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)].accept(channel);
+            }
+        } catch (IOException e) {
+            log.warn("Exception accepting", e);
+        }
+    }
+
+    /**
+     * Serves a live stream from a segment cache, replacing any stream of the same name.
+     *
+     * @param name stream name
+     * @param cache cache of the stream's writer
+     */
+    public void addStream(String name, SegmentCache cache) {
+        LiveStream previous = streams.put(name, new LiveStream(name, cache));
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Stops serving a live stream, ie. once its writer is closed.
+     *
+     * @param name stream name
+     */
+    public void removeStream(String name) {
+        LiveStream stream = streams.remove(name);
+        if (stream != null) {
+            stream.close();
+        }
+    }
+
+    /**
+     * Serves the time-shift buffer of a stream, replacing any of the same name.
+     *
+     * @param name stream name
+     * @param buffer time-shift buffer of the stream's writer
+     */
+    public void addTimeShift(String name, TimeShiftBuffer buffer) {
+        timeShifts.put(name, buffer);
+    }
+
+    /**
+     * Stops serving the time-shift buffer of a stream; the buffer is left open.
+     *
+     * @param name stream name
+     */
+    public void removeTimeShift(String name) {
+        timeShifts.remove(name);
+    }
+
+    /**
+     * Routes a request.
+     */
+    void handle(HttpConnection connection, HttpRequest request) throws IOException {
+        boolean head = "HEAD".equals(request.method);
+        if (!head && !"GET".equals(request.method)) {
+            connection.respondStatus(405, "Allow: GET, HEAD");
+            return;
+        }
+        String path, query;
+        try {
+            URI uri = new URI(request.target);
+            path = uri.getPath();
+            query = uri.getRawQuery();
+        } catch (URISyntaxException e) {
+            path = null;
+            query = null;
+        }
+        if (path == null) {
+            connection.respondStatus(400);
+        } else if (path.startsWith(LIVE)) {
+            handleLive(connection, request, path.substring(LIVE.length()), head);
+        } else if (path.startsWith(DVR)) {
+            handleTimeShift(connection, path.substring(DVR.length()), query, head);
+        } else if (path.startsWith(RECORDINGS) && recordingDirectory != null) {
+            handleRecording(connection, request, path.substring(RECORDINGS.length()), head);
+        } else {
+            connection.respondStatus(404);
+        }
+    }
+
+    private void handleLive(HttpConnection connection, HttpRequest request, String resource, boolean head) throws IOException {
+        int slash = resource.indexOf('/');
+        if (slash < 0) {
+            LiveStream stream = resource.endsWith(".mp4") ? streams.get(resource.substring(0, resource.length() - 4)) : null;
+            if (stream != null) {
+                connection.startStream(stream, head);
+            } else {
+                connection.respondStatus(404);
+            }
+            return;
+        }
+        LiveStream stream = streams.get(resource.substring(0, slash));
+        if (stream == null) {
+            connection.respondStatus(404);
+            return;
+        }
+        String name = resource.substring(slash + 1);
+        ByteBuffer segment = stream.find(name);
+        if (segment == null) {
+            // park before looking again so a segment written in between still wakes us
+            stream.addWaiter(connection);
+            segment = stream.find(name);
+            if (segment == null) {
+                connection.park(stream, request);
+                return;
+            }
+            stream.removeWaiter(connection);
+        }
+        if (segment == LiveStream.GONE) {
+            connection.respondStatus(404);
+        } else if ("init.mp4".equals(name)) {
+            connection.respond(200, "video/mp4", segment, head, "Cache-Control: no-cache", "X-Start-Sequence: " + stream.cache.getStartSequenceNumber());
+        } else {
+            connection.respond(200, "video/iso.segment", segment, head, "Cache-Control: max-age=60");
+        }
+    }
+
+    private void handleTimeShift(HttpConnection connection, String resource, String query, boolean head) throws IOException {
+        int slash = resource.indexOf('/');
+        TimeShiftBuffer buffer = slash > 0 ? timeShifts.get(resource.substring(0, slash)) : null;
+        if (buffer == null) {
+            connection.respondStatus(404);
+            return;
+        }
+        String name = resource.substring(slash + 1);
+        if ("init.mp4".equals(name)) {
+            ByteBuffer segment = buffer.getInitSegment();
+            long time = Long.MIN_VALUE;
+            String t = queryParameter(query, "t");
+            if (t != null) {
+                try {
+                    time = Long.parseLong(t);
+                } catch (NumberFormatException e) {
+                    connection.respondStatus(400);
+                    return;
+                }
+            }
+            long start = buffer.findSequenceNumber(time);
+            if (segment == null || start < 0L) {
+                connection.respondStatus(404);
+            } else {
+                connection.respond(200, "video/mp4", segment, head, "Cache-Control: no-cache", "X-Start-Sequence: " + start, "X-Window-Start: " + buffer.getStartTime(), "X-Window-End: " + buffer.getEndTime());
+            }
+        } else if (name.endsWith(".m4s")) {
+            ByteBuffer fragment;
+            try {
+                fragment = buffer.getFragment(Long.parseLong(name.substring(0, name.length() - 4)));
+            } catch (NumberFormatException e) {
+                fragment = null;
+            }
+            if (fragment != null) {
+                connection.respond(200, "video/iso.segment", fragment, head, "Cache-Control: max-age=60");
+            } else {
+                connection.respondStatus(404);
+            }
+        } else {
+            connection.respondStatus(404);
+        }
+    }
+
+    /**
+     * Returns the value of a query parameter, or null if absent; values are not decoded.
+     */
+    static String queryParameter(String query, String name) {
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                int equals = parameter.indexOf('=');
+                if (equals > 0 && parameter.substring(0, equals).equals(name)) {
+                    return parameter.substring(equals + 1);
+                }
+            }
+        }
+        return null;
+    }
+
+    private void handleRecording(HttpConnection connection, HttpRequest request, String relative, boolean head) throws IOException {
+        Path path = recordingDirectory.resolve(relative).normalize();
+        if (relative.isEmpty() || !path.startsWith(recordingDirectory) || !Files.isRegularFile(path)) {
+            connection.respondStatus(404);
+            return;
+        }
+        FileChannel file;
+        try {
+            file = FileChannel.open(path, StandardOpenOption.READ);
+        } catch (IOException e) {
+            log.debug("Exception opening {}", path, e);
+            connection.respondStatus(404);
+            return;
+        }
+        long size = file.size();
+        String range = request.getHeader("range");
+        long[] bounds = range != null ? parseRange(range, size) : null;
+        if (bounds == null) {
+            connection.respondFile(200, contentType(path), file, 0L, size, head, "Accept-Ranges: bytes");
+        } else if (bounds.length == 0) {
+            file.close();
+            connection.respondStatus(416, "Content-Range: bytes */" + size);
+        } else {
+            connection.respondFile(206, contentType(path), file, bounds[0], bounds[1], head, "Accept-Ranges: bytes", "Content-Range: bytes " + bounds[0] + '-' + (bounds[1] - 1) + '/' + size);
+        }
+    }
+
+    /**
+     * Parses a single byte range.
+     *
+     * @param range value of the Range header
+     * @param size size of the resource
+     * @return first byte and the byte after the last, an empty array if the range cannot be satisfied or null if the
+     *         header is to be ignored as malformed or asking for several ranges
+     */
+    static long[] parseRange(String range, long size) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = range.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        String first = spec.substring(0, dash).trim(), last = spec.substring(dash + 1).trim();
+        try {
+            long start, end;
+            if (first.isEmpty()) {
+                // the last n bytes
+                long suffix = Long.parseLong(last);
+                if (suffix < 0L) {
+                    return null;
+                }
+                if (suffix == 0L) {
+                    return new long[0];
+                }
+                start = Math.max(0L, size - suffix);
+                end = size;
+            } else {
+                start = Long.parseLong(first);
+                if (start < 0L) {
+                    return null;
+                }
+                if (last.isEmpty()) {
+                    end = size;
+                } else {
+                    long lastByte = Long.parseLong(last);
+                    if (lastByte < start) {
+                        return null;
+                    }
+                    end = Math.min(size, lastByte + 1L);
+                }
+            }
+            return start < size ? new long[] { start, end } : new long[0];
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String contentType(Path path) {
+        String name = path.getFileName().toString();
+        if (name.endsWith(".mp4")) {
+            return "video/mp4";
+        } else if (name.endsWith(".m4s")) {
+            return "video/iso.segment";
+        } else if (name.endsWith(".m4a")) {
+            return "audio/mp4";
+        }
+        return "application/octet-stream";
+    }
+
+    /**
+     * Stops the server, closing every connection.
+     */
+    @Override
+    public synchronized void close() {
+        for (String name : streams.keySet()) {
+            removeStream(name);
+        }
+        timeShifts.clear();
+        if (serverChannel != null) {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                log.debug("Exception closing the server channel", e);
+            }
+            for (SelectorLoop loop : loops) {
+                loop.shutdown();
+            }
+            serverChannel = null;
+        }
+    }
+
+    /**
+     * Returns the port listened on, useful when started on port 0.
+     *
+     * @return port or -1 when not started
+     */
+    public synchronized int getPort() {
+        return serverChannel != null ? serverChannel.socket().getLocalPort() : -1;
+    }
+
+    /**
+     * Returns the number of open connections.
+     *
+     * @return count
+     */
+    public synchronized int getConnectionCount() {
+        int count = 0;
+        if (loops != null) {
+            for (SelectorLoop loop : loops) {
+                count += loop.getConnectionCount();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Sets the number of selector threads, before the server is started.
+     *
+     * @param selectorThreads thread count
+     */
+    public synchronized void setSelectorThreads(int selectorThreads) {
+        if (serverChannel != null) {
+            throw new IllegalStateException("Already started");
+        }
+        this.selectorThreads = Math.max(1, selectorThreads);
+    }
+
+    /**
+     * Sets how long a request for a fragment yet to be written is held before it's answered with not found.
+     *
+     * @param pollTimeout timeout in milliseconds
+     */
+    public void setPollTimeout(long pollTimeout) {
+        this.pollTimeout = pollTimeout;
+    }
+
+    public long getPollTimeout() {
+        return pollTimeout;
+    }
+
+    /**
+     * Sets how long a connection may sit idle, or stalled on a response, before it's closed.
+     *
+     * @param idleTimeout timeout in milliseconds
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Sets how many bytes a client of a streamed response may fall behind before it's dropped.
+     *
+     * @param maxStreamBacklog bytes
+     */
+    public void setMaxStreamBacklog(long maxStreamBacklog) {
+        this.maxStreamBacklog = maxStreamBacklog;
+    }
+
+    public long getMaxStreamBacklog() {
+        return maxStreamBacklog;
+    }
+
+}
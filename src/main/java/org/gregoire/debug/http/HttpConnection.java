@@ -0,0 +1,483 @@
+package org.gregoire.debug.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mp4parser.streaming.output.mp4.SegmentCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A client connection, driven by its selector loop. Everything but the segment listener and {@link #wake()} runs on the
+ * loop thread. Responses are written with gathering writes straight from the cached segments and files are sent with
+ * transferTo, so the payload is not copied on the way out.
+ *
+ * @author Paul Gregoire
+ */
+class HttpConnection implements SegmentCache.SegmentListener {
+
+    private static Logger log = LoggerFactory.getLogger(HttpConnection.class);
+
+    private enum State {
+        READING, WRITING, WAITING, STREAMING, CLOSED
+    }
+
+    // largest request head accepted
+    private static final int MAX_HEAD = 8192;
+
+    // file bytes handed to the socket per transfer
+    private static final long TRANSFER_CHUNK = 1L << 20;
+
+    private final FragmentServer server;
+
+    private final SelectorLoop loop;
+
+    private final SocketChannel channel;
+
+    private final SelectionKey key;
+
+    private final ByteBuffer in = ByteBuffer.allocate(MAX_HEAD);
+
+    private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+
+    private FileChannel file;
+
+    private long filePosition, fileEnd;
+
+    private State state = State.READING;
+
+    private boolean keepAlive;
+
+    private long lastActivity = now();
+
+    // parked request and when it gives up
+    private HttpRequest waiting;
+
+    private LiveStream waitingOn;
+
+    private long waitDeadline;
+
+    // streamed response, fed from the writing thread
+    private LiveStream streaming;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> pending = new ConcurrentLinkedQueue<>();
+
+    private final AtomicLong backlog = new AtomicLong();
+
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    private volatile boolean streamEnded;
+
+    HttpConnection(FragmentServer server, SelectorLoop loop, SocketChannel channel, SelectionKey key) {
+        this.server = server;
+        this.loop = loop;
+        this.channel = channel;
+        this.key = key;
+    }
+
+    void handle() {
+        try {
+            if (key.isReadable()) {
+                read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                write();
+            }
+        } catch (IOException e) {
+            log.debug("Closing connection {}: {}", channel, e.toString());
+            close();
+        }
+    }
+
+    private void read() throws IOException {
+        int read = channel.read(in);
+        if (read < 0) {
+            close();
+            return;
+        }
+        if (read > 0) {
+            lastActivity = now();
+        }
+        process();
+    }
+
+    /**
+     * Handles the next request once its head is in.
+     */
+    private void process() throws IOException {
+        if (state != State.READING) {
+            return;
+        }
+        int end = headEnd();
+        if (end < 0) {
+            if (!in.hasRemaining()) {
+                keepAlive = false;
+                respondStatus(431);
+            }
+            return;
+        }
+        String head = new String(in.array(), 0, end, StandardCharsets.ISO_8859_1);
+        in.flip();
+        in.position(end + 4);
+        in.compact();
+        HttpRequest request;
+        try {
+            request = HttpRequest.parse(head);
+        } catch (IllegalArgumentException e) {
+            log.debug("Bad request from {}: {}", channel, e.getMessage());
+            keepAlive = false;
+            respondStatus(400);
+            return;
+        }
+        keepAlive = request.isKeepAlive() && !request.hasBody();
+        key.interestOps(0);
+        server.handle(this, request);
+    }
+
+    private int headEnd() {
+        byte[] bytes = in.array();
+        for (int i = 3; i < in.position(); i++) {
+            if (bytes[i] == '\n' && bytes[i - 1] == '\r' && bytes[i - 2] == '\n' && bytes[i - 3] == '\r') {
+                return i - 3;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Sends a response with a body held in memory.
+     *
+     * @param status status code
+     * @param contentType content type or null for none
+     * @param body body, not copied
+     * @param head whether the request was HEAD, leaving the body out
+     * @param headers additional header lines
+     */
+    void respond(int status, String contentType, ByteBuffer body, boolean head, String... headers) throws IOException {
+        out.add(responseHead(status, contentType, body.remaining(), headers));
+        if (!head && body.hasRemaining()) {
+            out.add(body);
+        }
+        state = State.WRITING;
+        write();
+    }
+
+    void respondStatus(int status, String... headers) throws IOException {
+        respond(status, null, LiveStream.GONE.duplicate(), true, headers);
+    }
+
+    /**
+     * Sends a region of a file, which is closed once sent.
+     *
+     * @param status status code
+     * @param contentType content type
+     * @param file open file
+     * @param start first byte
+     * @param end byte after the last
+     * @param head whether the request was HEAD, leaving the body out
+     * @param headers additional header lines
+     */
+    void respondFile(int status, String contentType, FileChannel file, long start, long end, boolean head, String... headers) throws IOException {
+        out.add(responseHead(status, contentType, end - start, headers));
+        if (head) {
+            file.close();
+        } else {
+            this.file = file;
+            filePosition = start;
+            fileEnd = end;
+        }
+        state = State.WRITING;
+        write();
+    }
+
+    /**
+     * Parks the request until the stream gets a new segment or the poll timeout passes.
+     *
+     * @param stream stream the segment belongs to
+     * @param request request to retry
+     */
+    void park(LiveStream stream, HttpRequest request) {
+        state = State.WAITING;
+        waiting = request;
+        waitingOn = stream;
+        waitDeadline = now() + server.getPollTimeout();
+    }
+
+    /**
+     * Called from the writing thread when the stream a request is parked on changed.
+     */
+    void wake() {
+        loop.execute(this::resume);
+    }
+
+    private void resume() {
+        if (state == State.WAITING) {
+            HttpRequest request = waiting;
+            waiting = null;
+            waitingOn = null;
+            state = State.READING;
+            try {
+                server.handle(this, request);
+            } catch (IOException e) {
+                log.debug("Closing connection {}: {}", channel, e.toString());
+                close();
+            }
+        }
+    }
+
+    /**
+     * Sends the stream as one response, the init segment, the cached GOP and every fragment after it, until the stream
+     * or the connection ends.
+     *
+     * @param stream stream
+     * @param head whether the request was HEAD, leaving the body out
+     */
+    void startStream(LiveStream stream, boolean head) throws IOException {
+        keepAlive = false;
+        ByteBuffer responseHead = responseHead(200, "video/mp4", -1L, "Cache-Control: no-cache");
+        if (head) {
+            out.add(responseHead);
+            state = State.WRITING;
+            write();
+            return;
+        }
+        state = State.STREAMING;
+        streaming = stream;
+        stream.addStreamer(this);
+        enqueue(responseHead);
+        stream.cache.subscribe(this);
+        if (stream.isClosed()) {
+            endStream();
+        }
+    }
+
+    @Override
+    public void initSegment(ByteBuffer segment) {
+        enqueue(segment);
+    }
+
+    @Override
+    public void fragment(long sequenceNumber, ByteBuffer fragment, boolean randomAccess) {
+        enqueue(fragment);
+    }
+
+    private void enqueue(ByteBuffer buffer) {
+        ByteBuffer slice = buffer.slice();
+        if (backlog.addAndGet(slice.limit()) > server.getMaxStreamBacklog()) {
+            if (!streamEnded) {
+                log.info("Client {} of {} fell {} bytes behind, dropping it", channel, streaming.name, backlog.get());
+                streamEnded = true;
+                loop.execute(this::close);
+            }
+            return;
+        }
+        pending.add(slice);
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flushPending);
+        }
+    }
+
+    private void flushPending() {
+        flushScheduled.set(false);
+        if (state == State.STREAMING) {
+            ByteBuffer buffer;
+            while ((buffer = pending.poll()) != null) {
+                out.add(buffer);
+            }
+            try {
+                write();
+            } catch (IOException e) {
+                log.debug("Closing connection {}: {}", channel, e.toString());
+                close();
+            }
+        }
+    }
+
+    /**
+     * Ends a streamed response once the queued fragments are written.
+     */
+    void endStream() {
+        streamEnded = true;
+        loop.execute(this::flushPending);
+    }
+
+    private void write() throws IOException {
+        while (!out.isEmpty()) {
+            long written = channel.write(out.toArray(new ByteBuffer[out.size()]));
+            if (written > 0L) {
+                lastActivity = now();
+            }
+            while (!out.isEmpty() && !out.peek().hasRemaining()) {
+                ByteBuffer buffer = out.poll();
+                if (state == State.STREAMING) {
+                    backlog.addAndGet(-buffer.limit());
+                }
+            }
+            if (!out.isEmpty()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+        while (file != null && filePosition < fileEnd) {
+            long sent = file.transferTo(filePosition, Math.min(TRANSFER_CHUNK, fileEnd - filePosition), channel);
+            if (sent == 0L) {
+                if (filePosition >= file.size()) {
+                    throw new IOException("File truncated while sending");
+                }
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            filePosition += sent;
+            lastActivity = now();
+        }
+        closeFile();
+        written();
+    }
+
+    /**
+     * Everything queued is written.
+     */
+    private void written() throws IOException {
+        switch (state) {
+            case STREAMING:
+                if (streamEnded && pending.isEmpty()) {
+                    close();
+                } else {
+                    key.interestOps(0);
+                }
+                break;
+            case WRITING:
+                if (!keepAlive) {
+                    close();
+                } else {
+                    state = State.READING;
+                    key.interestOps(SelectionKey.OP_READ);
+                    // a pipelined request may be waiting
+                    process();
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Answers parked requests whose poll timed out and closes idle or stalled connections.
+     *
+     * @param now current time in milliseconds
+     */
+    void checkTimeout(long now) {
+        try {
+            if (state == State.WAITING) {
+                if (now >= waitDeadline) {
+                    waitingOn.removeWaiter(this);
+                    waiting = null;
+                    waitingOn = null;
+                    respondStatus(404);
+                }
+            } else if (now - lastActivity > server.getIdleTimeout() && (state == State.READING || !out.isEmpty() || file != null)) {
+                log.debug("Closing idle connection {}", channel);
+                close();
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    void close() {
+        if (state == State.CLOSED) {
+            return;
+        }
+        state = State.CLOSED;
+        if (waitingOn != null) {
+            waitingOn.removeWaiter(this);
+            waitingOn = null;
+        }
+        if (streaming != null) {
+            streaming.cache.unsubscribe(this);
+            streaming.removeStreamer(this);
+            pending.clear();
+        }
+        closeFile();
+        out.clear();
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.debug("Exception closing {}", channel, e);
+        }
+        loop.remove(this);
+    }
+
+    private void closeFile() {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                log.debug("Exception closing file", e);
+            }
+            file = null;
+        }
+    }
+
+    /**
+     * @param contentLength length of the body or -1 when the connection's end delimits it
+     */
+    private ByteBuffer responseHead(int status, String contentType, long contentLength, String... headers) {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("HTTP/1.1 ").append(status).append(' ').append(reason(status)).append("\r\n");
+        if (contentType != null) {
+            sb.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        if (contentLength >= 0L) {
+            sb.append("Content-Length: ").append(contentLength).append("\r\n");
+        }
+        for (String header : headers) {
+            sb.append(header).append("\r\n");
+        }
+        if (!keepAlive) {
+            sb.append("Connection: close\r\n");
+        }
+        sb.append("\r\n");
+        return ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 200:
+                return "OK";
+            case 206:
+                return "Partial Content";
+            case 400:
+                return "Bad Request";
+            case 404:
+                return "Not Found";
+            case 405:
+                return "Method Not Allowed";
+            case 416:
+                return "Range Not Satisfiable";
+            case 431:
+                return "Request Header Fields Too Large";
+            default:
+                return "Unknown";
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    @Override
+    public String toString() {
+        return "HttpConnection [channel=" + channel + ", state=" + state + "]";
+    }
+
+}
@@ -0,0 +1,89 @@
+package org.gregoire.debug.http;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Request line and headers of an HTTP/1.x request.
+ *
+ * @author Paul Gregoire
+ */
+class HttpRequest {
+
+    final String method;
+
+    final String target;
+
+    final String version;
+
+    private final Map<String, String> headers;
+
+    private HttpRequest(String method, String target, String version, Map<String, String> headers) {
+        this.method = method;
+        this.target = target;
+        this.version = version;
+        this.headers = headers;
+    }
+
+    /**
+     * Parses the head of a request, up to but not including the blank line.
+     *
+     * @param head request line and header lines
+     * @return request
+     * @throws IllegalArgumentException if the request is malformed
+     */
+    static HttpRequest parse(String head) {
+        String[] lines = head.split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+            throw new IllegalArgumentException("Malformed request line: " + lines[0]);
+        }
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Malformed header: " + lines[i]);
+            }
+            headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT), lines[i].substring(colon + 1).trim());
+        }
+        return new HttpRequest(requestLine[0], requestLine[1], requestLine[2], headers);
+    }
+
+    /**
+     * @param name header name, lower case
+     * @return value or null if absent
+     */
+    String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    /**
+     * Whether the request carries a body, which none of the served methods accept.
+     *
+     * @return true if there is a body
+     */
+    boolean hasBody() {
+        String length = headers.get("content-length");
+        return headers.containsKey("transfer-encoding") || (length != null && !"0".equals(length));
+    }
+
+    /**
+     * Whether the connection stays open after the response, the default from HTTP/1.1 on.
+     *
+     * @return true to keep the connection
+     */
+    boolean isKeepAlive() {
+        String connection = headers.get("connection");
+        if ("HTTP/1.0".equals(version)) {
+            return "keep-alive".equalsIgnoreCase(connection);
+        }
+        return !"close".equalsIgnoreCase(connection);
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + target + " " + version;
+    }
+
+}
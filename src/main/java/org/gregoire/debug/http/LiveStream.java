@@ -0,0 +1,123 @@
+package org.gregoire.debug.http;
+
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.mp4parser.streaming.output.mp4.SegmentCache;
+
+/**
+ * A live stream served from the segment cache of its writer. Requests for segments which are about to be written are
+ * parked here and woken on the writing thread when the cache gets a new segment.
+ *
+ * @author Paul Gregoire
+ */
+class LiveStream implements SegmentCache.SegmentListener {
+
+    // returned by find for segments which will not come
+    static final ByteBuffer GONE = ByteBuffer.allocate(0);
+
+    // how far past the last written fragment a request may wait
+    private static final int POLL_AHEAD = 4;
+
+    final String name;
+
+    final SegmentCache cache;
+
+    private final Set<HttpConnection> waiters = ConcurrentHashMap.newKeySet();
+
+    // connections receiving the stream as one response
+    private final Set<HttpConnection> streamers = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean closed;
+
+    LiveStream(String name, SegmentCache cache) {
+        this.name = name;
+        this.cache = cache;
+        cache.subscribe(this);
+    }
+
+    /**
+     * Looks up a segment, init.mp4 or a fragment by sequence number, ie. 12.m4s.
+     *
+     * @param resource segment name
+     * @return segment, null if it's yet to be written or {@link #GONE} if it won't be served
+     */
+    ByteBuffer find(String resource) {
+        if (closed) {
+            return GONE;
+        }
+        if ("init.mp4".equals(resource)) {
+            return cache.getInitSegment();
+        }
+        if (resource.endsWith(".m4s")) {
+            long sequenceNumber;
+            try {
+                sequenceNumber = Long.parseLong(resource.substring(0, resource.length() - 4));
+            } catch (NumberFormatException e) {
+                return GONE;
+            }
+            ByteBuffer fragment = cache.getFragment(sequenceNumber);
+            if (fragment != null) {
+                return fragment;
+            }
+            long last = cache.getLastSequenceNumber();
+            if (sequenceNumber > last && sequenceNumber <= last + POLL_AHEAD) {
+                return null;
+            }
+        }
+        return GONE;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    void addWaiter(HttpConnection connection) {
+        waiters.add(connection);
+    }
+
+    void removeWaiter(HttpConnection connection) {
+        waiters.remove(connection);
+    }
+
+    void addStreamer(HttpConnection connection) {
+        streamers.add(connection);
+    }
+
+    void removeStreamer(HttpConnection connection) {
+        streamers.remove(connection);
+    }
+
+    @Override
+    public void initSegment(ByteBuffer segment) {
+        wakeWaiters();
+    }
+
+    @Override
+    public void fragment(long sequenceNumber, ByteBuffer fragment, boolean randomAccess) {
+        wakeWaiters();
+    }
+
+    private void wakeWaiters() {
+        for (HttpConnection connection : waiters) {
+            if (waiters.remove(connection)) {
+                connection.wake();
+            }
+        }
+    }
+
+    /**
+     * Stops serving the stream; parked requests are answered with not found and streamed responses end once their
+     * queued fragments are written.
+     */
+    void close() {
+        closed = true;
+        cache.unsubscribe(this);
+        wakeWaiters();
+        for (HttpConnection connection : streamers) {
+            connection.endStream();
+        }
+    }
+
+}
@@ -0,0 +1,166 @@
+package org.gregoire.debug.http;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One selector and the thread running it, serving the connections handed to it. Other threads reach the connections
+ * by queueing tasks with {@link #execute(Runnable)}.
+ *
+ * @author Paul Gregoire
+ */
+class SelectorLoop implements Runnable {
+
+    private static Logger log = LoggerFactory.getLogger(SelectorLoop.class);
+
+    // how often the connections are checked for timeouts, in milliseconds
+    private static final long TIMEOUT_CHECK_INTERVAL = 250L;
+
+    private final FragmentServer server;
+
+    final Selector selector;
+
+    private final Thread thread;
+
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    // only touched on the loop thread
+    private final Set<HttpConnection> connections = new HashSet<>();
+
+    private final AtomicInteger connectionCount = new AtomicInteger();
+
+    private volatile boolean running = true;
+
+    SelectorLoop(FragmentServer server, String name) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Runs a task on the loop thread.
+     *
+     * @param task task
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Takes over an accepted connection.
+     *
+     * @param channel connection
+     */
+    void accept(SocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                HttpConnection connection = new HttpConnection(server, this, channel, key);
+                key.attach(connection);
+                connections.add(connection);
+                connectionCount.incrementAndGet();
+            } catch (IOException e) {
+                log.debug("Exception registering {}", channel, e);
+                try {
+                    channel.close();
+                } catch (IOException ce) {
+                    // already broken
+                }
+            }
+        });
+    }
+
+    void remove(HttpConnection connection) {
+        if (connections.remove(connection)) {
+            connectionCount.decrementAndGet();
+        }
+    }
+
+    int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    @Override
+    public void run() {
+        long lastCheck = System.nanoTime() / 1000000L;
+        while (running) {
+            try {
+                selector.select(TIMEOUT_CHECK_INTERVAL);
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (Exception e) {
+                        log.warn("Exception in selector task", e);
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.attachment() instanceof HttpConnection) {
+                        ((HttpConnection) key.attachment()).handle();
+                    } else if (key.isAcceptable()) {
+                        server.accept();
+                    }
+                }
+                long now = System.nanoTime() / 1000000L;
+                if (now - lastCheck >= TIMEOUT_CHECK_INTERVAL) {
+                    lastCheck = now;
+                    for (HttpConnection connection : new ArrayList<>(connections)) {
+                        connection.checkTimeout(now);
+                    }
+                }
+            } catch (IOException e) {
+                log.warn("Exception in selector loop", e);
+            }
+        }
+        for (HttpConnection connection : new ArrayList<>(connections)) {
+            connection.close();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.debug("Exception closing selector", e);
+        }
+    }
+
+    /**
+     * Stops the loop, closing its connections, and waits for it.
+     */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(1000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
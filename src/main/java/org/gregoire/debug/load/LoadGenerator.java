@@ -0,0 +1,253 @@
+package org.gregoire.debug.load;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.gregoire.debug.MP4Writer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Drives any number of {@link MP4Writer}s with synthetic publishes to find how many streams a node can ingest. Each
+ * stream is fed from its own thread, either paced in real time as a live encoder would or as fast as possible. When
+ * done it reports the media processed per second of cpu, which is the number of real time streams a core sustains,
+ * along with heap and gc figures and the output throughput.
+ * <pre>
+ * java org.gregoire.debug.load.LoadGenerator -streams 50 -duration 60 -realtime -bframes 2 -out target/load
+ * </pre>
+ * Options: -streams n, -duration seconds, -realtime, -out dir, -keep (keep the recordings), -size WxH, -fps n,
+ * -gop frames, -bframes n, -idr bytes, -p bytes, -b bytes, -jitter fraction, -audio rate:channels:bytes.
+ *
+ * @author Paul Gregoire
+ */
+public class LoadGenerator {
+
+    private static Logger log = LoggerFactory.getLogger(LoadGenerator.class);
+
+    private int streams = 10;
+
+    private long duration = 30000L;
+
+    private boolean realtime;
+
+    private Path outputDirectory = Paths.get("target", "load");
+
+    private boolean keep;
+
+    private int width = 640, height = 480, fps = 25, gopSize = 50, bFrames;
+
+    private int idrSize = 20000, pSize = 4000, bSize = 1500;
+
+    private double sizeJitter = 0.2d;
+
+    private int audioSampleRate = 44100, audioChannels = 2, audioFrameSize = 256;
+
+    private PacedPublisher publisher;
+
+    private final AtomicLong peakHeap = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        generator.configure(args);
+        generator.run();
+    }
+
+    private void configure(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "-realtime":
+                    realtime = true;
+                    continue;
+                case "-keep":
+                    keep = true;
+                    continue;
+                default:
+                    break;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++i];
+            switch (arg) {
+                case "-streams":
+                    streams = Integer.parseInt(value);
+                    break;
+                case "-duration":
+                    duration = Long.parseLong(value) * 1000L;
+                    break;
+                case "-out":
+                    outputDirectory = Paths.get(value);
+                    break;
+                case "-size":
+                    String[] size = value.split("x");
+                    width = Integer.parseInt(size[0]);
+                    height = Integer.parseInt(size[1]);
+                    break;
+                case "-fps":
+                    fps = Integer.parseInt(value);
+                    break;
+                case "-gop":
+                    gopSize = Integer.parseInt(value);
+                    break;
+                case "-bframes":
+                    bFrames = Integer.parseInt(value);
+                    break;
+                case "-idr":
+                    idrSize = Integer.parseInt(value);
+                    break;
+                case "-p":
+                    pSize = Integer.parseInt(value);
+                    break;
+                case "-b":
+                    bSize = Integer.parseInt(value);
+                    break;
+                case "-jitter":
+                    sizeJitter = Double.parseDouble(value);
+                    break;
+                case "-audio":
+                    String[] audio = value.split(":");
+                    audioSampleRate = Integer.parseInt(audio[0]);
+                    audioChannels = Integer.parseInt(audio[1]);
+                    audioFrameSize = Integer.parseInt(audio[2]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        Files.createDirectories(outputDirectory);
+        log.info("Starting {} streams of {}s {} - {}x{}@{} gop {} b-frames {}", streams, duration / 1000L, realtime ? "in real time" : "as fast as possible", width, height, fps, gopSize, bFrames);
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "LoadGenerator-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(this::sampleHeap, 0L, 100L, TimeUnit.MILLISECONDS);
+        publisher = new PacedPublisher(realtime ? 1d : 0d);
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService publishers = Executors.newFixedThreadPool(streams, r -> new Thread(r, "LoadGenerator-" + threadCount.incrementAndGet()));
+        List<Path> paths = new ArrayList<>();
+        List<CompletableFuture<Void>> completions = new ArrayList<>();
+        long gcCount = gcCount(), gcTime = gcTime(), cpuStart = processCpuTime();
+        long start = System.nanoTime();
+        for (int i = 0; i < streams; i++) {
+            Path path = outputDirectory.resolve("load-" + i + ".mp4");
+            paths.add(path);
+            SyntheticStream stream = createStream(i);
+            CompletableFuture<Void> completion = new CompletableFuture<>();
+            completions.add(completion);
+            publishers.submit(() -> {
+                publisher.publish(path, () -> stream.next(duration), duration + 30000L, completion);
+            });
+        }
+        CompletableFuture.allOf(completions.toArray(new CompletableFuture<?>[0])).exceptionally(t -> null).join();
+        long wall = System.nanoTime() - start;
+        long cpu = processCpuTime() - cpuStart;
+        publishers.shutdown();
+        sampler.shutdown();
+        long outputBytes = 0L;
+        for (Path path : paths) {
+            if (Files.exists(path)) {
+                outputBytes += Files.size(path);
+                if (!keep) {
+                    Files.delete(path);
+                }
+            }
+        }
+        report(wall, cpu, gcCount(gcCount), gcTime(gcTime), outputBytes);
+    }
+
+    private SyntheticStream createStream(int index) {
+        SyntheticStream stream = new SyntheticStream(index);
+        stream.setSize(width, height);
+        stream.setFps(fps);
+        stream.setGopSize(gopSize);
+        stream.setBFrames(bFrames);
+        stream.setFrameSizes(idrSize, pSize, bSize, sizeJitter);
+        stream.setAudio(audioSampleRate, audioChannels, audioFrameSize);
+        return stream;
+    }
+
+    private void report(long wall, long cpu, long gcCount, long gcTime, long outputBytes) {
+        double wallSeconds = wall / 1e9d, mediaSeconds = streams * duration / 1000d;
+        int cores = Runtime.getRuntime().availableProcessors();
+        int rejected = publisher.getRejected();
+        // the media of the rejected streams was never processed
+        mediaSeconds = (streams - rejected) * duration / 1000d;
+        log.info("Streams: {} failures: {} tags: {} media: {}s wall: {}s", streams, publisher.getFailures(), publisher.getTagsWritten(), String.format("%.0f", mediaSeconds), String.format("%.2f", wallSeconds));
+        if (rejected > 0) {
+            log.info("Rejected: {} writers refused for lack of memory, capacity limit reached at {} concurrent streams", rejected, streams - rejected);
+        }
+        if (cpu > 0L) {
+            double cpuSeconds = cpu / 1e9d;
+            // one second of cpu handles this many seconds of media, ie. this many live streams per core
+            double perCore = mediaSeconds / cpuSeconds;
+            log.info("CPU: {}s ({} of {} cores busy) - sustainable streams per core: {} node estimate: {}", String.format("%.2f", cpuSeconds), String.format("%.2f", cpuSeconds / wallSeconds), cores, String.format("%.1f", perCore), String.format("%.0f", perCore * cores));
+        } else {
+            log.info("Process cpu time is not available, speed: {}x real time on {} cores", String.format("%.1f", mediaSeconds / wallSeconds), cores);
+        }
+        if (realtime) {
+            long maxLateness = publisher.getMaxLateness();
+            log.info("Pacing: max lateness {}ms{}", maxLateness, maxLateness > 1000L ? " - publishers fell behind, the node is saturated" : "");
+        }
+        log.info("Heap: peak used {}MB of {}MB max - gc: {} collections {}ms", peakHeap.get() >> 20, Runtime.getRuntime().maxMemory() >> 20, gcCount, gcTime);
+        log.info("Output: {}MB at {}MB/s", outputBytes >> 20, String.format("%.1f", outputBytes / wallSeconds / (1 << 20)));
+    }
+
+    private void sampleHeap() {
+        long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        peakHeap.accumulateAndGet(used, Math::max);
+    }
+
+    private static long gcCount() {
+        long count = 0L;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0L, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcCount(long since) {
+        return gcCount() - since;
+    }
+
+    private static long gcTime() {
+        long time = 0L;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0L, gc.getCollectionTime());
+        }
+        return time;
+    }
+
+    private static long gcTime(long since) {
+        return gcTime() - since;
+    }
+
+    /**
+     * Returns the cpu time used by the process in nanoseconds or zero where the jvm doesn't report it.
+     */
+    private static long processCpuTime() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return 0L;
+    }
+
+}
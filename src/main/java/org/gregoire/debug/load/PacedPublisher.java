@@ -0,0 +1,137 @@
+package org.gregoire.debug.load;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.gregoire.debug.MP4Writer;
+import org.red5.io.ITag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Feeds tags to writers as a publisher would, paced by their timestamps at the given speed, 1 for real time, or as fast
+ * as possible with a speed of 0, and counts what happened across all of them. A writer refused for lack of memory is
+ * counted as rejected rather than failed, it marks the capacity of the node.
+ *
+ * @author Paul Gregoire
+ */
+public class PacedPublisher {
+
+    private static Logger log = LoggerFactory.getLogger(PacedPublisher.class);
+
+    private final double speed;
+
+    // largest delay of a paced tag behind its schedule, in milliseconds
+    private final AtomicLong maxLateness = new AtomicLong();
+
+    private final AtomicLong tagsWritten = new AtomicLong();
+
+    private final AtomicInteger failures = new AtomicInteger();
+
+    private final AtomicInteger rejected = new AtomicInteger();
+
+    /**
+     * @param speed media speed, 1 for real time, 0 for as fast as possible
+     */
+    public PacedPublisher(double speed) {
+        this.speed = speed;
+    }
+
+    /**
+     * Writes the tags of a source to a new writer for the path and closes it. The completion is completed once the
+     * recording is finished, whatever happened to it, so a caller waiting on all of them never hangs.
+     *
+     * @param path recording path
+     * @param source tags in decode order
+     * @param closeTimeout time the tracks are given to drain on close, in milliseconds
+     * @param completion completed once the recording is finished
+     */
+    public void publish(Path path, TagSource source, long closeTimeout, CompletableFuture<Void> completion) {
+        MP4Writer writer = null;
+        try {
+            try {
+                writer = new MP4Writer(path, false);
+            } catch (IllegalStateException e) {
+                log.warn("Writer for {} rejected: {}", path, e.getMessage());
+                rejected.incrementAndGet();
+                return;
+            }
+            long start = System.nanoTime();
+            long first = -1L;
+            ITag tag;
+            while ((tag = source.next()) != null) {
+                if (speed > 0d) {
+                    if (first < 0L) {
+                        first = tag.getTimestamp();
+                    }
+                    long due = start + (long) (TimeUnit.MILLISECONDS.toNanos(tag.getTimestamp() - first) / speed), now = System.nanoTime();
+                    if (due > now) {
+                        TimeUnit.NANOSECONDS.sleep(due - now);
+                    } else {
+                        long lateness = TimeUnit.NANOSECONDS.toMillis(now - due);
+                        maxLateness.accumulateAndGet(lateness, Math::max);
+                    }
+                }
+                writer.writeTag(tag);
+                tagsWritten.incrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            log.warn("Publisher interrupted");
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException e) {
+            log.warn("Exception publishing to {}", path, e);
+            failures.incrementAndGet();
+        } finally {
+            if (writer == null) {
+                completion.complete(null);
+            } else {
+                writer.closeAsync(closeTimeout, TimeUnit.MILLISECONDS).whenComplete((v, t) -> {
+                    if (t != null) {
+                        log.warn("Recording {} did not close cleanly", path, t);
+                        failures.incrementAndGet();
+                    }
+                    completion.complete(null);
+                });
+            }
+        }
+    }
+
+    public long getMaxLateness() {
+        return maxLateness.get();
+    }
+
+    public long getTagsWritten() {
+        return tagsWritten.get();
+    }
+
+    public int getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Returns the number of writers refused for lack of memory.
+     *
+     * @return count
+     */
+    public int getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Source of the tags of one publish.
+     */
+    public interface TagSource {
+
+        /**
+         * @return next tag or null at the end
+         * @throws IOException
+         */
+        ITag next() throws IOException;
+
+    }
+
+}
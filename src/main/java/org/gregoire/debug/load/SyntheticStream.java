@@ -0,0 +1,375 @@
+package org.gregoire.debug.load;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.gregoire.debug.MP4Writer;
+import org.mp4parser.streaming.input.aac.AACStreamingTrack;
+import org.red5.io.ITag;
+import org.red5.server.stream.consumer.ImmutableTag;
+
+/**
+ * Synthesizes the FLV tags of an AAC and AVC publish, as an RTMP encoder would send them: the sequence headers
+ * followed by interleaved audio and video tags in decode order. The video has a valid SPS, PPS and slice headers, so it
+ * passes through the nal parsing and picture order handling of {@link MP4Writer}, while the slice data is filler of the
+ * configured sizes. With B-frames the stream uses Main profile and sets the composition time offset of each tag.
+ *
+ * @author Paul Gregoire
+ */
+public class SyntheticStream {
+
+    // silent aac lc raw data blocks, one single channel element or one channel pair element
+    private static final byte[] SILENCE_MONO = { 0x00, (byte) 0xc8, 0x00, (byte) 0x80, 0x23, (byte) 0x80 };
+
+    private static final byte[] SILENCE_STEREO = { 0x21, 0x00, 0x49, (byte) 0x90, 0x02, 0x19, 0x00, 0x23, (byte) 0x80 };
+
+    // filler for the slice and audio data, shared so generating tags costs little beyond the copy
+    private static final byte[] FILLER = new byte[1 << 20];
+
+    static {
+        Random random = new Random(0);
+        for (int i = 0; i < FILLER.length; i++) {
+            // no zero bytes, so the filler never looks like a start code
+            FILLER[i] = (byte) (1 + random.nextInt(255));
+        }
+    }
+
+    private int width = 640;
+
+    private int height = 480;
+
+    private int fps = 25;
+
+    // frames from one idr to the next
+    private int gopSize = 50;
+
+    // b-frames between reference frames
+    private int bFrames;
+
+    private int idrSize = 20000;
+
+    private int pSize = 4000;
+
+    private int bSize = 1500;
+
+    // +/- fraction by which the frame sizes vary
+    private double sizeJitter = 0.2d;
+
+    private int audioSampleRate = 44100;
+
+    private int audioChannels = 2;
+
+    private int audioFrameSize = 256;
+
+    private final Random random;
+
+    // decode order of the frames of a gop, as display indexes
+    private int[] gopOrder;
+
+    private byte[] sps, pps;
+
+    private int configTagsSent;
+
+    private long videoFrames, audioFrames;
+
+    // number of reference frames decoded so far in the gop, gives the frame_num
+    private int refFrames;
+
+    private int idrPicId;
+
+    public SyntheticStream(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * Returns the next tag in timestamp order.
+     *
+     * @param duration duration of the stream in milliseconds
+     * @return tag or null when the duration has been reached
+     */
+    public ITag next(long duration) {
+        if (gopOrder == null) {
+            start();
+        }
+        if (configTagsSent == 0) {
+            configTagsSent++;
+            return ImmutableTag.build(ITag.TYPE_VIDEO, 0, videoConfig());
+        }
+        if (configTagsSent == 1) {
+            configTagsSent++;
+            return ImmutableTag.build(ITag.TYPE_AUDIO, 0, audioConfig());
+        }
+        long videoTs = videoFrames * 1000L / fps;
+        long audioTs = audioFrames * 1024L * 1000L / audioSampleRate;
+        if (videoTs >= duration && audioTs >= duration) {
+            return null;
+        }
+        if (videoTs <= audioTs && videoTs < duration) {
+            return ImmutableTag.build(ITag.TYPE_VIDEO, (int) videoTs, videoFrame());
+        }
+        return ImmutableTag.build(ITag.TYPE_AUDIO, (int) audioTs, audioFrame());
+    }
+
+    private void start() {
+        // display indexes in decode order: the idr, then each reference frame followed by the b-frames shown before it
+        List<Integer> order = new ArrayList<>();
+        order.add(0);
+        for (int d = 1; d < gopSize;) {
+            int p = Math.min(d + bFrames, gopSize - 1);
+            order.add(p);
+            for (int b = d; b < p; b++) {
+                order.add(b);
+            }
+            d = p + 1;
+        }
+        gopOrder = new int[order.size()];
+        for (int i = 0; i < gopOrder.length; i++) {
+            gopOrder[i] = order.get(i);
+        }
+        sps = createSps();
+        pps = createPps();
+    }
+
+    private byte[] videoConfig() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0x17);
+        out.write(0); // sequence header
+        writeInt24(out, 0);
+        // avc decoder configuration record
+        out.write(1);
+        out.write(sps[1]);
+        out.write(sps[2]);
+        out.write(sps[3]);
+        out.write(0xff);
+        out.write(0xe1);
+        out.write(sps.length >> 8);
+        out.write(sps.length);
+        out.write(sps, 0, sps.length);
+        out.write(1);
+        out.write(pps.length >> 8);
+        out.write(pps.length);
+        out.write(pps, 0, pps.length);
+        return out.toByteArray();
+    }
+
+    private byte[] audioConfig() {
+        // audio specific config: aac lc, frequency index, channels
+        int frequencyIndex = AACStreamingTrack.samplingFrequencyIndexMap.get(audioSampleRate);
+        int config = (2 << 11) | (frequencyIndex << 7) | (audioChannels << 3);
+        return new byte[] { (byte) 0xaf, 0, (byte) (config >> 8), (byte) config };
+    }
+
+    private byte[] audioFrame() {
+        audioFrames++;
+        byte[] silence = audioChannels == 1 ? SILENCE_MONO : SILENCE_STEREO;
+        byte[] body = new byte[2 + Math.max(silence.length, audioFrameSize)];
+        body[0] = (byte) 0xaf;
+        body[1] = 1;
+        System.arraycopy(silence, 0, body, 2, silence.length);
+        fill(body, 2 + silence.length, body.length);
+        return body;
+    }
+
+    private byte[] videoFrame() {
+        long frame = videoFrames++;
+        int inGop = (int) (frame % gopSize), gop = (int) (frame / gopSize);
+        int display = gopOrder[inGop];
+        boolean idr = inGop == 0, reference = idr || display > 0 && (display == gopSize - 1 || display % (bFrames + 1) == 0);
+        if (idr) {
+            refFrames = 0;
+        }
+        // dts is the decode position, pts the display position, shifted a frame when b-frames are reordered
+        long dts = frame * 1000L / fps;
+        long pts = ((long) gop * gopSize + display + (bFrames > 0 ? 1 : 0)) * 1000L / fps;
+        byte[] nal = slice(idr, reference, display);
+        if (reference) {
+            refFrames++;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(nal.length + 9);
+        out.write(idr ? 0x17 : 0x27);
+        out.write(1); // nalu
+        writeInt24(out, (int) (pts - dts));
+        out.write(nal.length >>> 24);
+        out.write(nal.length >> 16);
+        out.write(nal.length >> 8);
+        out.write(nal.length);
+        out.write(nal, 0, nal.length);
+        return out.toByteArray();
+    }
+
+    private byte[] slice(boolean idr, boolean reference, int display) {
+        BitWriter bits = new BitWriter();
+        // nal_ref_idc 3 for idr, 2 for p and 0 for b-frames, which are not used for reference
+        bits.u(idr ? 0x65 : reference ? 0x41 : 0x01, 8);
+        bits.ue(0); // first_mb_in_slice
+        bits.ue(idr ? 7 : reference ? 5 : 6); // slice_type
+        bits.ue(0); // pic_parameter_set_id
+        bits.u(refFrames & 0xf, 4); // frame_num
+        if (idr) {
+            bits.ue(idrPicId++ & 0xffff);
+        }
+        bits.u((display * 2) & 0xff, 8); // pic_order_cnt_lsb
+        byte[] header = bits.trailing();
+        int size = idr ? idrSize : reference ? pSize : bSize;
+        size = Math.max(header.length + 1, (int) (size * (1d + sizeJitter * (2d * random.nextDouble() - 1d))));
+        byte[] nal = new byte[size];
+        System.arraycopy(header, 0, nal, 0, header.length);
+        fill(nal, header.length, nal.length);
+        return nal;
+    }
+
+    private byte[] createSps() {
+        int mbWidth = (width + 15) / 16, mbHeight = (height + 15) / 16;
+        BitWriter bits = new BitWriter();
+        bits.u(0x67, 8);
+        bits.u(bFrames > 0 ? 77 : 66, 8); // main profile for b-frames, else baseline
+        bits.u(0, 8); // constraint flags
+        bits.u(31, 8); // level 3.1
+        bits.ue(0); // seq_parameter_set_id
+        bits.ue(0); // log2_max_frame_num_minus4
+        bits.ue(0); // pic_order_cnt_type
+        bits.ue(4); // log2_max_pic_order_cnt_lsb_minus4
+        bits.ue(bFrames > 0 ? 2 : 1); // max_num_ref_frames
+        bits.u(0, 1); // gaps_in_frame_num_value_allowed_flag
+        bits.ue(mbWidth - 1);
+        bits.ue(mbHeight - 1);
+        bits.u(1, 1); // frame_mbs_only_flag
+        bits.u(1, 1); // direct_8x8_inference_flag
+        if (mbWidth * 16 != width || mbHeight * 16 != height) {
+            // crop to the picture size, in 4:2:0 units of two
+            bits.u(1, 1);
+            bits.ue(0);
+            bits.ue((mbWidth * 16 - width) / 2);
+            bits.ue(0);
+            bits.ue((mbHeight * 16 - height) / 2);
+        } else {
+            bits.u(0, 1);
+        }
+        bits.u(0, 1); // vui_parameters_present_flag
+        return bits.trailing();
+    }
+
+    private byte[] createPps() {
+        BitWriter bits = new BitWriter();
+        bits.u(0x68, 8);
+        bits.ue(0); // pic_parameter_set_id
+        bits.ue(0); // seq_parameter_set_id
+        bits.u(0, 1); // entropy_coding_mode_flag
+        bits.u(0, 1); // bottom_field_pic_order_in_frame_present_flag
+        bits.ue(0); // num_slice_groups_minus1
+        bits.ue(0); // num_ref_idx_l0_default_active_minus1
+        bits.ue(0); // num_ref_idx_l1_default_active_minus1
+        bits.u(0, 1); // weighted_pred_flag
+        bits.u(0, 2); // weighted_bipred_idc
+        bits.ue(0); // pic_init_qp_minus26
+        bits.ue(0); // pic_init_qs_minus26
+        bits.ue(0); // chroma_qp_index_offset
+        bits.u(1, 1); // deblocking_filter_control_present_flag
+        bits.u(0, 1); // constrained_intra_pred_flag
+        bits.u(0, 1); // redundant_pic_cnt_present_flag
+        return bits.trailing();
+    }
+
+    private void fill(byte[] dest, int from, int to) {
+        int length = to - from;
+        while (length > 0) {
+            int chunk = Math.min(length, FILLER.length);
+            System.arraycopy(FILLER, random.nextInt(FILLER.length - chunk + 1), dest, from, chunk);
+            from += chunk;
+            length -= chunk;
+        }
+    }
+
+    private static void writeInt24(ByteArrayOutputStream out, int value) {
+        out.write(value >> 16);
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    public long getVideoFrames() {
+        return videoFrames;
+    }
+
+    public long getAudioFrames() {
+        return audioFrames;
+    }
+
+    public void setSize(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    public void setFps(int fps) {
+        this.fps = fps;
+    }
+
+    public void setGopSize(int gopSize) {
+        this.gopSize = gopSize;
+    }
+
+    public void setBFrames(int bFrames) {
+        this.bFrames = bFrames;
+    }
+
+    /**
+     * Sets the frame sizes in bytes.
+     *
+     * @param idrSize idr frame size
+     * @param pSize p-frame size
+     * @param bSize b-frame size
+     * @param sizeJitter fraction, plus or minus, by which the sizes vary
+     */
+    public void setFrameSizes(int idrSize, int pSize, int bSize, double sizeJitter) {
+        this.idrSize = idrSize;
+        this.pSize = pSize;
+        this.bSize = bSize;
+        this.sizeJitter = sizeJitter;
+    }
+
+    public void setAudio(int audioSampleRate, int audioChannels, int audioFrameSize) {
+        this.audioSampleRate = audioSampleRate;
+        this.audioChannels = audioChannels;
+        this.audioFrameSize = audioFrameSize;
+    }
+
+    /**
+     * Writes the bits of the parameter sets and slice headers.
+     */
+    private static class BitWriter {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        private int current, count;
+
+        void u(long value, int bits) {
+            for (int i = bits - 1; i >= 0; i--) {
+                current = (current << 1) | (int) ((value >> i) & 1);
+                if (++count == 8) {
+                    out.write(current);
+                    current = 0;
+                    count = 0;
+                }
+            }
+        }
+
+        // exp-golomb
+        void ue(int value) {
+            int x = value + 1, length = 32 - Integer.numberOfLeadingZeros(x);
+            u(0, length - 1);
+            u(x, length);
+        }
+
+        // the rbsp stop bit and alignment
+        byte[] trailing() {
+            u(1, 1);
+            while (count != 0) {
+                u(0, 1);
+            }
+            return out.toByteArray();
+        }
+
+    }
+
+}
@@ -0,0 +1,488 @@
+package org.gregoire.debug.processor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.mp4parser.Box;
+import org.mp4parser.IsoFile;
+import org.mp4parser.boxes.iso14496.part12.ChunkOffset64BitBox;
+import org.mp4parser.boxes.iso14496.part12.ChunkOffsetBox;
+import org.mp4parser.boxes.iso14496.part12.CompositionTimeToSample;
+import org.mp4parser.boxes.iso14496.part12.MediaHeaderBox;
+import org.mp4parser.boxes.iso14496.part12.MediaInformationBox;
+import org.mp4parser.boxes.iso14496.part12.MovieBox;
+import org.mp4parser.boxes.iso14496.part12.MovieExtendsBox;
+import org.mp4parser.boxes.iso14496.part12.MovieFragmentBox;
+import org.mp4parser.boxes.iso14496.part12.MovieHeaderBox;
+import org.mp4parser.boxes.iso14496.part12.SampleFlags;
+import org.mp4parser.boxes.iso14496.part12.SampleSizeBox;
+import org.mp4parser.boxes.iso14496.part12.SampleTableBox;
+import org.mp4parser.boxes.iso14496.part12.SampleToChunkBox;
+import org.mp4parser.boxes.iso14496.part12.StaticChunkOffsetBox;
+import org.mp4parser.boxes.iso14496.part12.SyncSampleBox;
+import org.mp4parser.boxes.iso14496.part12.TimeToSampleBox;
+import org.mp4parser.boxes.iso14496.part12.TrackBox;
+import org.mp4parser.boxes.iso14496.part12.TrackExtendsBox;
+import org.mp4parser.boxes.iso14496.part12.TrackFragmentBaseMediaDecodeTimeBox;
+import org.mp4parser.boxes.iso14496.part12.TrackFragmentBox;
+import org.mp4parser.boxes.iso14496.part12.TrackFragmentHeaderBox;
+import org.mp4parser.boxes.iso14496.part12.TrackRunBox;
+import org.mp4parser.tools.ByteBufferByteChannel;
+import org.mp4parser.tools.IsoTypeWriter;
+import org.red5.media.processor.IPostProcessor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Rewrites a finished fragmented MP4 into a progressive MP4 with the moov box first.
+ * <br>
+ * Only the moov and moof boxes are read into memory; the sample tables are built from the track fragment headers and
+ * the media payloads are copied from the source mdat boxes with FileChannel.transferTo, so the conversion costs about
+ * one sequential pass of I/O.
+ *
+ * @author Paul Gregoire
+ */
+public class MP4FaststartPostProcessor implements IPostProcessor {
+
+    private static Logger log = LoggerFactory.getLogger(MP4FaststartPostProcessor.class);
+
+    // size of a box header without / with a 64 bit largesize
+    private static final int BOX_HEADER_SIZE = 8, LARGE_BOX_HEADER_SIZE = 16;
+
+    private Path source;
+
+    private Path destination;
+
+    /**
+     * Initializes the processor. The first argument is the fragmented source as a File, Path or String; the optional
+     * second argument is the destination. When no destination is given, the source is replaced.
+     */
+    @Override
+    public void init(Object... objs) {
+        if (objs != null && objs.length > 0) {
+            source = toPath(objs[0]);
+            destination = objs.length > 1 ? toPath(objs[1]) : source;
+        }
+    }
+
+    @Override
+    public void run() {
+        if (source == null) {
+            log.warn("Faststart post-processor was not initialized with a source file");
+            return;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            process();
+            log.info("Faststart conversion of {} completed in {} ms", source, (System.currentTimeMillis() - start));
+        } catch (Exception e) {
+            log.warn("Faststart conversion of {} failed", source, e);
+        }
+    }
+
+    /**
+     * Performs the conversion.
+     *
+     * @throws IOException
+     */
+    public void process() throws IOException {
+        Path temp = destination.resolveSibling(destination.getFileName() + ".faststart");
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            ByteBuffer ftyp = null;
+            MovieBox moov = null;
+            Map<Long, TrackTable> tables = new LinkedHashMap<>();
+            Map<Long, TrackExtendsBox> trexs = new LinkedHashMap<>();
+            // walk the top level boxes, reading only the small header boxes into memory
+            ByteBuffer header = ByteBuffer.allocate(LARGE_BOX_HEADER_SIZE);
+            long position = 0, fileSize = in.size();
+            while (position + BOX_HEADER_SIZE <= fileSize) {
+                header.clear().limit(BOX_HEADER_SIZE);
+                readFully(in, header, position);
+                header.flip();
+                long size = header.getInt() & 0xffffffffL;
+                String type = IsoFile.bytesToFourCC(new byte[] { header.get(), header.get(), header.get(), header.get() });
+                int headerSize = BOX_HEADER_SIZE;
+                if (size == 1) {
+                    header.clear().limit(8);
+                    readFully(in, header, position + BOX_HEADER_SIZE);
+                    header.flip();
+                    size = header.getLong();
+                    headerSize = LARGE_BOX_HEADER_SIZE;
+                } else if (size == 0) {
+                    size = fileSize - position;
+                }
+                if (size < headerSize || position + size > fileSize) {
+                    log.warn("Truncated {} box at {}, ignoring the remainder of {}", type, position, source);
+                    break;
+                }
+                switch (type) {
+                    case "ftyp":
+                        ftyp = readBox(in, position, size);
+                        break;
+                    case "moov":
+                        moov = parse(readBox(in, position, size)).getMovieBox();
+                        for (TrackExtendsBox trex : moov.getBoxes(TrackExtendsBox.class, true)) {
+                            trexs.put(trex.getTrackId(), trex);
+                        }
+                        break;
+                    case "moof":
+                        if (moov == null) {
+                            throw new IOException("moof found before moov in " + source);
+                        }
+                        for (MovieFragmentBox moof : parse(readBox(in, position, size)).getBoxes(MovieFragmentBox.class)) {
+                            addFragment(moof, position, trexs, tables);
+                        }
+                        break;
+                    default:
+                        // mdat payloads are located via the track runs; mfra and anything else is dropped
+                        break;
+                }
+                position += size;
+            }
+            if (ftyp == null || moov == null) {
+                throw new IOException("Not a fragmented MP4: " + source);
+            }
+            // order the chunks as they appear in the source so the output keeps the original interleave
+            List<Chunk> chunks = new ArrayList<>();
+            for (TrackTable table : tables.values()) {
+                chunks.addAll(table.chunks);
+            }
+            chunks.sort((a, b) -> Long.compare(a.sourceOffset, b.sourceOffset));
+            long payloadSize = 0;
+            for (Chunk chunk : chunks) {
+                payloadSize += chunk.length;
+            }
+            int mdatHeaderSize = payloadSize + BOX_HEADER_SIZE > 0xffffffffL ? LARGE_BOX_HEADER_SIZE : BOX_HEADER_SIZE;
+            // build the moov once to learn its size, then again if 32 bit chunk offsets do not suffice
+            boolean largeOffsets = false;
+            long moovSize = rebuildMovieBox(moov, tables, largeOffsets);
+            if (ftyp.remaining() + moovSize + mdatHeaderSize + payloadSize > 0xffffffffL) {
+                largeOffsets = true;
+                moovSize = rebuildMovieBox(moov, tables, largeOffsets);
+            }
+            long offset = ftyp.remaining() + moovSize + mdatHeaderSize;
+            for (Chunk chunk : chunks) {
+                chunk.destinationOffset = offset;
+                offset += chunk.length;
+            }
+            for (TrackTable table : tables.values()) {
+                table.chunkOffsetBox.setChunkOffsets(table.chunkOffsets());
+            }
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                writeFully(out, ftyp);
+                moov.getBox(out);
+                ByteBuffer mdatHeader = ByteBuffer.allocate(mdatHeaderSize);
+                if (mdatHeaderSize == LARGE_BOX_HEADER_SIZE) {
+                    IsoTypeWriter.writeUInt32(mdatHeader, 1);
+                    mdatHeader.put(IsoFile.fourCCtoBytes("mdat"));
+                    IsoTypeWriter.writeUInt64(mdatHeader, payloadSize + LARGE_BOX_HEADER_SIZE);
+                } else {
+                    IsoTypeWriter.writeUInt32(mdatHeader, payloadSize + BOX_HEADER_SIZE);
+                    mdatHeader.put(IsoFile.fourCCtoBytes("mdat"));
+                }
+                mdatHeader.flip();
+                writeFully(out, mdatHeader);
+                // zero-copy the sample data from the fragments into the single mdat
+                for (Chunk chunk : chunks) {
+                    long copied = 0;
+                    while (copied < chunk.length) {
+                        long count = in.transferTo(chunk.sourceOffset + copied, chunk.length - copied, out);
+                        if (count <= 0) {
+                            throw new IOException("Source ended while copying chunk at " + chunk.sourceOffset);
+                        }
+                        copied += count;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        try {
+            Files.move(temp, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, destination, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Appends the samples described by the track fragments of a moof to the track tables.
+     */
+    private void addFragment(MovieFragmentBox moof, long moofOffset, Map<Long, TrackExtendsBox> trexs, Map<Long, TrackTable> tables) throws IOException {
+        for (TrackFragmentBox traf : moof.getBoxes(TrackFragmentBox.class)) {
+            TrackFragmentHeaderBox tfhd = traf.getTrackFragmentHeaderBox();
+            long trackId = tfhd.getTrackId();
+            TrackExtendsBox trex = trexs.get(trackId);
+            TrackTable table = tables.get(trackId);
+            if (table == null) {
+                table = new TrackTable();
+                tables.put(trackId, table);
+            }
+            // bridge any gap in decode time by stretching the previous sample
+            List<TrackFragmentBaseMediaDecodeTimeBox> tfdts = traf.getBoxes(TrackFragmentBaseMediaDecodeTimeBox.class);
+            TrackFragmentBaseMediaDecodeTimeBox tfdt = tfdts.isEmpty() ? null : tfdts.get(0);
+            if (tfdt != null && table.sampleCount > 0 && tfdt.getBaseMediaDecodeTime() > table.decodeTime) {
+                table.durations[table.sampleCount - 1] += tfdt.getBaseMediaDecodeTime() - table.decodeTime;
+                table.decodeTime = tfdt.getBaseMediaDecodeTime();
+            }
+            // data offsets are relative to the moof unless an explicit base is given
+            long base = tfhd.hasBaseDataOffset() ? tfhd.getBaseDataOffset() : moofOffset;
+            long dataPosition = base;
+            for (TrackRunBox trun : traf.getBoxes(TrackRunBox.class)) {
+                if (trun.isDataOffsetPresent()) {
+                    dataPosition = base + trun.getDataOffset();
+                }
+                Chunk chunk = new Chunk(dataPosition);
+                int index = 0;
+                for (TrackRunBox.Entry entry : trun.getEntries()) {
+                    long duration = trun.isSampleDurationPresent() ? entry.getSampleDuration() : (tfhd.hasDefaultSampleDuration() ? tfhd.getDefaultSampleDuration() : (trex != null ? trex.getDefaultSampleDuration() : 0));
+                    long size = trun.isSampleSizePresent() ? entry.getSampleSize() : (tfhd.hasDefaultSampleSize() ? tfhd.getDefaultSampleSize() : (trex != null ? trex.getDefaultSampleSize() : 0));
+                    SampleFlags flags;
+                    if (trun.isSampleFlagsPresent()) {
+                        flags = entry.getSampleFlags();
+                    } else if (index == 0 && trun.isFirstSampleFlagsPresent()) {
+                        flags = trun.getFirstSampleFlags();
+                    } else if (tfhd.hasDefaultSampleFlags()) {
+                        flags = tfhd.getDefaultSampleFlags();
+                    } else {
+                        flags = trex != null ? trex.getDefaultSampleFlags() : null;
+                    }
+                    int compositionOffset = trun.isSampleCompositionTimeOffsetPresent() ? (int) entry.getSampleCompositionTimeOffset() : 0;
+                    table.add(duration, size, flags == null || !flags.isSampleIsDifferenceSample(), compositionOffset);
+                    chunk.samples++;
+                    chunk.length += size;
+                    index++;
+                }
+                if (chunk.samples > 0) {
+                    table.chunks.add(chunk);
+                }
+                dataPosition += chunk.length;
+            }
+        }
+    }
+
+    /**
+     * Replaces the empty fragmented sample tables with the collected ones and removes the mvex box.
+     *
+     * @return size of the movie box
+     */
+    private long rebuildMovieBox(MovieBox moov, Map<Long, TrackTable> tables, boolean largeOffsets) {
+        MovieHeaderBox mvhd = moov.getMovieHeaderBox();
+        long movieDuration = 0;
+        List<Box> boxes = new ArrayList<>(moov.getBoxes());
+        boxes.removeIf(box -> box instanceof MovieExtendsBox);
+        for (Box box : boxes) {
+            if (box instanceof TrackBox) {
+                TrackBox trak = (TrackBox) box;
+                TrackTable table = tables.get(trak.getTrackHeaderBox().getTrackId());
+                if (table == null) {
+                    table = new TrackTable();
+                }
+                MediaHeaderBox mdhd = trak.getMediaBox().getMediaHeaderBox();
+                mdhd.setDuration(table.decodeTime);
+                long trackDuration = mdhd.getTimescale() > 0 ? table.decodeTime * mvhd.getTimescale() / mdhd.getTimescale() : 0;
+                trak.getTrackHeaderBox().setDuration(trackDuration);
+                movieDuration = Math.max(movieDuration, trackDuration);
+                MediaInformationBox minf = trak.getMediaBox().getMediaInformationBox();
+                SampleTableBox stbl = minf.getSampleTableBox();
+                SampleTableBox replacement = table.createSampleTable(stbl, largeOffsets);
+                List<Box> minfBoxes = new ArrayList<>(minf.getBoxes());
+                minfBoxes.set(minfBoxes.indexOf(stbl), replacement);
+                minf.setBoxes(minfBoxes);
+            }
+        }
+        moov.setBoxes(boxes);
+        mvhd.setDuration(movieDuration);
+        return moov.getSize();
+    }
+
+    private static Path toPath(Object obj) {
+        if (obj instanceof Path) {
+            return (Path) obj;
+        } else if (obj instanceof File) {
+            return ((File) obj).toPath();
+        }
+        return Paths.get(obj.toString());
+    }
+
+    private static IsoFile parse(ByteBuffer box) throws IOException {
+        return new IsoFile(new ByteBufferByteChannel(box));
+    }
+
+    private static ByteBuffer readBox(FileChannel in, long position, long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Box at " + position + " is too large to be a header box: " + size);
+        }
+        ByteBuffer box = ByteBuffer.allocate((int) size);
+        readFully(in, box, position);
+        box.flip();
+        return box;
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            if (in.read(dst, position + dst.position()) < 0) {
+                throw new IOException("Unexpected end of file at " + (position + dst.position()));
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            out.write(src);
+        }
+    }
+
+    /**
+     * A contiguous run of samples for one track; maps to a single chunk in the progressive file.
+     */
+    private static class Chunk {
+
+        final long sourceOffset;
+
+        long destinationOffset;
+
+        long length;
+
+        int samples;
+
+        Chunk(long sourceOffset) {
+            this.sourceOffset = sourceOffset;
+        }
+
+    }
+
+    /**
+     * Per-track sample information, kept in primitive arrays since long recordings have many samples.
+     */
+    private static class TrackTable {
+
+        int sampleCount;
+
+        long[] durations = new long[1024];
+
+        long[] sizes = new long[1024];
+
+        int[] compositionOffsets = new int[1024];
+
+        long[] syncSamples = new long[64];
+
+        int syncCount;
+
+        boolean hasCompositionOffsets;
+
+        long decodeTime;
+
+        List<Chunk> chunks = new ArrayList<>();
+
+        ChunkOffsetBox chunkOffsetBox;
+
+        void add(long duration, long size, boolean sync, int compositionOffset) {
+            if (sampleCount == sizes.length) {
+                int capacity = sampleCount << 1;
+                durations = Arrays.copyOf(durations, capacity);
+                sizes = Arrays.copyOf(sizes, capacity);
+                compositionOffsets = Arrays.copyOf(compositionOffsets, capacity);
+            }
+            durations[sampleCount] = duration;
+            sizes[sampleCount] = size;
+            compositionOffsets[sampleCount] = compositionOffset;
+            hasCompositionOffsets |= compositionOffset != 0;
+            sampleCount++;
+            if (sync) {
+                if (syncCount == syncSamples.length) {
+                    syncSamples = Arrays.copyOf(syncSamples, syncCount << 1);
+                }
+                // sample numbers are 1-based
+                syncSamples[syncCount++] = sampleCount;
+            }
+            decodeTime += duration;
+        }
+
+        long[] chunkOffsets() {
+            long[] offsets = new long[chunks.size()];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = chunks.get(i).destinationOffset;
+            }
+            return offsets;
+        }
+
+        SampleTableBox createSampleTable(SampleTableBox original, boolean largeOffsets) {
+            SampleTableBox stbl = new SampleTableBox();
+            stbl.addBox(original.getSampleDescriptionBox());
+            // run-length encode the durations
+            List<TimeToSampleBox.Entry> sttsEntries = new ArrayList<>();
+            TimeToSampleBox.Entry stts = null;
+            for (int i = 0; i < sampleCount; i++) {
+                if (stts != null && stts.getDelta() == durations[i]) {
+                    stts.setCount(stts.getCount() + 1);
+                } else {
+                    stts = new TimeToSampleBox.Entry(1, durations[i]);
+                    sttsEntries.add(stts);
+                }
+            }
+            TimeToSampleBox timeToSampleBox = new TimeToSampleBox();
+            timeToSampleBox.setEntries(sttsEntries);
+            stbl.addBox(timeToSampleBox);
+            if (hasCompositionOffsets) {
+                List<CompositionTimeToSample.Entry> cttsEntries = new ArrayList<>();
+                CompositionTimeToSample.Entry ctts = null;
+                boolean negative = false;
+                for (int i = 0; i < sampleCount; i++) {
+                    negative |= compositionOffsets[i] < 0;
+                    if (ctts != null && ctts.getOffset() == compositionOffsets[i]) {
+                        ctts.setCount(ctts.getCount() + 1);
+                    } else {
+                        ctts = new CompositionTimeToSample.Entry(1, compositionOffsets[i]);
+                        cttsEntries.add(ctts);
+                    }
+                }
+                CompositionTimeToSample compositionTimeToSample = new CompositionTimeToSample();
+                compositionTimeToSample.setVersion(negative ? 1 : 0);
+                compositionTimeToSample.setEntries(cttsEntries);
+                stbl.addBox(compositionTimeToSample);
+            }
+            // when every sample is a sync sample the stss box is omitted
+            if (syncCount < sampleCount) {
+                SyncSampleBox stss = new SyncSampleBox();
+                stss.setSampleNumber(Arrays.copyOf(syncSamples, syncCount));
+                stbl.addBox(stss);
+            }
+            // one chunk per track run
+            List<SampleToChunkBox.Entry> stscEntries = new ArrayList<>();
+            long lastSamplesPerChunk = -1;
+            for (int i = 0; i < chunks.size(); i++) {
+                int samples = chunks.get(i).samples;
+                if (samples != lastSamplesPerChunk) {
+                    stscEntries.add(new SampleToChunkBox.Entry(i + 1, samples, 1));
+                    lastSamplesPerChunk = samples;
+                }
+            }
+            SampleToChunkBox stsc = new SampleToChunkBox();
+            stsc.setEntries(stscEntries);
+            stbl.addBox(stsc);
+            SampleSizeBox stsz = new SampleSizeBox();
+            stsz.setSampleSizes(Arrays.copyOf(sizes, sampleCount));
+            stbl.addBox(stsz);
+            chunkOffsetBox = largeOffsets ? new ChunkOffset64BitBox() : new StaticChunkOffsetBox();
+            chunkOffsetBox.setChunkOffsets(new long[chunks.size()]);
+            stbl.addBox(chunkOffsetBox);
+            return stbl;
+        }
+
+    }
+
+}
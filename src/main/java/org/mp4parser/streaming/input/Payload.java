@@ -0,0 +1,82 @@
+package org.mp4parser.streaming.input;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mp4parser.streaming.SampleExtension;
+
+/**
+ * Reference counted sample data from a {@link PayloadStore}. The payload is attached to its sample as an extension, so
+ * whoever writes the sample out, or a wrapper around it, can find and release it. Each holder which outlives the
+ * producer takes a reference with {@link #retain(int)}; the chunk goes back to the store with the last release and the
+ * sample content must not be touched after that.
+ */
+public final class Payload implements SampleExtension {
+
+    private final PayloadStore store;
+
+    final int sizeClass;
+
+    private final ByteBuffer buffer;
+
+    private final AtomicInteger references = new AtomicInteger();
+
+    Payload(PayloadStore store, int sizeClass, ByteBuffer buffer) {
+        this.store = store;
+        this.sizeClass = sizeClass;
+        this.buffer = buffer;
+        references.set(1);
+    }
+
+    void reset(int size) {
+        buffer.clear();
+        buffer.limit(size);
+        references.set(1);
+    }
+
+    /**
+     * Returns the buffer to fill, positioned at zero with the limit at the allocated size.
+     *
+     * @return buffer
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Whether the payload lives in direct memory of the store rather than on the heap.
+     *
+     * @return true if pooled
+     */
+    public boolean isPooled() {
+        return store != null;
+    }
+
+    /**
+     * Takes additional references.
+     *
+     * @param count number of references
+     * @return this payload
+     */
+    public Payload retain(int count) {
+        if (references.getAndAdd(count) <= 0) {
+            throw new IllegalStateException("Payload already released");
+        }
+        return this;
+    }
+
+    /**
+     * Drops a reference, returning the chunk to the store when it was the last one.
+     */
+    public void release() {
+        int remaining = references.decrementAndGet();
+        if (remaining == 0) {
+            if (store != null) {
+                store.recycle(this);
+            }
+        } else if (remaining < 0) {
+            throw new IllegalStateException("Payload released more often than retained");
+        }
+    }
+
+}
@@ -0,0 +1,163 @@
+package org.mp4parser.streaming.input;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Off-heap store for buffered sample data. Direct memory is reserved in slabs which are cut into chunks of power of two
+ * size classes; a chunk is handed out as a {@link Payload} and returns to its class's free list when released, so
+ * media waiting for its fragment neither counts against the heap nor adds to old generation churn. Slabs are kept for
+ * reuse once reserved. When a payload is larger than the largest class or the store has reserved its limit and has no
+ * free chunk, the payload falls back to a heap buffer.
+ */
+public class PayloadStore {
+
+    private static Logger log = LoggerFactory.getLogger(PayloadStore.class);
+
+    // smallest and largest size classes, 256 bytes to 4 MB
+    private static final int MIN_SHIFT = 8, MAX_SHIFT = 22;
+
+    private static final int SLAB_SIZE = 1 << 20;
+
+    private static final PayloadStore shared = new PayloadStore(Long.getLong("mp4frag.payloadStore.maxBytes", 256L << 20));
+
+    private final long maxBytes;
+
+    // free chunks per size class
+    private final List<ArrayDeque<Payload>> freeLists = new ArrayList<>(MAX_SHIFT - MIN_SHIFT + 1);
+
+    // direct memory reserved in slabs
+    private final AtomicLong reservedBytes = new AtomicLong();
+
+    // bytes of the chunks handed out
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    private final AtomicLong heapFallbacks = new AtomicLong();
+
+    /**
+     * @param maxBytes limit of direct memory to reserve
+     */
+    public PayloadStore(long maxBytes) {
+        this.maxBytes = maxBytes;
+        for (int i = MIN_SHIFT; i <= MAX_SHIFT; i++) {
+            freeLists.add(new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * Returns the store shared by all writers, its limit is set with the mp4frag.payloadStore.maxBytes system
+     * property and defaults to 256 MB.
+     *
+     * @return shared store
+     */
+    public static PayloadStore getShared() {
+        return shared;
+    }
+
+    /**
+     * Allocates a payload; its buffer is positioned at zero with the limit at the requested size.
+     *
+     * @param size size in bytes
+     * @return payload holding one reference
+     */
+    public Payload allocate(int size) {
+        int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, size) - 1));
+        if (shift <= MAX_SHIFT) {
+            int sizeClass = shift - MIN_SHIFT;
+            Payload payload = take(sizeClass);
+            if (payload == null && grow(sizeClass)) {
+                payload = take(sizeClass);
+            }
+            if (payload != null) {
+                usedBytes.addAndGet(1 << shift);
+                payload.reset(size);
+                return payload;
+            }
+        }
+        heapFallbacks.incrementAndGet();
+        return new Payload(null, -1, ByteBuffer.allocate(size));
+    }
+
+    private Payload take(int sizeClass) {
+        ArrayDeque<Payload> freeList = freeLists.get(sizeClass);
+        synchronized (freeList) {
+            return freeList.pollFirst();
+        }
+    }
+
+    /**
+     * Reserves a slab for the size class and cuts it into chunks.
+     *
+     * @return true if a slab was added and false if the limit has been reached
+     */
+    private boolean grow(int sizeClass) {
+        int chunkSize = 1 << (sizeClass + MIN_SHIFT), slabSize = Math.max(SLAB_SIZE, chunkSize);
+        long reserved;
+        do {
+            reserved = reservedBytes.get();
+            if (reserved + slabSize > maxBytes) {
+                return false;
+            }
+        } while (!reservedBytes.compareAndSet(reserved, reserved + slabSize));
+        log.debug("Reserving a {} byte slab for {} byte chunks, {} bytes reserved", slabSize, chunkSize, reserved + slabSize);
+        ByteBuffer slab = ByteBuffer.allocateDirect(slabSize);
+        ArrayDeque<Payload> freeList = freeLists.get(sizeClass);
+        synchronized (freeList) {
+            for (int offset = 0; offset < slabSize; offset += chunkSize) {
+                slab.limit(offset + chunkSize);
+                slab.position(offset);
+                freeList.addLast(new Payload(this, sizeClass, slab.slice()));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a released chunk to its free list.
+     */
+    void recycle(Payload payload) {
+        usedBytes.addAndGet(-(1 << (payload.sizeClass + MIN_SHIFT)));
+        ArrayDeque<Payload> freeList = freeLists.get(payload.sizeClass);
+        synchronized (freeList) {
+            freeList.addFirst(payload);
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Returns the direct memory reserved in slabs.
+     *
+     * @return bytes
+     */
+    public long getReservedBytes() {
+        return reservedBytes.get();
+    }
+
+    /**
+     * Returns the bytes of the chunks currently handed out, rounded up to their size classes.
+     *
+     * @return bytes
+     */
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * Returns the number of payloads which were placed on the heap since no chunk was available.
+     *
+     * @return count
+     */
+    public long getHeapFallbacks() {
+        return heapFallbacks.get();
+    }
+
+}
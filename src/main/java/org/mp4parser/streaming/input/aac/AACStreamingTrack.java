@@ -2,11 +2,18 @@ package org.mp4parser.streaming.input.aac;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.mp4parser.boxes.iso14496.part1.objectdescriptors.AudioSpecificConfig;
 import org.mp4parser.boxes.iso14496.part1.objectdescriptors.DecoderConfigDescriptor;
@@ -15,10 +22,14 @@ import org.mp4parser.boxes.iso14496.part1.objectdescriptors.SLConfigDescriptor;
 import org.mp4parser.boxes.iso14496.part12.SampleDescriptionBox;
 import org.mp4parser.boxes.iso14496.part14.ESDescriptorBox;
 import org.mp4parser.boxes.sampleentry.AudioSampleEntry;
+import org.mp4parser.streaming.StreamingSample;
 import org.mp4parser.streaming.extensions.DefaultSampleFlagsTrackExtension;
 import org.mp4parser.streaming.extensions.TrackIdTrackExtension;
 import org.mp4parser.streaming.input.AbstractStreamingTrack;
+import org.mp4parser.streaming.input.Payload;
+import org.mp4parser.streaming.input.PayloadStore;
 import org.mp4parser.streaming.input.StreamingSampleImpl;
+import org.mp4parser.streaming.jfr.StreamingEvents;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -55,15 +66,27 @@ public class AACStreamingTrack extends AbstractStreamingTrack implements Callabl
         samplingFrequencyIndexMap.put(0xb, 8000);
     }
 
-    private LinkedBlockingQueue<byte[]> inputQueue = new LinkedBlockingQueue<>();
+    // silent aac lc raw data blocks, one single channel element or one channel pair element
+    private static final byte[] SILENCE_MONO = { 0x00, (byte) 0xc8, 0x00, (byte) 0x80, 0x23, (byte) 0x80 };
+
+    private static final byte[] SILENCE_STEREO = { 0x21, 0x00, 0x49, (byte) 0x90, 0x02, 0x19, 0x00, 0x23, (byte) 0x80 };
+
+    // size of the regions mapped when reading an adts file
+    private static final long MAP_SIZE = 64 * 1024 * 1024;
+
+    // adts frames, or lists of them added together
+    private LinkedBlockingQueue<Object> inputQueue = new LinkedBlockingQueue<>();
+
+    // bytes waiting in the input queue
+    private final AtomicLong queuedBytes = new AtomicLong();
 
     CountDownLatch gotFirstSample = new CountDownLatch(1);
 
     SampleDescriptionBox stsd = null;
 
-    private boolean closed;
+    private volatile boolean closed;
 
-    private AdtsHeader firstHeader;
+    private volatile AdtsHeader firstHeader;
 
     private String lang = "eng";
 
@@ -71,9 +94,25 @@ public class AACStreamingTrack extends AbstractStreamingTrack implements Callabl
 
     private long maxBitrate;
 
+    // off-heap store for the sample data, samples are slices of the input without one
+    private PayloadStore payloadStore;
+
+    // stream the flight recorder events are tagged with
+    private String streamId;
+
+    // splits adts input into frames, created on first use
+    private AdtsFrameSplitter splitter;
+
+    // set once a multi-block frame without crc has been logged
+    private boolean loggedUnsplitBlocks;
+
     public AACStreamingTrack(long avgBitrate, long maxBitrate) {
         this.avgBitrate = avgBitrate;
         this.maxBitrate = maxBitrate;
+        addDefaultSampleFlags();
+    }
+
+    private void addDefaultSampleFlags() {
         DefaultSampleFlagsTrackExtension defaultSampleFlagsTrackExtension = new DefaultSampleFlagsTrackExtension();
         defaultSampleFlagsTrackExtension.setIsLeading(2);
         defaultSampleFlagsTrackExtension.setSampleDependsOn(2);
@@ -83,66 +122,58 @@ public class AACStreamingTrack extends AbstractStreamingTrack implements Callabl
         this.addTrackExtension(defaultSampleFlagsTrackExtension);
     }
 
-    @SuppressWarnings("unused")
-    private static AdtsHeader readADTSHeader(byte[] entry) throws IOException {
-        int cursor = 0;
-        AdtsHeader hdr = new AdtsHeader();
-        int x = entry[cursor++] & 0xff;
-        if (x == 0xff) {
-            x = entry[cursor++] & 0xff;
-            if ((x & 0xF0) != 0xF0) {
-                throw new IOException("Syncword missing ending bXX");
-            }
-        } else {
-            throw new IOException("Expected Syncword bXXXX");
+    /**
+     * Reads the ADTS header at the start of the entry.
+     * 
+     * @param entry adts frame positioned at its header
+     * @return header
+     * @throws IOException if the entry doesn't start with a valid header
+     */
+    private static AdtsHeader readADTSHeader(ByteBuffer entry) throws IOException {
+        if (entry.remaining() < AdtsFrameSplitter.HEADER_SIZE) {
+            throw new IOException("Entry too short for an ADTS header");
         }
-        hdr.mpegVersion = (x & 0x8) >> 3;
-        hdr.layer = (x & 0x6) >> 1;
-        ; // C
-        hdr.protectionAbsent = (x & 0x1); // D
-        //log.debug("MPEG ver: {} layer: {} protection absent: {}", hdr.mpegVersion, hdr.layer, hdr.protectionAbsent);
-        x = entry[cursor++];
-        hdr.profile = ((x & 0xc0) >> 6) + 1; // E
-        //log.debug("Profile {}", audioObjectTypes.get(hdr.profile));
-        hdr.sampleFrequencyIndex = (x & 0x3c) >> 2;
-        assert hdr.sampleFrequencyIndex != 15;
-        hdr.sampleRate = samplingFrequencyIndexMap.get(hdr.sampleFrequencyIndex); // F
-        //log.debug("Sample rate: {}", hdr.sampleRate);
-        hdr.channelconfig = (x & 1) << 2; // H
-        x = entry[cursor++];
-        hdr.channelconfig += (x & 0xc0) >> 6;
-        //log.debug("channelconfig: {}", hdr.channelconfig);
-        hdr.original = (x & 0x20) >> 5; // I
-        hdr.home = (x & 0x10) >> 4; // J
-        hdr.copyrightedStream = (x & 0x8) >> 3; // K
-        hdr.copyrightStart = (x & 0x4) >> 2; // L
-        hdr.frameLength = (x & 0x3) << 9; // M
-        x = entry[cursor++];
-        hdr.frameLength += (x << 3);
-        x = entry[cursor++];
-        hdr.frameLength += (x & 0xe0) >> 5;
-        log.debug("frameLength: {}", hdr.frameLength);
-        hdr.bufferFullness = (x & 0x1f) << 6;
-        x = entry[cursor++];
-        hdr.bufferFullness += (x & 0xfc) >> 2;
-        hdr.numAacFramesPerAdtsFrame = ((x & 0x3)) + 1;
-        //log.debug("numAacFramesPerAdtsFrame: {}", hdr.numAacFramesPerAdtsFrame);
-        if (hdr.numAacFramesPerAdtsFrame != 1) {
-            throw new IOException("This muxer can only work with 1 AAC frame per ADTS frame");
+        AdtsHeader hdr = AdtsFrameSplitter.parseHeader(entry, entry.position());
+        if (hdr == null) {
+            throw new IOException("Expected Syncword bXXXX");
         }
-        if (hdr.protectionAbsent == 0) {
-            int crc1 = entry[cursor++];
-            int crc2 = entry[cursor++];
+        if (hdr.frameLength > entry.remaining()) {
+            throw new IOException("Frame length " + hdr.frameLength + " exceeds entry of " + entry.remaining());
         }
         return hdr;
     }
 
+    /**
+     * Sets the store for the sample data; samples then hold a {@link Payload} which the sink releases once the sample
+     * has been written.
+     * 
+     * @param payloadStore store or null to keep samples on the heap
+     */
+    public void setPayloadStore(PayloadStore payloadStore) {
+        this.payloadStore = payloadStore;
+    }
+
+    /**
+     * Sets the id of the stream, which the flight recorder events of the track carry.
+     * 
+     * @param streamId stream id
+     */
+    public void setStreamId(String streamId) {
+        this.streamId = streamId;
+    }
+
+    public String getStreamId() {
+        return streamId;
+    }
+
     public boolean isClosed() {
         return closed;
     }
 
     public synchronized SampleDescriptionBox getSampleDescriptionBox() {
-        waitForFirstSample();
+        if (waitForFirstSample() == null) {
+            throw new IllegalStateException("No AAC frame received, the sample description is unknown");
+        }
         if (stsd == null) {
             stsd = new SampleDescriptionBox();
             AudioSampleEntry audioSampleEntry = new AudioSampleEntry("mp4a");
@@ -187,17 +218,50 @@ public class AACStreamingTrack extends AbstractStreamingTrack implements Callabl
         return stsd;
     }
 
-    void waitForFirstSample() {
+    /**
+     * Creates a silent sample matching the stream, used to fill gaps when the source stops sending audio.
+     * 
+     * @return sample or null if no frame has been seen yet or the channel layout has no silent frame
+     */
+    public StreamingSample createSilentSample() {
+        AdtsHeader header = firstHeader;
+        if (header == null) {
+            return null;
+        }
+        switch (header.channelconfig) {
+            case 1:
+                return new StreamingSampleImpl(ByteBuffer.wrap(SILENCE_MONO), 1024);
+            case 2:
+                return new StreamingSampleImpl(ByteBuffer.wrap(SILENCE_STEREO), 1024);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Waits up to 5 seconds for the first frame, not at all once the track is closed.
+     *
+     * @return the first frame's header or null if none arrived
+     */
+    AdtsHeader waitForFirstSample() {
         try {
-            gotFirstSample.await();
+            if (!closed) {
+                gotFirstSample.await(5L, TimeUnit.SECONDS);
+            }
         } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+            Thread.currentThread().interrupt();
         }
+        return firstHeader;
     }
 
+    /**
+     * Returns the sample rate of the stream, waiting a while for the first frame.
+     *
+     * @return sample rate or 0 if no frame has arrived
+     */
     public long getTimescale() {
-        waitForFirstSample();
-        return firstHeader.sampleRate;
+        AdtsHeader header = waitForFirstSample();
+        return header != null ? header.sampleRate : 0L;
     }
 
     public String getHandler() {
@@ -214,6 +278,25 @@ public class AACStreamingTrack extends AbstractStreamingTrack implements Callabl
 
     public void close() throws IOException {
         closed = true;
+        // wake anyone waiting on a first frame which won't come
+        gotFirstSample.countDown();
+    }
+
+    /**
+     * Readies the track for another stream once its loop has exited, forgetting the first header and sample
+     * description; the sample sink and payload store are left as they are.
+     */
+    public void reset() {
+        inputQueue.clear();
+        queuedBytes.set(0L);
+        gotFirstSample = new CountDownLatch(1);
+        stsd = null;
+        firstHeader = null;
+        splitter = null;
+        loggedUnsplitBlocks = false;
+        trackExtensions.clear();
+        addDefaultSampleFlags();
+        closed = false;
     }
 
     /**
@@ -223,28 +306,111 @@ public class AACStreamingTrack extends AbstractStreamingTrack implements Callabl
      * @return true if added and false otherwise
      */
     public boolean add(byte[] entry) {
-        return inputQueue.offer(entry);
+        if (entry.length == 0 && splitter != null) {
+            // end of data, drop any partial frame of the adts input first
+            endAdts();
+        }
+        return add(ByteBuffer.wrap(entry));
+    }
+
+    /**
+     * Adds a single ADTS frame, header included, to the input queue.
+     * 
+     * @param frame frame positioned at its header
+     * @return true if added and false otherwise
+     */
+    public boolean add(ByteBuffer frame) {
+        queuedBytes.addAndGet(frame.remaining());
+        return inputQueue.offer(frame);
+    }
+
+    /**
+     * Adds ADTS frames, headers included, to the input queue in one go, so the consuming thread is woken once for all
+     * of them. The list must not be modified afterward.
+     * 
+     * @param frames frames positioned at their headers
+     * @return true if added and false otherwise
+     */
+    public boolean addAll(List<ByteBuffer> frames) {
+        if (frames.isEmpty()) {
+            return true;
+        }
+        long size = 0L;
+        for (ByteBuffer frame : frames) {
+            size += frame.remaining();
+        }
+        queuedBytes.addAndGet(size);
+        return inputQueue.offer(frames);
+    }
+
+    /**
+     * Returns the number of bytes waiting in the input queue.
+     * 
+     * @return bytes
+     */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * Adds a piece of an ADTS stream. The frames are located by their header frame lengths and queued as slices of the
+     * buffer, so the buffer must not be modified afterward. A frame spanning calls is completed by a later call.
+     * 
+     * @param data adts data between the position and limit
+     */
+    public synchronized void addAdts(ByteBuffer data) {
+        if (splitter == null) {
+            splitter = new AdtsFrameSplitter(this::add);
+        }
+        splitter.feed(data);
+    }
+
+    /**
+     * Adds an ADTS file, such as an .aac file. The file is memory mapped a region at a time and its frames are queued
+     * without being copied.
+     * 
+     * @param path file path
+     * @throws IOException
+     */
+    public synchronized void addAdts(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long position = 0; position < size; position += MAP_SIZE) {
+                addAdts(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_SIZE, size - position)));
+            }
+        }
+        endAdts();
+    }
+
+    /**
+     * Ends the ADTS input; a trailing partial frame is dropped.
+     */
+    public synchronized void endAdts() {
+        if (splitter != null) {
+            splitter.end();
+        }
     }
 
     public Void call() {
-        AdtsHeader header;
+        // entries are drained in bulk, rather than woken for one at a time
+        List<Object> entries = new ArrayList<>();
         try {
             // loop until we get a null entry or are closed / interrupted
-            byte[] entry;
-            while (!closed) {
-                entry = inputQueue.take();
-                if (entry != null && entry.length > 0) {
-                    if ((header = readADTSHeader(entry)) != null) {
-                        if (firstHeader == null) {
-                            firstHeader = header;
-                            gotFirstSample.countDown();
+            consuming: while (!closed) {
+                entries.add(inputQueue.take());
+                inputQueue.drainTo(entries);
+                for (Object entry : entries) {
+                    if (entry instanceof List) {
+                        for (Object frame : (List<?>) entry) {
+                            if (closed || !consume((ByteBuffer) frame)) {
+                                break consuming;
+                            }
                         }
-                        ByteBuffer frame = ByteBuffer.wrap(entry, header.getSize(), (header.frameLength - header.getSize()));
-                        sampleSink.acceptSample(new StreamingSampleImpl(frame, 1024), this);
+                    } else if (closed || !consume((ByteBuffer) entry)) {
+                        break consuming;
                     }
-                } else {
-                    break;
                 }
+                entries.clear();
             }
         } catch (InterruptedException e) {
             log.warn("Exception in take loop", e);
@@ -252,11 +418,101 @@ public class AACStreamingTrack extends AbstractStreamingTrack implements Callabl
             log.warn("Exception consuming frame", e);
         } finally {
             inputQueue.clear();
+            queuedBytes.set(0L);
         }
         log.debug("Exit");
         return null;
     }
 
+    /**
+     * Consumes a queued frame.
+     *
+     * @return false at the empty entry ending the input
+     */
+    private boolean consume(ByteBuffer entry) throws IOException {
+        queuedBytes.addAndGet(-entry.remaining());
+        if (!entry.hasRemaining()) {
+            return false;
+        }
+        AdtsHeader header = readADTSHeader(entry);
+        if (header != null) {
+            if (firstHeader == null) {
+                firstHeader = header;
+                gotFirstSample.countDown();
+            }
+            acceptFrame(entry.slice(), header);
+        }
+        return true;
+    }
+
+    /**
+     * Passes the raw data blocks of a frame to the sink. Samples are sliced so they start at zero, the fragment writer
+     * rewinds the content when writing the mdat.
+     * 
+     * @param frame adts frame positioned at zero
+     * @param header its header
+     * @throws IOException
+     */
+    private void acceptFrame(ByteBuffer frame, AdtsHeader header) throws IOException {
+        int blocks = header.numAacFramesPerAdtsFrame, headerSize = AdtsFrameSplitter.headerSize(header);
+        if (blocks == 1) {
+            emitSample(createSample(slice(frame, headerSize, header.frameLength), 1024));
+        } else if (header.protectionAbsent == 0) {
+            // the header lists where blocks 2..n start, relative to the first block; each block is followed by a crc
+            int[] starts = new int[blocks + 1];
+            starts[0] = headerSize;
+            for (int i = 1; i < blocks; i++) {
+                starts[i] = headerSize + (frame.getShort(AdtsFrameSplitter.HEADER_SIZE + 2 * (i - 1)) & 0xffff);
+            }
+            starts[blocks] = header.frameLength;
+            for (int i = 0; i < blocks; i++) {
+                int end = starts[i + 1] - 2;
+                if (starts[i] >= end || end > header.frameLength) {
+                    throw new IOException("Invalid raw data block position in ADTS header");
+                }
+                emitSample(createSample(slice(frame, starts[i], end), 1024));
+            }
+        } else {
+            // without a crc the block boundaries are only found by decoding, keep them together as one longer sample
+            if (!loggedUnsplitBlocks) {
+                log.info("ADTS frames carry {} raw data blocks without positions, muxing them as single samples", blocks);
+                loggedUnsplitBlocks = true;
+            }
+            emitSample(createSample(slice(frame, headerSize, header.frameLength), 1024 * blocks));
+        }
+    }
+
+    /**
+     * Passes a sample to the sink.
+     */
+    private void emitSample(StreamingSample sample) throws IOException {
+        StreamingEvents.sample(streamId, this, sample);
+        sampleSink.acceptSample(sample, this);
+    }
+
+    /**
+     * Creates a sample of the raw data, copied to the payload store when there is one.
+     */
+    private StreamingSample createSample(ByteBuffer data, long duration) {
+        if (payloadStore == null) {
+            return new StreamingSampleImpl(data, duration);
+        }
+        Payload payload = payloadStore.allocate(data.remaining());
+        ByteBuffer content = payload.buffer();
+        content.put(data);
+        content.flip();
+        StreamingSample sample = new StreamingSampleImpl(content, duration);
+        sample.addSampleExtension(payload);
+        return sample;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buf, int from, int to) {
+        ByteBuffer dup = buf.duplicate();
+        dup.limit(to);
+        dup.position(from);
+        return dup.slice();
+    }
+
     @Override
     public String toString() {
         TrackIdTrackExtension trackIdTrackExtension = this.getTrackExtension(TrackIdTrackExtension.class);
@@ -0,0 +1,267 @@
+package org.mp4parser.streaming.input.aac;
+
+import java.nio.ByteBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Splits an ADTS stream, such as an .aac file or a transport stream audio payload, into ADTS frames. The stream is
+ * walked by the frame length in each header; when a header doesn't check out the splitter steps forward a byte at a
+ * time until it finds the next plausible syncword. Frames are emitted as slices of the input buffers without copying,
+ * only a frame spanning two of the buffers fed in is copied. Buffers handed to the splitter must not be modified
+ * afterward, since the emitted slices share their content.
+ */
+public class AdtsFrameSplitter {
+
+    private static Logger log = LoggerFactory.getLogger(AdtsFrameSplitter.class);
+
+    // size of the fixed and variable header without a crc
+    static final int HEADER_SIZE = 7;
+
+    private final FrameHandler handler;
+
+    // a partial frame at the end of the last buffer, always positioned at zero
+    private ByteBuffer carry;
+
+    // whether the carry is our own buffer or a slice of the input
+    private boolean carryOwned;
+
+    // set while each header is found where the previous frame ended, a stream is expected to start with a frame;
+    // cleared by damaged data until a header is confirmed by the syncword of the frame after it
+    private boolean synced = true;
+
+    // number of bytes skipped while looking for a syncword, since the last end
+    private long skipped;
+
+    public AdtsFrameSplitter(FrameHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Parses the ADTS header at the given index.
+     *
+     * @param buf buffer holding at least the 7 header bytes from index
+     * @param index absolute index of the header
+     * @return header or null if the bytes are not a valid header
+     */
+    public static AdtsHeader parseHeader(ByteBuffer buf, int index) {
+        int b0 = buf.get(index) & 0xff, b1 = buf.get(index + 1) & 0xff, b2 = buf.get(index + 2) & 0xff, b3 = buf.get(index + 3) & 0xff, b4 = buf.get(index + 4) & 0xff, b5 = buf.get(index + 5) & 0xff, b6 = buf.get(index + 6) & 0xff;
+        // syncword and a layer of zero
+        if (b0 != 0xff || (b1 & 0xf6) != 0xf0) {
+            return null;
+        }
+        AdtsHeader hdr = new AdtsHeader();
+        hdr.mpegVersion = (b1 & 0x8) >> 3;
+        hdr.layer = (b1 & 0x6) >> 1;
+        hdr.protectionAbsent = b1 & 0x1;
+        hdr.profile = ((b2 & 0xc0) >> 6) + 1;
+        hdr.sampleFrequencyIndex = (b2 & 0x3c) >> 2;
+        if (hdr.sampleFrequencyIndex > 11) {
+            return null;
+        }
+        hdr.sampleRate = AACStreamingTrack.samplingFrequencyIndexMap.get(hdr.sampleFrequencyIndex);
+        hdr.channelconfig = ((b2 & 0x1) << 2) | ((b3 & 0xc0) >> 6);
+        hdr.original = (b3 & 0x20) >> 5;
+        hdr.home = (b3 & 0x10) >> 4;
+        hdr.copyrightedStream = (b3 & 0x8) >> 3;
+        hdr.copyrightStart = (b3 & 0x4) >> 2;
+        hdr.frameLength = ((b3 & 0x3) << 11) | (b4 << 3) | ((b5 & 0xe0) >> 5);
+        hdr.bufferFullness = ((b5 & 0x1f) << 6) | ((b6 & 0xfc) >> 2);
+        hdr.numAacFramesPerAdtsFrame = (b6 & 0x3) + 1;
+        if (hdr.frameLength < headerSize(hdr)) {
+            return null;
+        }
+        return hdr;
+    }
+
+    /**
+     * Returns the header size including the raw data block positions and the crc, when present.
+     *
+     * @param hdr header
+     * @return size in bytes
+     */
+    public static int headerSize(AdtsHeader hdr) {
+        if (hdr.protectionAbsent == 1) {
+            return HEADER_SIZE;
+        }
+        return HEADER_SIZE + 2 * (hdr.numAacFramesPerAdtsFrame - 1) + 2;
+    }
+
+    /**
+     * Feeds the next piece of the stream, emitting every frame completed by it. After damaged data a frame is only
+     * emitted once the syncword of the frame after it has been seen, which weeds out false syncwords; a frame ending
+     * exactly at the end of a buffer is trusted, so a stream fed a frame at a time is not held back.
+     *
+     * @param buf stream data between its position and limit
+     */
+    public void feed(ByteBuffer buf) {
+        ByteBuffer in = buf.duplicate();
+        int pos = in.position(), limit = in.limit();
+        // complete the carried frame first
+        pos = drainCarry(in, pos, limit, false);
+        while (pos < limit) {
+            if (limit - pos < HEADER_SIZE) {
+                carry = slice(in, pos, limit);
+                carryOwned = false;
+                break;
+            }
+            AdtsHeader hdr = parseHeader(in, pos);
+            if (hdr == null) {
+                synced = false;
+                skipped++;
+                pos++;
+                continue;
+            }
+            int end = pos + hdr.frameLength;
+            if (!synced && end + 2 <= limit) {
+                if (!isSync(in, end)) {
+                    // false sync, the next header isn't where this one says
+                    skipped++;
+                    pos++;
+                    continue;
+                }
+            } else if (end > limit || (!synced && end != limit)) {
+                carry = slice(in, pos, limit);
+                carryOwned = false;
+                break;
+            }
+            handler.handleFrame(slice(in, pos, end));
+            synced = true;
+            pos = end;
+        }
+    }
+
+    /**
+     * Ends the stream, emitting a complete last frame; a trailing partial frame is dropped.
+     */
+    public void end() {
+        drainCarry(null, 0, 0, true);
+        if (carry != null) {
+            log.debug("Dropping {} bytes of a partial frame at the end of the stream", carry.limit());
+            carry = null;
+        }
+        if (skipped > 0) {
+            log.info("Skipped {} bytes while resyncing", skipped);
+            skipped = 0;
+        }
+    }
+
+    /**
+     * Completes the carried frame from the input, emitting it once it checks out. Bytes taken from the input past the
+     * end of the frame are handed back, so the input walk resumes without copying.
+     *
+     * @return position in the input after the bytes taken
+     */
+    private int drainCarry(ByteBuffer in, int pos, int limit, boolean last) {
+        int start = pos;
+        while (carry != null) {
+            int carried = carry.limit();
+            AdtsHeader hdr = carried >= HEADER_SIZE ? parseHeader(carry, 0) : null;
+            // the header, then the frame and unless in sync the syncword after it
+            int need = carried < HEADER_SIZE || hdr == null ? HEADER_SIZE : hdr.frameLength + (synced ? 0 : 2);
+            if (carried < need && pos < limit) {
+                int take = Math.min(need - carried, limit - pos);
+                append(in, pos, pos + take);
+                pos += take;
+                continue;
+            }
+            if (carried < HEADER_SIZE) {
+                break;
+            }
+            if (hdr != null && (carried >= need ? synced || isSync(carry, hdr.frameLength) : last && carried >= hdr.frameLength)) {
+                handler.handleFrame(slice(carry, 0, hdr.frameLength));
+                synced = true;
+                int rest = carried - hdr.frameLength;
+                if (rest == 0) {
+                    carry = null;
+                } else if (rest <= pos - start) {
+                    pos -= rest;
+                    carry = null;
+                } else {
+                    carry = slice(carry, hdr.frameLength, carried);
+                    carryOwned = false;
+                }
+                continue;
+            }
+            if (hdr != null && carried < need && !last) {
+                // wait for more input
+                break;
+            }
+            // not a frame after all, drop a byte and look again
+            synced = false;
+            skipped++;
+            carry = carried > 1 ? slice(carry, 1, carried) : null;
+            carryOwned = false;
+            resyncCarry();
+        }
+        return pos;
+    }
+
+    /**
+     * Returns the number of bytes skipped since the last end of stream because they were not part of a valid frame.
+     *
+     * @return bytes skipped
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Drops carried bytes until they start with a syncword.
+     */
+    private void resyncCarry() {
+        while (carry != null && (carry.get(0) & 0xff) != 0xff) {
+            skipped++;
+            int carried = carry.limit();
+            carry = carried > 1 ? slice(carry, 1, carried) : null;
+        }
+    }
+
+    private static boolean isSync(ByteBuffer buf, int index) {
+        return (buf.get(index) & 0xff) == 0xff && (buf.get(index + 1) & 0xf6) == 0xf0;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buf, int from, int to) {
+        ByteBuffer dup = buf.duplicate();
+        dup.limit(to);
+        dup.position(from);
+        return dup.slice();
+    }
+
+    /**
+     * Appends a range of the input to the carried bytes, copying them into our own buffer the first time.
+     */
+    private void append(ByteBuffer in, int from, int to) {
+        int length = to - from;
+        if (length <= 0) {
+            return;
+        }
+        int carried = carry.limit(), size = carried + length;
+        if (!carryOwned || carry.capacity() < size) {
+            // an adts frame is at most 8191 bytes
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(size, 8192));
+            carry.position(0);
+            grown.put(carry);
+            carry = grown;
+            carryOwned = true;
+        }
+        carry.limit(size);
+        carry.position(carried);
+        carry.put(slice(in, from, to));
+        carry.position(0);
+    }
+
+    /**
+     * Receives the frames from the splitter.
+     */
+    public interface FrameHandler {
+
+        /**
+         * @param frame complete ADTS frame including its header, positioned at zero
+         */
+        void handleFrame(ByteBuffer frame);
+
+    }
+
+}
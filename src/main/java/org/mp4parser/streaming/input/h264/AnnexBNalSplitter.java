@@ -0,0 +1,217 @@
+package org.mp4parser.streaming.input.h264;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Splits an Annex B byte stream into NAL units. The start codes (00 00 01 and 00 00 00 01) are located eight bytes at a
+ * time: a word holding no zero byte cannot hold the leading zeros of a start code, so it is skipped without looking at
+ * its bytes. The NALs are emitted as slices of the input buffers without copying; only a NAL which spans two of the
+ * buffers fed in is copied. The splitter keeps its state between calls, so a stream may be fed in pieces of any size.
+ * <br>
+ * Buffers handed to the splitter are owned by it and must not be modified afterward, since the emitted slices share
+ * their content.
+ */
+public class AnnexBNalSplitter {
+
+    private static final long ONES = 0x0101010101010101L;
+
+    private static final long HIGHS = 0x8080808080808080L;
+
+    private final NalHandler handler;
+
+    // the partial nal at the end of the last buffer, a slice of it until more data has to be appended; always
+    // positioned at zero
+    private ByteBuffer carry;
+
+    // whether the carry is our own buffer or a slice of the input
+    private boolean carryOwned;
+
+    // set once the first start code has been seen, bytes before it are not part of any nal
+    private boolean synced;
+
+    public AnnexBNalSplitter(NalHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Finds the next three byte start code (00 00 01) within the given range.
+     *
+     * @param buf buffer to search, its position and limit are not used
+     * @param from absolute index to start at
+     * @param to absolute index to end at, exclusive
+     * @return absolute index of the first zero of the start code or -1 if not found
+     */
+    public static int indexOfStartCode(ByteBuffer buf, int from, int to) {
+        int i = from;
+        if (buf.order() == ByteOrder.BIG_ENDIAN) {
+            // skip the words in which no byte is zero, a start code must begin with two of them
+            while (i + 10 <= to) {
+                long v = buf.getLong(i);
+                if (((v - ONES) & ~v & HIGHS) == 0L) {
+                    i += 8;
+                    continue;
+                }
+                // a zero in this word, check each byte which could start a start code
+                for (int end = i + 8; i < end; i++) {
+                    if (buf.get(i) == 0 && buf.get(i + 1) == 0 && buf.get(i + 2) == 1) {
+                        return i;
+                    }
+                }
+            }
+        }
+        for (; i + 3 <= to; i++) {
+            if (buf.get(i) == 0 && buf.get(i + 1) == 0 && buf.get(i + 2) == 1) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Feeds the next piece of the stream, emitting every nal which is completed by it.
+     *
+     * @param buf stream data between its position and limit
+     */
+    public void feed(ByteBuffer buf) {
+        ByteBuffer in = buf.duplicate().order(ByteOrder.BIG_ENDIAN);
+        int pos = in.position(), limit = in.limit();
+        int nalStart;
+        if (carry != null) {
+            // the start code ending the carried bytes may begin in their last two bytes
+            int carried = carry.limit();
+            int peek = Math.min(2, limit - pos);
+            append(in, pos, pos + peek);
+            int sc = indexOfStartCode(carry, Math.max(0, carried - 2), carried + peek);
+            if (sc >= 0 && sc < carried) {
+                carry.limit(sc);
+                endCarry();
+                nalStart = pos + (sc + 3 - carried);
+            } else {
+                carry.limit(carried);
+                sc = indexOfStartCode(in, pos, limit);
+                if (sc < 0) {
+                    if (synced) {
+                        // still no end to the carried nal, keep all of it
+                        append(in, pos, limit);
+                    } else {
+                        // keep the last two bytes in case a start code straddles into the next buffer
+                        append(in, pos, limit);
+                        carry = slice(carry, Math.max(0, carry.limit() - 2), carry.limit());
+                        carryOwned = false;
+                    }
+                    return;
+                }
+                append(in, pos, sc);
+                endCarry();
+                nalStart = sc + 3;
+            }
+        } else if (synced) {
+            nalStart = pos;
+        } else {
+            int sc = indexOfStartCode(in, pos, limit);
+            if (sc < 0) {
+                // keep the last two bytes in case a start code straddles into the next buffer
+                carry = slice(in, Math.max(pos, limit - 2), limit);
+                carryOwned = false;
+                return;
+            }
+            synced = true;
+            nalStart = sc + 3;
+        }
+        int sc;
+        while ((sc = indexOfStartCode(in, nalStart, limit)) >= 0) {
+            emit(slice(in, nalStart, sc));
+            nalStart = sc + 3;
+        }
+        if (nalStart < limit) {
+            carry = slice(in, nalStart, limit);
+            carryOwned = false;
+        }
+    }
+
+    /**
+     * Ends the stream, emitting the last nal.
+     */
+    public void end() {
+        if (carry != null && synced) {
+            emit(carry);
+        }
+        carry = null;
+    }
+
+    /**
+     * Drops any partial nal and starts over, ie. when seeking in the input.
+     */
+    public void reset() {
+        carry = null;
+        synced = false;
+    }
+
+    /**
+     * The carried bytes have been terminated by a start code; they're a complete nal unless we were still looking for
+     * the first start code.
+     */
+    private void endCarry() {
+        if (synced) {
+            emit(carry);
+        } else {
+            synced = true;
+        }
+        carry = null;
+    }
+
+    private void emit(ByteBuffer nal) {
+        // trailing zero bytes belong to the next start code or are stuffing
+        int start = nal.position(), end = nal.limit();
+        while (end > start && nal.get(end - 1) == 0) {
+            end--;
+        }
+        if (end > start) {
+            handler.handleNal(slice(nal, start, end));
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buf, int from, int to) {
+        ByteBuffer dup = buf.duplicate();
+        dup.limit(to);
+        dup.position(from);
+        return dup.slice();
+    }
+
+    /**
+     * Appends a range of the input to the carried bytes. The carry is copied into our own heap buffer the first time it
+     * grows, after which it is grown by doubling.
+     */
+    private void append(ByteBuffer in, int from, int to) {
+        int length = to - from;
+        if (length <= 0) {
+            return;
+        }
+        int carried = carry.limit(), size = carried + length;
+        if (!carryOwned || carry.capacity() < size) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(size, carried * 2));
+            carry.position(0);
+            grown.put(carry);
+            carry = grown;
+            carryOwned = true;
+        }
+        carry.limit(size);
+        carry.position(carried);
+        carry.put(slice(in, from, to));
+        carry.position(0);
+    }
+
+    /**
+     * Receives the nal units from the splitter.
+     */
+    public interface NalHandler {
+
+        /**
+         * @param nal nal unit without its start code, positioned at zero
+         */
+        void handleNal(ByteBuffer nal);
+
+    }
+
+}
@@ -2,30 +2,51 @@ package org.mp4parser.streaming.input.h264;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.mp4parser.streaming.extensions.TrackIdTrackExtension;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Reads H264 data from an Annex B InputStream.
+ * Reads H264 data from pre-split NALs or from an Annex B byte stream.
  */
 public class AnnexBStreamingTrack extends NalConsumingTrack implements Callable<Void> {
 
     private static Logger log = LoggerFactory.getLogger(AnnexBStreamingTrack.class);
 
-    private LinkedBlockingQueue<byte[]> inputQueue = new LinkedBlockingQueue<>();
+    // size of the regions mapped when reading an annex b file
+    private static final long MAP_SIZE = 64 * 1024 * 1024;
 
-    private boolean closed;
+    // nals as byte buffers, whole frames or batches of them
+    private LinkedBlockingQueue<Object> inputQueue = new LinkedBlockingQueue<>();
+
+    // bytes waiting in the input queue
+    private final AtomicLong queuedBytes = new AtomicLong();
+
+    // splits annex b input into nals, created on first use
+    private AnnexBNalSplitter splitter;
 
     public AnnexBStreamingTrack() {
     }
 
+    /**
+     * Readies the track for another stream once its loop has exited; the sample sink and payload store are left as
+     * they are.
+     */
     @Override
-    public void close() throws IOException {
-        closed = true;
+    public void reset() {
+        super.reset();
+        inputQueue.clear();
+        queuedBytes.set(0L);
+        splitter = null;
     }
 
     /**
@@ -35,24 +56,119 @@ public class AnnexBStreamingTrack extends NalConsumingTrack implements Callable<
      * @return true if added and false otherwise
      */
     public boolean add(byte[] nal) {
+        if (nal.length == 0 && splitter != null) {
+            // end of data, emit the last of any annex b input first
+            endAnnexB();
+        }
+        return add(ByteBuffer.wrap(nal));
+    }
+
+    /**
+     * Adds a nal to the input queue. This is expected to be a raw-nalu with no prefix, positioned at zero.
+     * 
+     * @param nal
+     * @return true if added and false otherwise
+     */
+    public boolean add(ByteBuffer nal) {
+        queuedBytes.addAndGet(nal.remaining());
         return inputQueue.offer(nal);
     }
 
+    /**
+     * Adds a whole frame whose timing and type are known, such as the nals of an FLV video tag. The frame becomes a
+     * sample once the next frame is consumed, its duration taken from their timestamps, with the given composition
+     * offset and sync flag rather than ones inferred from the picture order count.
+     * 
+     * @param nals raw nalus with no prefix, positioned at zero
+     * @param timestamp decode timestamp in milliseconds
+     * @param compositionTime composition time offset in milliseconds
+     * @param keyFrame whether the frame is a sync sample
+     * @return true if added and false otherwise
+     */
+    public boolean addFrame(List<ByteBuffer> nals, int timestamp, int compositionTime, boolean keyFrame) {
+        Frame frame = new Frame(nals, timestamp, compositionTime, keyFrame);
+        queuedBytes.addAndGet(frame.size);
+        return inputQueue.offer(frame);
+    }
+
+    /**
+     * Adds the nals and frames of a batch to the input queue in one go, so the consuming thread is woken once for all of
+     * them. The batch must not be modified afterward.
+     * 
+     * @param batch nals and frames
+     * @return true if added and false otherwise
+     */
+    public boolean add(Batch batch) {
+        if (batch.entries.isEmpty()) {
+            return true;
+        }
+        queuedBytes.addAndGet(batch.size);
+        return inputQueue.offer(batch);
+    }
+
+    /**
+     * Returns the number of bytes waiting in the input queue.
+     * 
+     * @return bytes
+     */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * Adds a piece of an Annex B byte stream. The nals are located by their start codes and queued as slices of the
+     * buffer, so the buffer must not be modified afterward. A nal spanning calls is completed by a later call or by
+     * {@link #endAnnexB()}.
+     * 
+     * @param data annex b data between the position and limit
+     */
+    public synchronized void addAnnexB(ByteBuffer data) {
+        if (splitter == null) {
+            splitter = new AnnexBNalSplitter(this::add);
+        }
+        splitter.feed(data);
+    }
+
+    /**
+     * Adds an Annex B elementary stream file, such as a .h264 file. The file is memory mapped a region at a time and
+     * its nals are queued without being copied.
+     * 
+     * @param path file path
+     * @throws IOException
+     */
+    public synchronized void addAnnexB(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long position = 0; position < size; position += MAP_SIZE) {
+                addAnnexB(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_SIZE, size - position)));
+            }
+        }
+        endAnnexB();
+    }
+
+    /**
+     * Ends the Annex B input, queueing the last nal.
+     */
+    public synchronized void endAnnexB() {
+        if (splitter != null) {
+            splitter.end();
+        }
+    }
+
     public Void call() {
-        byte[] nal;
+        // entries are drained in bulk, rather than woken for one at a time
+        List<Object> entries = new ArrayList<>();
         try {
             // loop until we get a null nal or are closed / interrupted
-            while (!closed) {
-                nal = inputQueue.take();
-                if (nal != null && nal.length > 0) {
-                    //log.info("NAL before consume {}", Hex.toHexString(nal));
-                    ByteBuffer bb = ByteBuffer.wrap(nal);
-                    consumeNal(bb);
-                    //log.debug("NAL after consume {}", Hex.toHexString(bb.array()));
-                } else {
-                    // null nal, we're done here
-                    break;
+            consuming: while (!closed) {
+                entries.add(inputQueue.take());
+                inputQueue.drainTo(entries);
+                for (Object entry : entries) {
+                    if (closed || !consume(entry)) {
+                        break consuming;
+                    }
                 }
+                entries.clear();
             }
         } catch (InterruptedException e) {
             log.warn("Exception in take loop", e);
@@ -61,16 +177,132 @@ public class AnnexBStreamingTrack extends NalConsumingTrack implements Callable<
         }
         log.info("Pushing sample");
         try {
-            pushSample(createSample(buffered, fvnd.sliceHeader, sliceNalUnitHeader), true, true);
+            flushFrame();
+            // without a pending access unit, eg. when fed whole frames, only the reorder buffer is left to drain
+            pushSample(fvnd != null ? createSample(buffered, fvnd.sliceHeader, sliceNalUnitHeader) : null, true, true);
         } catch (IOException e) {
             log.warn("Exception at exit", e);
         } finally {
             inputQueue.clear();
+            queuedBytes.set(0L);
         }
         log.debug("Exit");
         return null;
     }
 
+    /**
+     * Consumes a queued nal, frame or batch.
+     *
+     * @return false at the null nal ending the input
+     */
+    private boolean consume(Object entry) throws IOException {
+        if (entry instanceof Batch) {
+            Batch batch = (Batch) entry;
+            queuedBytes.addAndGet(-batch.size);
+            for (Object batched : batch.entries) {
+                if (batched instanceof Frame) {
+                    consumeFrame((Frame) batched);
+                } else if (!consumeQueuedNal((ByteBuffer) batched)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (entry instanceof Frame) {
+            Frame frame = (Frame) entry;
+            queuedBytes.addAndGet(-frame.size);
+            consumeFrame(frame);
+            return true;
+        }
+        ByteBuffer nal = (ByteBuffer) entry;
+        queuedBytes.addAndGet(-nal.remaining());
+        return consumeQueuedNal(nal);
+    }
+
+    private void consumeFrame(Frame frame) throws IOException {
+        consumeFrame(frame.nals, frame.timestamp, frame.compositionTime, frame.keyFrame);
+    }
+
+    /**
+     * @return false for the null nal ending the input
+     */
+    private boolean consumeQueuedNal(ByteBuffer nal) throws IOException {
+        if (nal.hasRemaining()) {
+            consumeNal(nal);
+            return true;
+        }
+        // null nal, we're done here
+        return false;
+    }
+
+    /**
+     * Nals and frames to be queued together, such as those of a batch of tags.
+     */
+    public static final class Batch {
+
+        private final List<Object> entries = new ArrayList<>();
+
+        private long size;
+
+        /**
+         * Adds a raw nalu with no prefix, positioned at zero.
+         * 
+         * @param nal
+         */
+        public void add(ByteBuffer nal) {
+            entries.add(nal);
+            size += nal.remaining();
+        }
+
+        /**
+         * Adds a whole frame, as {@link AnnexBStreamingTrack#addFrame(List, int, int, boolean)} would.
+         * 
+         * @param nals raw nalus with no prefix, positioned at zero
+         * @param timestamp decode timestamp in milliseconds
+         * @param compositionTime composition time offset in milliseconds
+         * @param keyFrame whether the frame is a sync sample
+         */
+        public void addFrame(List<ByteBuffer> nals, int timestamp, int compositionTime, boolean keyFrame) {
+            Frame frame = new Frame(nals, timestamp, compositionTime, keyFrame);
+            entries.add(frame);
+            size += frame.size;
+        }
+
+        public boolean isEmpty() {
+            return entries.isEmpty();
+        }
+
+    }
+
+    /**
+     * A frame queued with its timing.
+     */
+    private static final class Frame {
+
+        final List<ByteBuffer> nals;
+
+        final int timestamp;
+
+        final int compositionTime;
+
+        final boolean keyFrame;
+
+        final long size;
+
+        Frame(List<ByteBuffer> nals, int timestamp, int compositionTime, boolean keyFrame) {
+            this.nals = nals;
+            this.timestamp = timestamp;
+            this.compositionTime = compositionTime;
+            this.keyFrame = keyFrame;
+            long size = 0L;
+            for (ByteBuffer nal : nals) {
+                size += nal.remaining();
+            }
+            this.size = size;
+        }
+
+    }
+
     @Override
     public String toString() {
         TrackIdTrackExtension trackIdTrackExtension = this.getTrackExtension(TrackIdTrackExtension.class);
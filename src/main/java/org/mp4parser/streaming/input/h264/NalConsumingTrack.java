@@ -17,10 +17,13 @@ import org.mp4parser.streaming.extensions.CompositionTimeSampleExtension;
 import org.mp4parser.streaming.extensions.CompositionTimeTrackExtension;
 import org.mp4parser.streaming.extensions.DimensionTrackExtension;
 import org.mp4parser.streaming.extensions.SampleFlagsSampleExtension;
+import org.mp4parser.streaming.input.Payload;
+import org.mp4parser.streaming.input.PayloadStore;
 import org.mp4parser.streaming.input.StreamingSampleImpl;
 import org.mp4parser.streaming.input.h264.spspps.PictureParameterSet;
 import org.mp4parser.streaming.input.h264.spspps.SeqParameterSet;
 import org.mp4parser.streaming.input.h264.spspps.SliceHeader;
+import org.mp4parser.streaming.jfr.StreamingEvents;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -50,6 +53,9 @@ public abstract class NalConsumingTrack extends AbstractH264Track {
 
     boolean configured;
 
+    // once closed, no parameter sets are waited for
+    volatile boolean closed;
+
     SampleDescriptionBox stsd;
 
     SeqParameterSet currentSeqParameterSet = null;
@@ -58,8 +64,26 @@ public abstract class NalConsumingTrack extends AbstractH264Track {
 
     List<ByteBuffer> buffered = new ArrayList<ByteBuffer>();
 
+    // off-heap store for the sample data, samples are assembled on the heap without one
+    PayloadStore payloadStore;
+
+    // stream the flight recorder events are tagged with
+    String streamId;
+
+    // avc3, parameter sets are kept in the samples
+    boolean inBandParameterSets;
+
+    // set once a parameter set differs from the one in the sample description, those after it are kept in the samples
+    boolean parameterSetsChanged;
+
     FirstVclNalDetector fvnd = null;
 
+    // a whole frame waiting on the next one's timestamp for its duration
+    PendingFrame pendingFrame;
+
+    // duration of the last whole frame, given to the final one
+    long frameDuration;
+
     H264NalUnitHeader sliceNalUnitHeader;
 
     public static H264NalUnitHeader getNalUnitHeader(ByteBuffer nal) {
@@ -73,6 +97,7 @@ public abstract class NalConsumingTrack extends AbstractH264Track {
     protected void consumeNal(ByteBuffer nal) throws IOException {
         //log.finest("Consume NAL of " + nal.length + " bytes." + Hex.encodeHex(new byte[]{nal[0], nal[1], nal[2], nal[3], nal[4]}));
         H264NalUnitHeader nalUnitHeader = getNalUnitHeader(nal);
+        StreamingEvents.nal(streamId, nalUnitHeader.nal_unit_type, nal.limit());
         switch (nalUnitHeader.nal_unit_type) {
             case H264NalUnitTypes.CODED_SLICE_NON_IDR:
             case H264NalUnitTypes.CODED_SLICE_DATA_PART_A:
@@ -114,23 +139,29 @@ public abstract class NalConsumingTrack extends AbstractH264Track {
                 break;
             case H264NalUnitTypes.SEQ_PARAMETER_SET:
                 // handle / parse the SPS before doing any sample work so that we have configs
-                handleSPS(nal);
+                boolean spsInBand = handleSPS(nal);
                 if (fvnd != null) {
                     log.debug("Wrapping up cause of SPS after vcl marks new sample");
                     pushSample(createSample(buffered, fvnd.sliceHeader, sliceNalUnitHeader), false, false);
                     buffered.clear();
                     fvnd = null;
                 }
+                if (spsInBand) {
+                    buffered.add(nal);
+                }
                 break;
             case H264NalUnitTypes.PIC_PARAMETER_SET:
                 // handle / parse the PPS similar to SPS, but not nearly as important
-                handlePPS(nal);
+                boolean ppsInBand = handlePPS(nal);
                 if (fvnd != null) {
                     log.debug("Wrapping up cause of PPS after vcl marks new sample");
                     pushSample(createSample(buffered, fvnd.sliceHeader, sliceNalUnitHeader), false, false);
                     buffered.clear();
                     fvnd = null;
                 }
+                if (ppsInBand) {
+                    buffered.add(nal);
+                }
                 break;
             case H264NalUnitTypes.END_OF_SEQUENCE:
             case H264NalUnitTypes.END_OF_STREAM:
@@ -144,11 +175,115 @@ public abstract class NalConsumingTrack extends AbstractH264Track {
 
     }
 
+    /**
+     * Consumes one access unit whose timing and type are known from the container, such as an FLV video tag. The sample
+     * goes to the sink once the next frame gives its duration, with the given composition offset and sync flag, skipping
+     * the slice header parsing and the picture order count reordering. Parameter sets among the nals are handled as
+     * usual.
+     * 
+     * @param nals nal units of the frame
+     * @param timestamp decode timestamp in milliseconds
+     * @param compositionTime composition time offset in milliseconds
+     * @param keyFrame whether the frame is a sync sample
+     * @throws IOException
+     */
+    protected void consumeFrame(List<ByteBuffer> nals, int timestamp, int compositionTime, boolean keyFrame) throws IOException {
+        if (fvnd != null) {
+            // wrap up any nals consumed one by one before the frames
+            pushSample(createSample(buffered, fvnd.sliceHeader, sliceNalUnitHeader), true, true);
+            buffered.clear();
+            fvnd = null;
+        }
+        // non-VCL units consumed one by one ahead of the frame, ie. in-band parameter sets, lead it
+        List<ByteBuffer> units = new ArrayList<ByteBuffer>(buffered.size() + nals.size());
+        units.addAll(buffered);
+        buffered.clear();
+        int nalRefIdc = -1;
+        for (ByteBuffer nal : nals) {
+            H264NalUnitHeader nalUnitHeader = getNalUnitHeader(nal);
+            StreamingEvents.nal(streamId, nalUnitHeader.nal_unit_type, nal.limit());
+            switch (nalUnitHeader.nal_unit_type) {
+                case H264NalUnitTypes.CODED_SLICE_NON_IDR:
+                case H264NalUnitTypes.CODED_SLICE_DATA_PART_A:
+                case H264NalUnitTypes.CODED_SLICE_DATA_PART_B:
+                case H264NalUnitTypes.CODED_SLICE_DATA_PART_C:
+                case H264NalUnitTypes.CODED_SLICE_IDR:
+                    nalRefIdc = Math.max(nalRefIdc, nalUnitHeader.nal_ref_idc);
+                    units.add(nal);
+                    break;
+                case H264NalUnitTypes.SEI:
+                case H264NalUnitTypes.AU_UNIT_DELIMITER:
+                    units.add(nal);
+                    break;
+                case H264NalUnitTypes.SEQ_PARAMETER_SET:
+                    if (handleSPS(nal)) {
+                        units.add(nal);
+                    }
+                    break;
+                case H264NalUnitTypes.PIC_PARAMETER_SET:
+                    if (handlePPS(nal)) {
+                        units.add(nal);
+                    }
+                    break;
+                case H264NalUnitTypes.SEQ_PARAMETER_SET_EXT:
+                    throw new IOException("Sequence parameter set extension is not yet handled. Needs TLC.");
+                default:
+                    log.debug("Skipping NAL unit type: {}", nalUnitHeader.nal_unit_type);
+            }
+        }
+        if (nalRefIdc < 0) {
+            // no picture, ie. parameter sets only; any to keep go with the next frame
+            buffered.addAll(units);
+            return;
+        }
+        configure();
+        if (timescale == 0 || frametick == 0) {
+            throw new IOException("Frame Rate needs to be configured either by hand or by SPS before samples can be created");
+        }
+        if (getTrackExtension(CompositionTimeTrackExtension.class) == null) {
+            // every sample carries its offset, even without b-frames in the stream yet
+            addTrackExtension(new CompositionTimeTrackExtension());
+        }
+        if (pendingFrame != null) {
+            // in the timescale from the millisecond timestamps, so the rounding doesn't add up
+            long duration = (long) timestamp * timescale / 1000L - (long) pendingFrame.timestamp * timescale / 1000L;
+            emitFrame(pendingFrame, duration > 0L ? duration : frametick);
+        }
+        pendingFrame = new PendingFrame(units, timestamp, compositionTime, keyFrame, nalRefIdc);
+    }
+
+    /**
+     * Passes the frame held for its duration to the sink, the last duration given to it.
+     *
+     * @throws IOException
+     */
+    protected void flushFrame() throws IOException {
+        if (pendingFrame != null) {
+            emitFrame(pendingFrame, frameDuration > 0L ? frameDuration : frametick);
+            pendingFrame = null;
+        }
+    }
+
+    private void emitFrame(PendingFrame frame, long duration) throws IOException {
+        frameDuration = duration;
+        StreamingSample ss = createSample(frame.units, duration);
+        SampleFlagsSampleExtension sampleFlagsSampleExtension = new SampleFlagsSampleExtension();
+        sampleFlagsSampleExtension.setSampleIsDependedOn(frame.nalRefIdc == 0 ? 2 : 1);
+        sampleFlagsSampleExtension.setSampleDependsOn(frame.keyFrame ? 2 : 1);
+        sampleFlagsSampleExtension.setSampleIsNonSyncSample(!frame.keyFrame);
+        ss.addSampleExtension(sampleFlagsSampleExtension);
+        ss.addSampleExtension(CompositionTimeSampleExtension.create((long) frame.compositionTime * timescale / 1000L));
+        emitSample(ss);
+    }
+
     protected void pushSample(StreamingSample ss, boolean all, boolean force) throws IOException {
         if (ss != null) {
             decFrameBuffer.add(ss);
         }
         if (all) {
+            if (!decFrameBuffer.isEmpty()) {
+                StreamingEvents.reorderFlush(streamId, decFrameBuffer.size());
+            }
             while (decFrameBuffer.size() > 0) {
                 pushSample(null, false, true);
             }
@@ -157,7 +292,7 @@ public abstract class NalConsumingTrack extends AbstractH264Track {
                 StreamingSample first = decFrameBuffer.remove(0);
                 PictureOrderCountType0SampleExtension poct0se = first.getSampleExtension(PictureOrderCountType0SampleExtension.class);
                 if (poct0se == null) {
-                    sampleSink.acceptSample(first, this);
+                    emitSample(first);
                 } else {
                     log.debug("PictureOrderCountType0SampleExtension: {}", poct0se);
                     int delay = 0;
@@ -177,13 +312,21 @@ public abstract class NalConsumingTrack extends AbstractH264Track {
                     }
                     first.addSampleExtension(CompositionTimeSampleExtension.create(delay * frametick));
                     //System.err.println("Adding sample");
-                    sampleSink.acceptSample(first, this);
+                    emitSample(first);
                 }
             }
         }
 
     }
 
+    /**
+     * Passes a sample to the sink.
+     */
+    private void emitSample(StreamingSample ss) throws IOException {
+        StreamingEvents.sample(streamId, this, ss);
+        sampleSink.acceptSample(ss, this);
+    }
+
     protected SampleFlagsSampleExtension createSampleFlagsSampleExtension(H264NalUnitHeader nu, SliceHeader sliceHeader) {
         SampleFlagsSampleExtension sampleFlagsSampleExtension = new SampleFlagsSampleExtension();
         if (nu.nal_ref_idc == 0) {
@@ -216,19 +359,109 @@ public abstract class NalConsumingTrack extends AbstractH264Track {
     }
 
     protected StreamingSample createSample(List<ByteBuffer> nals, SliceHeader sliceHeader, H264NalUnitHeader nu) throws IOException {
-        log.debug("Create Sample - unit type: {} slice header: {} nals size: {}", nu.nal_unit_type, sliceHeader, nals.size());
+        if (log.isDebugEnabled()) {
+            log.debug("Create Sample - unit type: {} slice header: {} nals size: {}", nu.nal_unit_type, sliceHeader, nals.size());
+        }
         configure();
         if (timescale == 0 || frametick == 0) {
             throw new IOException("Frame Rate needs to be configured either by hand or by SPS before samples can be created");
         }
 
-        StreamingSample ss = new StreamingSampleImpl(nals, frametick);
+        StreamingSample ss = createSample(nals, frametick);
         ss.addSampleExtension(createSampleFlagsSampleExtension(nu, sliceHeader));
-        ss.addSampleExtension(createPictureOrderCountType0SampleExtension(sliceHeader));
-        log.debug("Streaming sample duration: {}", ss.getDuration());
+        PictureOrderCountType0SampleExtension poct0se = createPictureOrderCountType0SampleExtension(sliceHeader);
+        if (poct0se != null) {
+            ss.addSampleExtension(poct0se);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Streaming sample duration: {}", ss.getDuration());
+        }
         return ss;
     }
 
+    /**
+     * Creates a sample of the nals, each prefixed with its four byte length, in a payload of the store when set.
+     */
+    private StreamingSample createSample(List<ByteBuffer> nals, long duration) {
+        StreamingSample ss;
+        if (payloadStore != null) {
+            int size = 0;
+            for (ByteBuffer nal : nals) {
+                size += 4 + nal.limit();
+            }
+            Payload payload = payloadStore.allocate(size);
+            ByteBuffer content = payload.buffer();
+            for (ByteBuffer nal : nals) {
+                content.putInt(nal.limit());
+                // the slice header parsing moves the nal position, copy all of it
+                ByteBuffer whole = nal.duplicate();
+                whole.rewind();
+                content.put(whole);
+            }
+            content.flip();
+            ss = new StreamingSampleImpl(content, duration);
+            ss.addSampleExtension(payload);
+        } else {
+            ss = new StreamingSampleImpl(nals, duration);
+            // the list constructor leaves the buffer positioned at its end, which makes the trun sample sizes zero
+            ss.getContent().flip();
+        }
+        return ss;
+    }
+
+    /**
+     * Clears everything learned from the stream, the parameter sets, reorder buffers, timing and sample description, so
+     * the track can take another stream. The buffers are kept for reuse.
+     */
+    protected void reset() {
+        decFrameBuffer.clear();
+        decFrameBuffer2.clear();
+        spsIdToSpsBytes.clear();
+        spsIdToSps.clear();
+        ppsIdToPpsBytes.clear();
+        ppsIdToPps.clear();
+        spsForConfig.clear();
+        buffered.clear();
+        pendingFrame = null;
+        frameDuration = 0L;
+        max_dec_frame_buffering = 16;
+        timescale = 0;
+        frametick = 0;
+        configured = false;
+        closed = false;
+        stsd = null;
+        currentSeqParameterSet = null;
+        currentPictureParameterSet = null;
+        fvnd = null;
+        sliceNalUnitHeader = null;
+        parameterSetsChanged = false;
+        // dimensions, composition time and the track id are per stream too
+        trackExtensions.clear();
+    }
+
+    /**
+     * Sets the store for the sample data; samples then hold a {@link Payload} which the sink releases once the sample
+     * has been written.
+     * 
+     * @param payloadStore store or null to keep samples on the heap
+     */
+    public void setPayloadStore(PayloadStore payloadStore) {
+        this.payloadStore = payloadStore;
+    }
+
+    /**
+     * Sets the id of the stream, which the flight recorder events of the track carry.
+     * 
+     * @param streamId stream id
+     */
+    public void setStreamId(String streamId) {
+        this.streamId = streamId;
+    }
+
+    public String getStreamId() {
+        return streamId;
+    }
+
     public void setFrametick(int frametick) {
         this.frametick = frametick;
     }
@@ -240,7 +473,7 @@ public abstract class NalConsumingTrack extends AbstractH264Track {
         if (!configured) {
             SeqParameterSet sps;
             try {
-                sps = spsForConfig.poll(5L, TimeUnit.SECONDS);
+                sps = closed ? spsForConfig.poll() : spsForConfig.poll(5L, TimeUnit.SECONDS);
                 if (sps == null) {
                     log.warn("Can't determine frame rate as no SPS became available in time");
                     return;
@@ -272,7 +505,7 @@ public abstract class NalConsumingTrack extends AbstractH264Track {
                 width -= cropUnitX * (sps.frame_crop_left_offset + sps.frame_crop_right_offset);
                 height -= cropUnitY * (sps.frame_crop_top_offset + sps.frame_crop_bottom_offset);
             }
-            VisualSampleEntry visualSampleEntry = new VisualSampleEntry("avc1");
+            VisualSampleEntry visualSampleEntry = new VisualSampleEntry(inBandParameterSets ? "avc3" : "avc1");
             visualSampleEntry.setDataReferenceIndex(1);
             visualSampleEntry.setDepth(24);
             visualSampleEntry.setFrameCount(1);
@@ -366,7 +599,14 @@ public abstract class NalConsumingTrack extends AbstractH264Track {
         return "eng";
     }
 
-    protected void handlePPS(ByteBuffer nal) {
+    /**
+     * Parses a PPS and makes it current. A PPS replacing one of the same id with different settings, ie. after an
+     * encoder change, is taken; once the sample description is written it's kept in the samples.
+     * 
+     * @param nal pps nal unit
+     * @return true if the nal is to be kept in the sample data
+     */
+    protected boolean handlePPS(ByteBuffer nal) {
         nal.position(1);
         PictureParameterSet _pictureParameterSet = null;
         try {
@@ -374,21 +614,26 @@ public abstract class NalConsumingTrack extends AbstractH264Track {
             currentPictureParameterSet = _pictureParameterSet;
 
             ByteBuffer oldPpsSameId = ppsIdToPpsBytes.get(_pictureParameterSet.pic_parameter_set_id);
-
-            if (oldPpsSameId != null && !oldPpsSameId.equals(nal)) {
-                throw new RuntimeException("OMG - I got two SPS with same ID but different settings! (AVC3 is the solution)");
-            } else {
-                ppsIdToPpsBytes.put(_pictureParameterSet.pic_parameter_set_id, nal);
-                ppsIdToPps.put(_pictureParameterSet.pic_parameter_set_id, _pictureParameterSet);
+            if (oldPpsSameId != null && !sameBytes(oldPpsSameId, nal)) {
+                parameterSetsChanged(_pictureParameterSet.pic_parameter_set_id, "PPS");
             }
+            ppsIdToPpsBytes.put(_pictureParameterSet.pic_parameter_set_id, nal);
+            ppsIdToPps.put(_pictureParameterSet.pic_parameter_set_id, _pictureParameterSet);
             log.debug("PPS: {}", _pictureParameterSet);
         } catch (IOException e) {
             throw new RuntimeException("That's surprising to get IOException when working on ByteArrayInputStream", e);
         }
-
+        return inBandParameterSets || parameterSetsChanged;
     }
 
-    protected void handleSPS(ByteBuffer data) {
+    /**
+     * Parses an SPS and makes it current. An SPS replacing one of the same id with different settings, ie. a new
+     * resolution, is taken; once the sample description is written it's kept in the samples.
+     * 
+     * @param data sps nal unit
+     * @return true if the nal is to be kept in the sample data
+     */
+    protected boolean handleSPS(ByteBuffer data) {
         data.position(1);
         try {
             SeqParameterSet _seqParameterSet = SeqParameterSet.read(data);
@@ -396,21 +641,99 @@ public abstract class NalConsumingTrack extends AbstractH264Track {
             currentSeqParameterSet = _seqParameterSet;
 
             ByteBuffer oldSpsSameId = spsIdToSpsBytes.get(_seqParameterSet.seq_parameter_set_id);
-            if (oldSpsSameId != null && !oldSpsSameId.equals(data)) {
-                throw new RuntimeException("OMG - I got two SPS with same ID but different settings!");
-            } else {
-                spsIdToSpsBytes.put(_seqParameterSet.seq_parameter_set_id, data);
-                spsIdToSps.put(_seqParameterSet.seq_parameter_set_id, _seqParameterSet);
+            boolean changed = oldSpsSameId != null && !sameBytes(oldSpsSameId, data);
+            if (changed) {
+                parameterSetsChanged(_seqParameterSet.seq_parameter_set_id, "SPS");
+            }
+            spsIdToSpsBytes.put(_seqParameterSet.seq_parameter_set_id, data);
+            spsIdToSps.put(_seqParameterSet.seq_parameter_set_id, _seqParameterSet);
+            if (!configured) {
+                if (changed) {
+                    // the sample description is made of the latest
+                    spsForConfig.clear();
+                }
                 spsForConfig.add(_seqParameterSet);
             }
             log.debug("SPS: {}", _seqParameterSet);
         } catch (IOException e) {
             throw new RuntimeException("That's surprising to get IOException when working on ByteArrayInputStream", e);
         }
+        return inBandParameterSets || parameterSetsChanged;
+    }
+
+    /**
+     * Notes a parameter set change. Before the sample description is created the new set simply replaces the old one,
+     * afterward it's carried in-band, which avc1 doesn't provide for.
+     */
+    private void parameterSetsChanged(int id, String type) {
+        if (!configured) {
+            log.debug("{} {} replaced before the sample description was created", type, id);
+        } else if (!parameterSetsChanged) {
+            parameterSetsChanged = true;
+            if (inBandParameterSets) {
+                log.debug("{} {} changed, carrying it in-band", type, id);
+            } else {
+                log.warn("{} {} changed mid-stream, carrying it in-band though the avc1 sample description doesn't provide for it; use in-band parameter sets (avc3) for streams which change settings", type, id);
+            }
+        }
+    }
+
+    /**
+     * Whether two nal units hold the same bytes, regardless of their positions.
+     */
+    private static boolean sameBytes(ByteBuffer a, ByteBuffer b) {
+        if (a.limit() != b.limit()) {
+            return false;
+        }
+        for (int i = 0; i < a.limit(); i++) {
+            if (a.get(i) != b.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Keeps the parameter sets in the samples where they arrive and describes the track as avc3, so the stream may change
+     * its parameter sets, ie. its resolution, at any IDR. Must be set before the sample description is created.
+     * 
+     * @param inBandParameterSets true for avc3
+     */
+    public void setInBandParameterSets(boolean inBandParameterSets) {
+        this.inBandParameterSets = inBandParameterSets;
+    }
 
+    public boolean isInBandParameterSets() {
+        return inBandParameterSets;
     }
 
     public void close() throws IOException {
+        closed = true;
+    }
+
+    /**
+     * A whole frame held until its duration is known.
+     */
+    static final class PendingFrame {
+
+        final List<ByteBuffer> units;
+
+        final int timestamp;
+
+        final int compositionTime;
+
+        final boolean keyFrame;
+
+        final int nalRefIdc;
+
+        PendingFrame(List<ByteBuffer> units, int timestamp, int compositionTime, boolean keyFrame, int nalRefIdc) {
+            this.units = units;
+            this.timestamp = timestamp;
+            this.compositionTime = compositionTime;
+            this.keyFrame = keyFrame;
+            this.nalRefIdc = nalRefIdc;
+        }
+
     }
 
     class FirstVclNalDetector {
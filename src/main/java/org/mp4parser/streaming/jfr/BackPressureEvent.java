@@ -0,0 +1,28 @@
+package org.mp4parser.streaming.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A stream buffering more than its share of memory, so its disposable frames are dropped or its fragments flushed
+ * early; the track queues themselves are unbounded.
+ */
+@Name("org.mp4parser.streaming.BackPressure")
+@Label("Back Pressure")
+@Category({ "MP4", "Muxing" })
+@Description("A stream buffering more than its share of memory")
+@StackTrace(false)
+public class BackPressureEvent extends StreamEvent {
+
+    @Label("Pressure")
+    String pressure;
+
+    @Label("Buffered")
+    @DataAmount(DataAmount.BYTES)
+    long bufferedBytes;
+
+}
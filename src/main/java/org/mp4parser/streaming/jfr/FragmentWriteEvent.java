@@ -0,0 +1,33 @@
+package org.mp4parser.streaming.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A fragment written to an output; its duration is the write.
+ */
+@Name("org.mp4parser.streaming.FragmentWrite")
+@Label("Fragment Write")
+@Category({ "MP4", "Muxing" })
+@Description("A fragment written to an output")
+@StackTrace(false)
+public class FragmentWriteEvent extends StreamEvent {
+
+    @Label("Track Id")
+    long trackId;
+
+    @Label("Sequence Number")
+    long sequenceNumber;
+
+    @Label("Bytes")
+    @DataAmount(DataAmount.BYTES)
+    long bytes;
+
+    @Label("Random Access")
+    boolean randomAccess;
+
+}
@@ -0,0 +1,29 @@
+package org.mp4parser.streaming.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A nal unit consumed by an h.264 track.
+ */
+@Name("org.mp4parser.streaming.Nal")
+@Label("NAL Consumed")
+@Category({ "MP4", "Muxing" })
+@Description("A nal unit consumed by an h.264 track")
+@Enabled(false)
+@StackTrace(false)
+public class NalEvent extends StreamEvent {
+
+    @Label("NAL Unit Type")
+    int nalType;
+
+    @Label("Size")
+    @DataAmount(DataAmount.BYTES)
+    int size;
+
+}
@@ -0,0 +1,23 @@
+package org.mp4parser.streaming.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The pictures held for reordering by an h.264 track passed on all at once, ie. when frames with known timing follow
+ * or at the end of the stream.
+ */
+@Name("org.mp4parser.streaming.ReorderFlush")
+@Label("Reorder Buffer Flush")
+@Category({ "MP4", "Muxing" })
+@Description("The pictures held for reordering passed on all at once")
+@StackTrace(false)
+public class ReorderFlushEvent extends StreamEvent {
+
+    @Label("Samples")
+    int samples;
+
+}
@@ -0,0 +1,39 @@
+package org.mp4parser.streaming.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A sample passed by a track to its sink.
+ */
+@Name("org.mp4parser.streaming.Sample")
+@Label("Sample Emitted")
+@Category({ "MP4", "Muxing" })
+@Description("A sample passed by a track to its sink")
+@Enabled(false)
+@StackTrace(false)
+public class SampleEvent extends StreamEvent {
+
+    @Label("Handler")
+    String handler;
+
+    @Label("Track Id")
+    long trackId;
+
+    @Label("Size")
+    @DataAmount(DataAmount.BYTES)
+    int size;
+
+    @Label("Sample Duration")
+    @Description("Duration in the track's timescale")
+    long sampleDuration;
+
+    @Label("Sync Sample")
+    boolean sync;
+
+}
@@ -0,0 +1,14 @@
+package org.mp4parser.streaming.jfr;
+
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+
+/**
+ * An event of the muxing pipeline of a stream.
+ */
+abstract class StreamEvent extends Event {
+
+    @Label("Stream")
+    String streamId;
+
+}
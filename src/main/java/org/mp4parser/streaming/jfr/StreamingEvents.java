@@ -0,0 +1,159 @@
+package org.mp4parser.streaming.jfr;
+
+import org.mp4parser.streaming.StreamingSample;
+import org.mp4parser.streaming.StreamingTrack;
+import org.mp4parser.streaming.extensions.SampleFlagsSampleExtension;
+import org.mp4parser.streaming.extensions.TrackIdTrackExtension;
+
+/**
+ * Flight Recorder events of the muxing pipeline, each carrying the id of its stream. An event costs a check of its
+ * enabled flag unless a recording has it enabled; the tag, nal and sample events are disabled by default, so they must
+ * be enabled in the recording settings, ie. <code>jfr configure +org.mp4parser.streaming.Nal#enabled=true</code>.
+ * <br>
+ * On a Java 8 runtime without Flight Recorder the events are skipped altogether.
+ */
+public final class StreamingEvents {
+
+    private static final boolean AVAILABLE = isAvailable();
+
+    private StreamingEvents() {
+    }
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Starts timing the parse of a tag.
+     *
+     * @return the event, or null if not recorded
+     */
+    public static TagEvent beginTag() {
+        if (AVAILABLE) {
+            TagEvent event = new TagEvent();
+            if (event.isEnabled()) {
+                event.begin();
+                return event;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Commits the parse of a tag.
+     *
+     * @param event event from {@link #beginTag()}, may be null
+     */
+    public static void endTag(TagEvent event, String streamId, byte dataType, int timestamp, int size, boolean accepted) {
+        if (event != null && event.shouldCommit()) {
+            event.streamId = streamId;
+            event.dataType = dataType;
+            event.timestamp = timestamp;
+            event.size = size;
+            event.accepted = accepted;
+            event.commit();
+        }
+    }
+
+    /**
+     * Records a nal unit consumed by a track.
+     */
+    public static void nal(String streamId, int nalType, int size) {
+        if (AVAILABLE) {
+            NalEvent event = new NalEvent();
+            if (event.shouldCommit()) {
+                event.streamId = streamId;
+                event.nalType = nalType;
+                event.size = size;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Records a sample passed by a track to its sink.
+     */
+    public static void sample(String streamId, StreamingTrack track, StreamingSample sample) {
+        if (AVAILABLE) {
+            SampleEvent event = new SampleEvent();
+            if (event.shouldCommit()) {
+                event.streamId = streamId;
+                event.handler = track.getHandler();
+                TrackIdTrackExtension trackId = track.getTrackExtension(TrackIdTrackExtension.class);
+                event.trackId = trackId != null ? trackId.getTrackId() : 0L;
+                event.size = sample.getContent().limit();
+                event.sampleDuration = sample.getDuration();
+                SampleFlagsSampleExtension flags = sample.getSampleExtension(SampleFlagsSampleExtension.class);
+                event.sync = flags == null || !flags.isSampleIsNonSyncSample();
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Records the reorder buffer of a track passed on all at once.
+     */
+    public static void reorderFlush(String streamId, int samples) {
+        if (AVAILABLE) {
+            ReorderFlushEvent event = new ReorderFlushEvent();
+            if (event.shouldCommit()) {
+                event.streamId = streamId;
+                event.samples = samples;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Starts timing the write of a fragment.
+     *
+     * @return the event, or null if not recorded
+     */
+    public static FragmentWriteEvent beginFragment() {
+        if (AVAILABLE) {
+            FragmentWriteEvent event = new FragmentWriteEvent();
+            if (event.isEnabled()) {
+                event.begin();
+                return event;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Commits the write of a fragment.
+     *
+     * @param event event from {@link #beginFragment()}, may be null
+     */
+    public static void endFragment(FragmentWriteEvent event, String streamId, long trackId, long sequenceNumber, long bytes, boolean randomAccess) {
+        if (event != null && event.shouldCommit()) {
+            event.streamId = streamId;
+            event.trackId = trackId;
+            event.sequenceNumber = sequenceNumber;
+            event.bytes = bytes;
+            event.randomAccess = randomAccess;
+            event.commit();
+        }
+    }
+
+    /**
+     * Records a stream over its share of memory.
+     */
+    public static void backPressure(String streamId, String pressure, long bufferedBytes) {
+        if (AVAILABLE) {
+            BackPressureEvent event = new BackPressureEvent();
+            if (event.shouldCommit()) {
+                event.streamId = streamId;
+                event.pressure = pressure;
+                event.bufferedBytes = bufferedBytes;
+                event.commit();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,37 @@
+package org.mp4parser.streaming.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A tag parsed and queued for the tracks; its duration is the parse.
+ */
+@Name("org.mp4parser.streaming.Tag")
+@Label("Tag Ingest")
+@Category({ "MP4", "Muxing" })
+@Description("A tag parsed and queued for the tracks")
+@Enabled(false)
+@StackTrace(false)
+public class TagEvent extends StreamEvent {
+
+    @Label("Data Type")
+    @Description("8 for audio, 9 for video")
+    byte dataType;
+
+    @Label("Timestamp")
+    @Description("Tag timestamp in milliseconds")
+    int timestamp;
+
+    @Label("Size")
+    @DataAmount(DataAmount.BYTES)
+    int size;
+
+    @Label("Accepted")
+    boolean accepted;
+
+}
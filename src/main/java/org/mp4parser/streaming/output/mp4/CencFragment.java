@@ -0,0 +1,342 @@
+package org.mp4parser.streaming.output.mp4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+
+import org.mp4parser.Box;
+import org.mp4parser.IsoFile;
+import org.mp4parser.boxes.iso14496.part12.MovieFragmentBox;
+import org.mp4parser.boxes.iso14496.part12.SampleAuxiliaryInformationOffsetsBox;
+import org.mp4parser.boxes.iso14496.part12.SampleAuxiliaryInformationSizesBox;
+import org.mp4parser.boxes.iso14496.part12.TrackFragmentBox;
+import org.mp4parser.streaming.SampleExtension;
+import org.mp4parser.streaming.StreamingSample;
+
+/**
+ * The encryption of one fragment of a track. The subsample ranges and IVs are laid out when the fragment is created,
+ * so its boxes have their final sizes, and the samples are encrypted later by {@link #encrypt()}, into buffers of their
+ * own as the clear samples may be shared with other outputs.
+ */
+class CencFragment {
+
+    // sample auxiliary information sizes are a byte, which caps the subsamples of a sample
+    private static final int MAX_SUBSAMPLES = (255 - 8 - 2) / 6;
+
+    // bytes of a clear range are an unsigned short
+    private static final int MAX_CLEAR = 0xffff;
+
+    private final CommonEncryption encryption;
+
+    private final boolean video;
+
+    private final List<StreamingSample> clearSamples;
+
+    private final List<EncryptedSample> samples;
+
+    private final SampleEncryptionBox senc = new SampleEncryptionBox();
+
+    private SampleAuxiliaryInformationOffsetsBox saio;
+
+    /**
+     * Lays out the encryption of the samples.
+     *
+     * @param encryption settings
+     * @param video whether the samples are length prefixed h.264 access units
+     * @param clearSamples samples of the fragment
+     * @param firstIv IV of the first sample, incremented for each following one; unused by cbcs
+     */
+    CencFragment(CommonEncryption encryption, boolean video, List<StreamingSample> clearSamples, long firstIv) {
+        this.encryption = encryption;
+        this.video = video;
+        this.clearSamples = clearSamples;
+        samples = new ArrayList<>(clearSamples.size());
+        long iv = firstIv;
+        for (StreamingSample sample : clearSamples) {
+            ByteBuffer content = sample.getContent().duplicate();
+            content.rewind();
+            int[] ranges = video ? subsamples(content, encryption.getScheme()) : null;
+            samples.add(new EncryptedSample(sample, content.remaining(), encryption.getIvSize() > 0 ? iv++ : 0L, ranges));
+        }
+    }
+
+    /**
+     * Returns the encrypted samples, their content is only complete once encrypted.
+     */
+    List<StreamingSample> getSamples() {
+        return new ArrayList<StreamingSample>(samples);
+    }
+
+    /**
+     * Whether the samples carry auxiliary information; not so with cbcs audio, where the constant IV is all there is.
+     */
+    boolean hasAuxiliaryInformation() {
+        return video || encryption.getIvSize() > 0;
+    }
+
+    /**
+     * Adds the sample auxiliary information sizes and offsets and the sample encryption box to the track fragment.
+     */
+    void addBoxes(TrackFragmentBox traf) {
+        if (!hasAuxiliaryInformation()) {
+            return;
+        }
+        SampleAuxiliaryInformationSizesBox saiz = new SampleAuxiliaryInformationSizesBox();
+        short[] sizes = new short[samples.size()];
+        boolean uniform = true;
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = (short) samples.get(i).getAuxiliaryInformationSize();
+            uniform &= sizes[i] == sizes[0];
+        }
+        if (uniform && sizes.length > 0) {
+            saiz.setDefaultSampleInfoSize(sizes[0]);
+            saiz.setSampleCount(sizes.length);
+        } else {
+            saiz.setSampleInfoSizes(sizes);
+        }
+        traf.addBox(saiz);
+        saio = new SampleAuxiliaryInformationOffsetsBox();
+        saio.setOffsets(new long[1]);
+        traf.addBox(saio);
+        traf.addBox(senc);
+    }
+
+    /**
+     * Points the auxiliary information offset at the first entry of the sample encryption box; the offset is relative
+     * to the moof, the tracks' base data offset. Called once the fragment is complete.
+     */
+    void setAuxiliaryInformationOffset(MovieFragmentBox moof) {
+        if (saio == null) {
+            return;
+        }
+        long offset = 8L;
+        for (Box box : moof.getBoxes()) {
+            if (box instanceof TrackFragmentBox && ((TrackFragmentBox) box).getBoxes().contains(senc)) {
+                offset += 8L;
+                for (Box child : ((TrackFragmentBox) box).getBoxes()) {
+                    if (child == senc) {
+                        break;
+                    }
+                    offset += child.getSize();
+                }
+                break;
+            }
+            offset += box.getSize();
+        }
+        // full box header and sample count
+        saio.setOffsets(new long[] { offset + 16L });
+    }
+
+    /**
+     * Encrypts the samples.
+     *
+     * @throws GeneralSecurityException
+     */
+    void encrypt() throws GeneralSecurityException {
+        boolean cbcs = encryption.getScheme() == CommonEncryption.Scheme.CBCS;
+        Cipher cipher = Cipher.getInstance(cbcs ? "AES/CBC/NoPadding" : "AES/CTR/NoPadding");
+        byte[] counter = new byte[16];
+        for (int i = 0; i < samples.size(); i++) {
+            EncryptedSample sample = samples.get(i);
+            ByteBuffer clear = clearSamples.get(i).getContent().duplicate();
+            clear.rewind();
+            byte[] data = sample.data;
+            clear.get(data);
+            if (!cbcs) {
+                // the counter block starts with the IV, the remaining 8 bytes count the blocks
+                ByteBuffer.wrap(counter).putLong(sample.iv);
+                cipher.init(Cipher.ENCRYPT_MODE, encryption.getKey(), new IvParameterSpec(counter));
+            }
+            int position = 0;
+            int[] ranges = sample.ranges == null ? new int[] { 0, data.length } : sample.ranges;
+            for (int r = 0; r < ranges.length; r += 2) {
+                position += ranges[r];
+                int length = ranges[r + 1];
+                if (cbcs) {
+                    encryptCbcs(cipher, data, position, length);
+                } else if (length > 0) {
+                    // the key stream runs on across the protected ranges of a sample
+                    cipher.update(data, position, length, data, position);
+                }
+                position += length;
+            }
+        }
+    }
+
+    /**
+     * Encrypts a protected range with AES-CBC from the constant IV, for video in the 1:9 pattern of one encrypted
+     * block in ten. A trailing partial block stays clear.
+     */
+    private void encryptCbcs(Cipher cipher, byte[] data, int offset, int length) throws GeneralSecurityException {
+        if (length < 16) {
+            return;
+        }
+        cipher.init(Cipher.ENCRYPT_MODE, encryption.getKey(), new IvParameterSpec(encryption.getConstantIv()));
+        if (!video) {
+            int blocks = length & ~15;
+            cipher.update(data, offset, blocks, data, offset);
+            return;
+        }
+        for (int position = offset, end = offset + length; end - position >= 16; position += 160) {
+            cipher.update(data, position, 16, data, position);
+        }
+    }
+
+    /**
+     * Returns the clear and protected byte counts of the subsamples of a length prefixed access unit. Each slice is
+     * protected after its nal unit header, other units stay clear; cenc protects whole blocks only, leaving the
+     * remainder after the header clear. Clear bytes are carried into the next subsample.
+     */
+    static int[] subsamples(ByteBuffer content, CommonEncryption.Scheme scheme) {
+        List<Integer> ranges = new ArrayList<>();
+        int clear = 0, position = content.position(), end = content.limit();
+        while (position < end) {
+            int size = end - position < 4 ? -1 : content.getInt(position);
+            if (size <= 0 || size > end - position - 4) {
+                // not a complete nal unit, leave the rest in the clear
+                clear += end - position;
+                break;
+            }
+            int type = content.get(position + 4) & 0x1f, protectedBytes = 0;
+            if (type >= 1 && type <= 5 && ranges.size() / 2 < MAX_SUBSAMPLES - 1) {
+                protectedBytes = size - 1;
+                if (scheme == CommonEncryption.Scheme.CENC) {
+                    protectedBytes &= ~15;
+                }
+            }
+            clear += 4 + size - protectedBytes;
+            if (protectedBytes > 0) {
+                while (clear > MAX_CLEAR) {
+                    ranges.add(MAX_CLEAR);
+                    ranges.add(0);
+                    clear -= MAX_CLEAR;
+                }
+                ranges.add(clear);
+                ranges.add(protectedBytes);
+                clear = 0;
+            }
+            position += 4 + size;
+        }
+        while (clear > 0) {
+            int chunk = Math.min(clear, MAX_CLEAR);
+            ranges.add(chunk);
+            ranges.add(0);
+            clear -= chunk;
+        }
+        int[] result = new int[ranges.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ranges.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * A sample with encrypted content, keeping the extensions of the clear sample.
+     */
+    private class EncryptedSample implements StreamingSample {
+
+        final StreamingSample sample;
+
+        final byte[] data;
+
+        final long iv;
+
+        // clear and protected byte counts, null for a whole sample
+        final int[] ranges;
+
+        EncryptedSample(StreamingSample sample, int size, long iv, int[] ranges) {
+            this.sample = sample;
+            this.data = new byte[size];
+            this.iv = iv;
+            this.ranges = ranges;
+        }
+
+        int getAuxiliaryInformationSize() {
+            return encryption.getIvSize() + (ranges == null ? 0 : 2 + 6 * (ranges.length / 2));
+        }
+
+        void writeAuxiliaryInformation(ByteBuffer buffer) {
+            if (encryption.getIvSize() > 0) {
+                buffer.putLong(iv);
+            }
+            if (ranges != null) {
+                buffer.putShort((short) (ranges.length / 2));
+                for (int r = 0; r < ranges.length; r += 2) {
+                    buffer.putShort((short) ranges[r]);
+                    buffer.putInt(ranges[r + 1]);
+                }
+            }
+        }
+
+        @Override
+        public ByteBuffer getContent() {
+            return ByteBuffer.wrap(data);
+        }
+
+        @Override
+        public long getDuration() {
+            return sample.getDuration();
+        }
+
+        @Override
+        public <T extends SampleExtension> T getSampleExtension(Class<T> clazz) {
+            return sample.getSampleExtension(clazz);
+        }
+
+        @Override
+        public void addSampleExtension(SampleExtension sampleExtension) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T extends SampleExtension> T removeSampleExtension(Class<T> clazz) {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+    /**
+     * The sample encryption box; written by hand as the parser's one can't hold the empty IVs of cbcs.
+     */
+    private class SampleEncryptionBox implements Box {
+
+        @Override
+        public String getType() {
+            return "senc";
+        }
+
+        @Override
+        public long getSize() {
+            long size = 16L;
+            for (EncryptedSample sample : samples) {
+                size += sample.getAuxiliaryInformationSize();
+            }
+            return size;
+        }
+
+        @Override
+        public void getBox(WritableByteChannel writableByteChannel) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate((int) getSize());
+            buffer.putInt(buffer.capacity());
+            buffer.put(IsoFile.fourCCtoBytes("senc"));
+            // flags: subsample information present
+            buffer.putInt(video ? 2 : 0);
+            buffer.putInt(samples.size());
+            for (EncryptedSample sample : samples) {
+                sample.writeAuxiliaryInformation(buffer);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                writableByteChannel.write(buffer);
+            }
+        }
+
+    }
+
+}
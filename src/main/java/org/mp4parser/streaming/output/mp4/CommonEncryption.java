@@ -0,0 +1,261 @@
+package org.mp4parser.streaming.output.mp4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.mp4parser.Box;
+import org.mp4parser.IsoFile;
+import org.mp4parser.boxes.iso14496.part12.OriginalFormatBox;
+import org.mp4parser.boxes.iso14496.part12.ProtectionSchemeInformationBox;
+import org.mp4parser.boxes.iso14496.part12.SchemeInformationBox;
+import org.mp4parser.boxes.iso14496.part12.SchemeTypeBox;
+import org.mp4parser.boxes.iso23001.part7.ProtectionSystemSpecificHeaderBox;
+import org.mp4parser.tools.ByteBufferByteChannel;
+import org.mp4parser.tools.CastUtils;
+import org.mp4parser.tools.UUIDConverter;
+
+/**
+ * Common Encryption (ISO/IEC 23001-7) settings of a stream: the scheme, the key and its id, and the protection system
+ * headers to put in the init segment. With these set on a {@link MultiTrackFragmentedMp4Writer} its samples are
+ * encrypted as they are fragmented.
+ * <br>
+ * With the cenc scheme each sample has its own 8 byte IV and is encrypted with AES-CTR. With cbcs all samples use one
+ * constant IV and AES-CBC, video with the 1:9 pattern. Video samples are subsample encrypted, leaving the nal unit
+ * lengths and headers and any non-VCL unit in the clear; audio samples are encrypted whole.
+ */
+public class CommonEncryption {
+
+    public enum Scheme {
+
+        CENC("cenc"), CBCS("cbcs");
+
+        private final String fourcc;
+
+        Scheme(String fourcc) {
+            this.fourcc = fourcc;
+        }
+
+        public String getFourcc() {
+            return fourcc;
+        }
+
+    }
+
+    private final Scheme scheme;
+
+    private final UUID keyId;
+
+    private final SecretKeySpec key;
+
+    // cbcs only
+    private byte[] constantIv;
+
+    private final List<ProtectionSystemSpecificHeaderBox> psshBoxes = new ArrayList<>();
+
+    /**
+     * Creates the settings, cbcs gets a random constant IV.
+     *
+     * @param scheme encryption scheme
+     * @param keyId key id
+     * @param key 16 byte AES key
+     */
+    public CommonEncryption(Scheme scheme, UUID keyId, byte[] key) {
+        if (key == null || key.length != 16) {
+            throw new IllegalArgumentException("Key must be 16 bytes");
+        }
+        this.scheme = scheme;
+        this.keyId = keyId;
+        this.key = new SecretKeySpec(key, "AES");
+        if (scheme == Scheme.CBCS) {
+            constantIv = new byte[16];
+            new SecureRandom().nextBytes(constantIv);
+        }
+    }
+
+    /**
+     * Adds a protection system specific header to the init segment, listing the key id.
+     *
+     * @param systemId 16 byte system id, ie. {@link ProtectionSystemSpecificHeaderBox#WIDEVINE}
+     * @param data system specific data
+     */
+    public void addPssh(byte[] systemId, byte[] data) {
+        ProtectionSystemSpecificHeaderBox pssh = new ProtectionSystemSpecificHeaderBox(systemId, data);
+        pssh.setVersion(1);
+        pssh.setKeyIds(Collections.singletonList(keyId));
+        psshBoxes.add(pssh);
+    }
+
+    public Scheme getScheme() {
+        return scheme;
+    }
+
+    public UUID getKeyId() {
+        return keyId;
+    }
+
+    SecretKeySpec getKey() {
+        return key;
+    }
+
+    /**
+     * Sets the constant IV of the cbcs scheme.
+     *
+     * @param constantIv 16 byte IV
+     */
+    public void setConstantIv(byte[] constantIv) {
+        if (scheme != Scheme.CBCS || constantIv == null || constantIv.length != 16) {
+            throw new IllegalArgumentException("A 16 byte constant IV is only used with cbcs");
+        }
+        this.constantIv = constantIv.clone();
+    }
+
+    public byte[] getConstantIv() {
+        return constantIv == null ? null : constantIv.clone();
+    }
+
+    public List<ProtectionSystemSpecificHeaderBox> getPsshBoxes() {
+        return Collections.unmodifiableList(psshBoxes);
+    }
+
+    /**
+     * Returns the size of the per sample IVs, 0 when the constant IV is used.
+     */
+    int getIvSize() {
+        return scheme == Scheme.CENC ? 8 : 0;
+    }
+
+    /**
+     * Returns the sample description with its entries renamed to encv / enca and the protection scheme appended, the
+     * track's own description is left as it is, other outputs may share it.
+     */
+    Box protect(Box stsd, boolean video) {
+        ByteBuffer original = serialize(stsd);
+        // full box header and entry count
+        int position = 16, entries = original.getInt(12);
+        List<ByteBuffer> protectedEntries = new ArrayList<>(entries);
+        for (int i = 0; i < entries; i++) {
+            int size = original.getInt(position);
+            byte[] format = new byte[4];
+            original.position(position + 4);
+            original.get(format);
+            ByteBuffer sinf = serialize(createSinf(IsoFile.bytesToFourCC(format), video));
+            ByteBuffer entry = ByteBuffer.allocate(size + sinf.limit());
+            ByteBuffer content = original.duplicate();
+            content.limit(position + size).position(position + 8);
+            entry.putInt(size + sinf.limit());
+            entry.put(IsoFile.fourCCtoBytes(video ? "encv" : "enca"));
+            entry.put(content);
+            entry.put(sinf);
+            entry.flip();
+            protectedEntries.add(entry);
+            position += size;
+        }
+        int size = 16;
+        for (ByteBuffer entry : protectedEntries) {
+            size += entry.limit();
+        }
+        ByteBuffer box = ByteBuffer.allocate(size);
+        box.putInt(size);
+        original.limit(16).position(4);
+        box.put(original);
+        for (ByteBuffer entry : protectedEntries) {
+            box.put(entry);
+        }
+        box.flip();
+        return new RawBox("stsd", box);
+    }
+
+    private Box createSinf(String format, boolean video) {
+        ProtectionSchemeInformationBox sinf = new ProtectionSchemeInformationBox();
+        OriginalFormatBox frma = new OriginalFormatBox();
+        frma.setDataFormat(format);
+        sinf.addBox(frma);
+        SchemeTypeBox schm = new SchemeTypeBox();
+        schm.setSchemeType(scheme.getFourcc());
+        schm.setSchemeVersion(0x10000);
+        sinf.addBox(schm);
+        SchemeInformationBox schi = new SchemeInformationBox();
+        schi.addBox(createTenc(video));
+        sinf.addBox(schi);
+        return sinf;
+    }
+
+    /**
+     * Creates the track encryption box; written by hand as the parser's one has no pattern or constant IV.
+     */
+    private Box createTenc(boolean video) {
+        boolean cbcs = scheme == Scheme.CBCS;
+        ByteBuffer tenc = ByteBuffer.allocate(32 + (cbcs ? 17 : 0));
+        tenc.putInt(tenc.capacity());
+        tenc.put(IsoFile.fourCCtoBytes("tenc"));
+        // version 1 for the pattern
+        tenc.putInt(cbcs ? 0x01000000 : 0);
+        tenc.put((byte) 0);
+        tenc.put((byte) (cbcs && video ? 0x19 : 0));
+        tenc.put((byte) 1);
+        tenc.put((byte) getIvSize());
+        tenc.put(UUIDConverter.convert(keyId));
+        if (cbcs) {
+            tenc.put((byte) 16);
+            tenc.put(constantIv);
+        }
+        tenc.flip();
+        return new RawBox("tenc", tenc);
+    }
+
+    private static ByteBuffer serialize(Box box) {
+        ByteBuffer buffer = ByteBuffer.allocate(CastUtils.l2i(box.getSize()));
+        try {
+            box.getBox(new ByteBufferByteChannel(buffer));
+        } catch (IOException e) {
+            // not thrown by a buffer
+            throw new IllegalStateException(e);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * A box written from its serialized bytes.
+     */
+    static class RawBox implements Box {
+
+        private final String type;
+
+        private final ByteBuffer data;
+
+        RawBox(String type, ByteBuffer data) {
+            this.type = type;
+            this.data = data;
+        }
+
+        @Override
+        public String getType() {
+            return type;
+        }
+
+        @Override
+        public long getSize() {
+            return data.limit();
+        }
+
+        @Override
+        public void getBox(WritableByteChannel writableByteChannel) throws IOException {
+            ByteBuffer content = data.duplicate();
+            content.rewind();
+            while (content.hasRemaining()) {
+                writableByteChannel.write(content);
+            }
+        }
+
+    }
+
+}
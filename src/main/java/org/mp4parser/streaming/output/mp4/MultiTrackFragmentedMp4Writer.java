@@ -0,0 +1,1171 @@
+package org.mp4parser.streaming.output.mp4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mp4parser.Box;
+import org.mp4parser.IsoFile;
+import org.mp4parser.boxes.iso14496.part12.MovieBox;
+import org.mp4parser.boxes.iso14496.part12.MovieFragmentBox;
+import org.mp4parser.boxes.iso14496.part12.MovieFragmentHeaderBox;
+import org.mp4parser.boxes.iso14496.part12.SampleTableBox;
+import org.mp4parser.boxes.iso14496.part12.TrackFragmentBox;
+import org.mp4parser.streaming.SampleExtension;
+import org.mp4parser.streaming.StreamingSample;
+import org.mp4parser.streaming.StreamingTrack;
+import org.mp4parser.streaming.extensions.SampleFlagsSampleExtension;
+import org.mp4parser.streaming.extensions.TrackIdTrackExtension;
+import org.mp4parser.streaming.input.Payload;
+import org.mp4parser.streaming.input.aac.AACStreamingTrack;
+import org.mp4parser.streaming.jfr.FragmentWriteEvent;
+import org.mp4parser.streaming.jfr.StreamingEvents;
+import org.mp4parser.tools.ByteBufferByteChannel;
+import org.mp4parser.tools.CastUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fragmented MP4 writer for our a/v tracks which numbers its fragments, keeps the random access offsets in step with
+ * what is actually written and notifies listeners as each fragment reaches the channel.
+ * <br>
+ * Fragments are interleaved by their start times, so a track which stops producing samples would hold back the
+ * fragments of all the others. With an interleave window set, a track lagging the leading track by more than the window
+ * no longer holds them back; depending on the lag policy the fragments are written without it or its gap is filled
+ * with silence. Each writer locks on itself rather than the shared parent lock, so writers don't contend with each
+ * other.
+ * <br>
+ * To shed buffered media, such as under memory pressure, the writer can drop disposable samples, those no other
+ * sample depends on, and flush its buffered samples into fragments early.
+ * <br>
+ * With a {@link SegmentCache} the init segment and the fragments of the latest GOP are kept as written, for late
+ * joining subscribers, and with a {@link TimeShiftBuffer} those of the last few minutes, for rewinding.
+ * <br>
+ * The output can be rolled over to another channel, such as the next file of a long recording. The switch happens at
+ * the next random access fragment: the current channel gets the random access boxes of the fragments it holds and the
+ * new one a fresh init segment of the same tracks, so nothing is dropped and the tracks carry on undisturbed. The
+ * decode times and sequence numbers continue across the channels.
+ * <br>
+ * With {@link CommonEncryption} set, the samples are encrypted as they are fragmented and the init segment and
+ * fragments carry the protection boxes, so no second pass over the recording is needed.
+ */
+public class MultiTrackFragmentedMp4Writer extends FragmentedMp4Writer {
+
+    private static Logger log = LoggerFactory.getLogger(MultiTrackFragmentedMp4Writer.class);
+
+    private CopyOnWriteArrayList<FragmentListener> listeners = new CopyOnWriteArrayList<>();
+
+    private CopyOnWriteArrayList<RolloverListener> rolloverListeners = new CopyOnWriteArrayList<>();
+
+    // channel written to, replaced on rollover
+    private WritableByteChannel output;
+
+    // channel to switch to at the next random access fragment
+    private WritableByteChannel pendingOutput;
+
+    // set while the init segment of a rolled over channel is written
+    private boolean rollingOver;
+
+    // write start times of the tracks when the current channel was switched to
+    private volatile Map<StreamingTrack, Long> channelStartTimes = Collections.emptyMap();
+
+    // number of fragments written per track, used to find their tfra entries
+    private Map<StreamingTrack, Integer> fragmentsWritten = new HashMap<>();
+
+    // media time in milliseconds a track may lag the leading track before it stops holding back fragments, zero or
+    // less to always wait for it
+    private volatile long interleaveWindow;
+
+    private volatile LagPolicy lagPolicy = LagPolicy.WAIT;
+
+    // number of silent samples generated to fill gaps
+    private long silentSamples;
+
+    // samples holding pooled payloads which have not been released yet
+    private Set<StreamingSample> unreleased = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // samples of each created fragment which hold payloads, keyed by the fragment's moof
+    private Map<Box, List<StreamingSample>> fragmentSamples = new IdentityHashMap<>();
+
+    // sample bytes accepted and not yet written
+    private volatile long bufferedBytes;
+
+    private volatile boolean dropDisposableSamples;
+
+    // number of disposable samples dropped
+    private long droppedSamples;
+
+    private boolean closed;
+
+    // keeps the init segment and the latest gop for late joiners
+    private volatile SegmentCache segmentCache;
+
+    // keeps the init segment and the fragments of the last minutes for rewinding
+    private volatile TimeShiftBuffer timeShiftBuffer;
+
+    // stream the flight recorder events are tagged with
+    private volatile String streamId;
+
+    // tracks left out of the file as they had no samples when the track set was decided
+    private Set<StreamingTrack> absentTracks = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // fragments which start with a sync sample of the video track, keyed by moof
+    private Set<Box> randomAccessFragments = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // start times in milliseconds of the fragments created for the segment cache or time-shift buffer, keyed by moof
+    private Map<Box, Long> fragmentStartTimes = new IdentityHashMap<>();
+
+    // bytes of the boxes last written, when they're kept for the segment cache or time-shift buffer
+    private ByteBuffer lastWritten;
+
+    // common encryption of the samples, null for clear output
+    private volatile CommonEncryption encryption;
+
+    // IV of the next sample of each track, with the cenc scheme
+    private Map<StreamingTrack, Long> nextIvs = new HashMap<>();
+
+    // encryption of the fragment being created
+    private CencFragment cencFragment;
+
+    // encryption of each created fragment, keyed by moof; the fragment is written once it completes
+    private Map<Box, CompletableFuture<Void>> encryptions = new IdentityHashMap<>();
+
+    private final static AtomicInteger encryptorCount = new AtomicInteger();
+
+    /**
+     * Encrypts the fragments of all writers, many fragments at a time.
+     */
+    private final static ExecutorService encryptors = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+        Thread thread = new Thread(r, "CencEncryptor-" + encryptorCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public MultiTrackFragmentedMp4Writer(List<StreamingTrack> source, WritableByteChannel sink) throws IOException {
+        super(source, sink);
+        // tracks may be left out while others read the track set
+        this.source = new CopyOnWriteArrayList<>(this.source);
+        output = sink;
+    }
+
+    public void addFragmentListener(FragmentListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeFragmentListener(FragmentListener listener) {
+        listeners.remove(listener);
+    }
+
+    public void addRolloverListener(RolloverListener listener) {
+        rolloverListeners.add(listener);
+    }
+
+    public void removeRolloverListener(RolloverListener listener) {
+        rolloverListeners.remove(listener);
+    }
+
+    /**
+     * Switches the output to another channel at the next random access fragment, or before the header if nothing has
+     * been written yet. The rollover listeners are told once the switch is made and the current channel is complete; closing
+     * it is up to them. A later request replaces a pending one.
+     *
+     * @param channel channel to continue on
+     * @return the channel of a pending rollover which was replaced, or null
+     * @throws IOException
+     */
+    public synchronized WritableByteChannel rollover(WritableByteChannel channel) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Writer is closed");
+        }
+        WritableByteChannel replaced = pendingOutput;
+        pendingOutput = channel;
+        return replaced;
+    }
+
+    /**
+     * Whether the writer has been closed; the remaining fragments are still being written while closing.
+     *
+     * @return true if closed
+     */
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Whether a rollover is waiting for the next random access fragment.
+     *
+     * @return true if pending
+     */
+    public synchronized boolean isRolloverPending() {
+        return pendingOutput != null;
+    }
+
+    /**
+     * Returns the number of bytes written to the current channel.
+     *
+     * @return bytes written
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Returns the media time written to the current channel, by the track furthest along.
+     *
+     * @return duration in milliseconds
+     */
+    public long getWrittenDuration() {
+        Map<StreamingTrack, Long> startTimes = channelStartTimes;
+        long duration = 0L;
+        for (StreamingTrack track : source) {
+            long timescale = track.getTimescale();
+            if (timescale > 0L) {
+                Long start = startTimes.get(track);
+                duration = Math.max(duration, (nextFragmentWriteStartTime.get(track) - (start != null ? start : 0L)) * 1000L / timescale);
+            }
+        }
+        return duration;
+    }
+
+    /**
+     * Sets the interleave window and what to do with a track lagging by more than it.
+     *
+     * @param interleaveWindow lag in milliseconds of media time, zero or less to always wait
+     * @param lagPolicy policy for lagging tracks
+     */
+    public void setInterleaveWindow(long interleaveWindow, LagPolicy lagPolicy) {
+        this.interleaveWindow = interleaveWindow;
+        this.lagPolicy = lagPolicy;
+    }
+
+    public long getInterleaveWindow() {
+        return interleaveWindow;
+    }
+
+    public LagPolicy getLagPolicy() {
+        return lagPolicy;
+    }
+
+    /**
+     * Returns the number of silent samples generated to fill gaps in lagging tracks.
+     *
+     * @return sample count
+     */
+    public synchronized long getSilentSamples() {
+        return silentSamples;
+    }
+
+    /**
+     * Returns the bytes of the samples accepted and not yet written, whether waiting for their fragment to be cut or
+     * queued behind another track.
+     *
+     * @return bytes
+     */
+    public long getBufferedBytes() {
+        return bufferedBytes;
+    }
+
+    /**
+     * Sets whether disposable samples, those marked as not depended on such as non-reference b-frames, are dropped.
+     * The preceding sample is extended by the duration of a dropped one, so the timeline is kept.
+     *
+     * @param dropDisposableSamples true to drop them
+     */
+    public void setDropDisposableSamples(boolean dropDisposableSamples) {
+        this.dropDisposableSamples = dropDisposableSamples;
+    }
+
+    public boolean isDropDisposableSamples() {
+        return dropDisposableSamples;
+    }
+
+    /**
+     * Returns the number of disposable samples dropped.
+     *
+     * @return sample count
+     */
+    public synchronized long getDroppedSamples() {
+        return droppedSamples;
+    }
+
+    /**
+     * Sets the id of the stream, which the flight recorder events of the writer carry.
+     *
+     * @param streamId stream id
+     */
+    public void setStreamId(String streamId) {
+        this.streamId = streamId;
+    }
+
+    public String getStreamId() {
+        return streamId;
+    }
+
+    /**
+     * Sets the cache which keeps the init segment and the fragments since the last random access fragment; must be set
+     * before the header is written. With a cache, the boxes are serialized into a buffer which is written to the channel
+     * and then kept.
+     *
+     * @param segmentCache cache or null for none
+     */
+    public void setSegmentCache(SegmentCache segmentCache) {
+        this.segmentCache = segmentCache;
+    }
+
+    public SegmentCache getSegmentCache() {
+        return segmentCache;
+    }
+
+    /**
+     * Sets the buffer which keeps the init segment and the fragments of the last few minutes; must be set before the
+     * header is written. As with a segment cache, the boxes are serialized into a buffer which is written to the
+     * channel and then kept.
+     *
+     * @param timeShiftBuffer buffer or null for none
+     */
+    public void setTimeShiftBuffer(TimeShiftBuffer timeShiftBuffer) {
+        this.timeShiftBuffer = timeShiftBuffer;
+    }
+
+    public TimeShiftBuffer getTimeShiftBuffer() {
+        return timeShiftBuffer;
+    }
+
+    /**
+     * Whether the written boxes are kept, for the segment cache or the time-shift buffer.
+     */
+    private boolean keepsWritten() {
+        return segmentCache != null || timeShiftBuffer != null;
+    }
+
+    /**
+     * Sets the common encryption of the samples; must be set before the header is written. Each fragment is encrypted
+     * on a shared pool as soon as it's created, so the fragments of all tracks and writers are encrypted in parallel
+     * while more samples are buffered, and written once done.
+     *
+     * @param encryption encryption or null for clear output
+     */
+    public synchronized void setEncryption(CommonEncryption encryption) {
+        if (headerWritten) {
+            throw new IllegalStateException("Encryption must be set before the header is written");
+        }
+        this.encryption = encryption;
+    }
+
+    public CommonEncryption getEncryption() {
+        return encryption;
+    }
+
+    /**
+     * Cuts the samples buffered for each track into fragments now, rather than waiting for the fragment duration, and
+     * writes all queued fragments without waiting for tracks which have nothing queued, as the SKIP policy would. A
+     * flushed video fragment may begin without a sync sample.
+     *
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        if (!headerWritten || closed) {
+            return;
+        }
+        for (StreamingTrack track : source) {
+            if (!sampleBuffers.get(track).isEmpty()) {
+                cutFragment(track);
+            }
+        }
+        StreamingTrack next;
+        while ((next = nextQueuedTrack()) != null) {
+            writeQueuedFragment(next);
+        }
+    }
+
+    /**
+     * Replaces the parent implementation, which blocks the producing track once more than ten of its fragments are
+     * queued behind a quiet track and only ever drains the queue of the leading track.
+     */
+    @Override
+    public synchronized void acceptSample(StreamingSample streamingSample, StreamingTrack streamingTrack) throws IOException {
+        if (streamingSample.getSampleExtension(Payload.class) != null) {
+            // from here on the sample is ours to release, at the latest when closing
+            unreleased.add(streamingSample);
+        }
+        if (absentTracks.contains(streamingTrack)) {
+            // too late for the file
+            release(streamingSample);
+            return;
+        }
+        if (dropDisposableSamples && dropSample(streamingSample, streamingTrack)) {
+            return;
+        }
+        addSample(streamingSample, streamingTrack);
+        if (headerWritten && interleaveWindow > 0L && lagPolicy == LagPolicy.FILL_SILENCE) {
+            fillLaggingTracks(streamingTrack);
+        }
+        writeQueuedFragments();
+    }
+
+    /**
+     * Adds a sample to its track, cutting a fragment first when one is ready.
+     */
+    private void addSample(StreamingSample streamingSample, StreamingTrack streamingTrack) throws IOException {
+        if (!headerWritten) {
+            boolean allTracksAtLeastOneSample = true;
+            for (StreamingTrack track : source) {
+                allTracksAtLeastOneSample &= nextSampleStartTime.get(track) > 0L || track == streamingTrack;
+            }
+            if (allTracksAtLeastOneSample) {
+                startOutput();
+            }
+        }
+        if (isFragmentReady(streamingTrack, streamingSample)) {
+            cutFragment(streamingTrack);
+        }
+        sampleBuffers.get(streamingTrack).add(streamingSample);
+        nextSampleStartTime.put(streamingTrack, nextSampleStartTime.get(streamingTrack) + streamingSample.getDuration());
+        bufferedBytes += streamingSample.getContent().limit();
+    }
+
+    /**
+     * Writes the header, on the pending channel if there is one as nothing has been written yet.
+     */
+    private void startOutput() throws IOException {
+        if (pendingOutput != null) {
+            switchOutput();
+        }
+        writeHeader(createHeader());
+        headerWritten = true;
+    }
+
+    /**
+     * Whether any track has had a sample.
+     */
+    private boolean hasSamples() {
+        for (StreamingTrack track : source) {
+            if (nextSampleStartTime.get(track) > 0L) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Leaves a track which has had no samples out of the file, ie. the audio track of a video-only stream, so the header
+     * is written without waiting for it; its samples are dropped should any arrive later. Has no effect once the header
+     * is written.
+     *
+     * @param track track to leave out
+     * @return true if left out
+     * @throws IOException
+     */
+    public synchronized boolean leaveOut(StreamingTrack track) throws IOException {
+        if (headerWritten || closed || !source.contains(track) || nextSampleStartTime.get(track) > 0L || source.size() < 2) {
+            return false;
+        }
+        source.remove(track);
+        absentTracks.add(track);
+        log.info("Leaving {} out of the file, it had no samples", track);
+        if (hasSamples()) {
+            boolean allTracksAtLeastOneSample = true;
+            for (StreamingTrack other : source) {
+                allTracksAtLeastOneSample &= nextSampleStartTime.get(other) > 0L;
+            }
+            if (allTracksAtLeastOneSample) {
+                startOutput();
+                writeQueuedFragments();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the tracks of the file, fewer than the writer was created with once tracks have been left out.
+     *
+     * @return tracks
+     */
+    public List<StreamingTrack> getTracks() {
+        return Collections.unmodifiableList(source);
+    }
+
+    /**
+     * Creates a fragment of the samples buffered for the track and queues it for writing.
+     */
+    private void cutFragment(StreamingTrack streamingTrack) {
+        List<StreamingSample> samples = sampleBuffers.get(streamingTrack);
+        FragmentContainer fragmentContainer = new FragmentContainer();
+        fragmentContainer.fragmentContent = createFragment(streamingTrack, new ArrayList<>(samples));
+        fragmentContainer.duration = nextSampleStartTime.get(streamingTrack) - nextFragmentCreateStartTime.get(streamingTrack);
+        samples.clear();
+        nextFragmentCreateStartTime.put(streamingTrack, nextFragmentCreateStartTime.get(streamingTrack) + fragmentContainer.duration);
+        fragmentBuffers.get(streamingTrack).add(fragmentContainer);
+    }
+
+    /**
+     * Drops a disposable sample by extending the preceding sample of its track over it. A sample which starts the
+     * track's buffer is kept, the sample before it may already be in a fragment.
+     *
+     * @return true if the sample was dropped
+     */
+    private boolean dropSample(StreamingSample streamingSample, StreamingTrack streamingTrack) {
+        SampleFlagsSampleExtension sampleFlags = streamingSample.getSampleExtension(SampleFlagsSampleExtension.class);
+        List<StreamingSample> samples = sampleBuffers.get(streamingTrack);
+        if (sampleFlags == null || sampleFlags.getSampleIsDependedOn() != 2 || samples.isEmpty()) {
+            return false;
+        }
+        int last = samples.size() - 1;
+        StreamingSample previous = samples.get(last);
+        StreamingSample retimed = new RetimedSample(previous instanceof RetimedSample ? ((RetimedSample) previous).sample : previous, previous.getDuration() + streamingSample.getDuration());
+        if (unreleased.remove(previous)) {
+            unreleased.add(retimed);
+        }
+        samples.set(last, retimed);
+        nextSampleStartTime.put(streamingTrack, nextSampleStartTime.get(streamingTrack) + streamingSample.getDuration());
+        release(streamingSample);
+        droppedSamples++;
+        return true;
+    }
+
+    /**
+     * Tops up the audio tracks lagging the given track by more than the window with silence, up to its media time.
+     */
+    private void fillLaggingTracks(StreamingTrack leader) throws IOException {
+        long leaderTime = nextSampleStartTime.get(leader), leaderTimescale = leader.getTimescale();
+        for (StreamingTrack track : source) {
+            if (track != leader && track instanceof AACStreamingTrack && lagOf(track, leaderTime, leaderTimescale) > interleaveWindow) {
+                AACStreamingTrack aacTrack = (AACStreamingTrack) track;
+                long count = 0L;
+                StreamingSample silence;
+                while (nextSampleStartTime.get(track) * leaderTimescale < leaderTime * track.getTimescale() && (silence = aacTrack.createSilentSample()) != null) {
+                    addSample(silence, track);
+                    count++;
+                }
+                silentSamples += count;
+                log.debug("Filled {} lagging by {} samples of silence", track, count);
+            }
+        }
+    }
+
+    /**
+     * Returns how far, in milliseconds, a track lags the given media time. Tracks which have no samples yet don't lag,
+     * their timescale may not be known.
+     */
+    private long lagOf(StreamingTrack track, long time, long timescale) {
+        long trackTime = nextSampleStartTime.get(track);
+        if (trackTime == 0L) {
+            return 0L;
+        }
+        return time * 1000L / timescale - trackTime * 1000L / track.getTimescale();
+    }
+
+    /**
+     * Writes queued fragments in start time order. A fragment waits while another track, which has nothing queued, may
+     * still produce an earlier one; unless that track lags the furthest track by more than the interleave window.
+     */
+    private void writeQueuedFragments() throws IOException {
+        if (!headerWritten) {
+            return;
+        }
+        StreamingTrack next;
+        while ((next = nextQueuedTrack()) != null) {
+            long start = nextFragmentWriteStartTime.get(next);
+            for (StreamingTrack track : source) {
+                if (track != next && fragmentBuffers.get(track).isEmpty() && nextFragmentWriteStartTime.get(track) * next.getTimescale() < start * track.getTimescale() && !isLagging(track)) {
+                    return;
+                }
+            }
+            writeQueuedFragment(next);
+        }
+    }
+
+    /**
+     * Writes the first fragment queued for the track.
+     */
+    private void writeQueuedFragment(StreamingTrack track) throws IOException {
+        FragmentContainer fragmentContainer = fragmentBuffers.get(track).remove();
+        writeFragment(fragmentContainer.fragmentContent);
+        nextFragmentWriteStartTime.put(track, nextFragmentWriteStartTime.get(track) + fragmentContainer.duration);
+    }
+
+    /**
+     * Whether a track lags the furthest track by more than the interleave window.
+     */
+    private boolean isLagging(StreamingTrack track) {
+        if (interleaveWindow <= 0L || lagPolicy == LagPolicy.WAIT) {
+            return false;
+        }
+        long lag = 0L;
+        for (StreamingTrack other : source) {
+            if (other != track) {
+                lag = Math.max(lag, lagOf(track, nextSampleStartTime.get(other), other.getTimescale()));
+            }
+        }
+        return lag > interleaveWindow;
+    }
+
+    /**
+     * Remembers the samples of the fragment which hold pooled payloads, so they are released once it is written.
+     */
+    @Override
+    protected Box[] createFragment(StreamingTrack streamingTrack, List<StreamingSample> samples) {
+        Box[] boxes;
+        CommonEncryption encryption = this.encryption;
+        if (encryption != null) {
+            boolean video = "vide".equals(streamingTrack.getHandler());
+            Long iv = nextIvs.get(streamingTrack);
+            if (iv == null) {
+                iv = new SecureRandom().nextLong();
+            }
+            CencFragment fragment = new CencFragment(encryption, video, samples, iv);
+            nextIvs.put(streamingTrack, iv + samples.size());
+            cencFragment = fragment;
+            List<StreamingSample> encrypted = fragment.getSamples();
+            try {
+                boxes = super.createFragment(streamingTrack, encrypted);
+            } finally {
+                cencFragment = null;
+            }
+            boxes[1] = new SampleDataBox(encrypted);
+            fragment.setAuxiliaryInformationOffset((MovieFragmentBox) boxes[0]);
+            encryptions.put(boxes[0], CompletableFuture.runAsync(() -> {
+                try {
+                    fragment.encrypt();
+                } catch (GeneralSecurityException e) {
+                    throw new CompletionException(e);
+                }
+            }, encryptors));
+        } else {
+            boxes = super.createFragment(streamingTrack, samples);
+            boxes[1] = new SampleDataBox(samples);
+        }
+        if (isRandomAccess(streamingTrack, samples)) {
+            randomAccessFragments.add(boxes[0]);
+        }
+        if (keepsWritten()) {
+            fragmentStartTimes.put(boxes[0], nextFragmentCreateStartTime.get(streamingTrack) * 1000L / streamingTrack.getTimescale());
+        }
+        if (!unreleased.isEmpty()) {
+            List<StreamingSample> pooled = new ArrayList<>();
+            for (StreamingSample sample : samples) {
+                if (unreleased.contains(sample)) {
+                    pooled.add(sample);
+                }
+            }
+            if (!pooled.isEmpty()) {
+                fragmentSamples.put(boxes[0], pooled);
+            }
+        }
+        return boxes;
+    }
+
+    /**
+     * Adds the sample encryption boxes after the track run of an encrypted fragment.
+     */
+    @Override
+    protected void createTrun(StreamingTrack streamingTrack, TrackFragmentBox parent, List<StreamingSample> samples) {
+        super.createTrun(streamingTrack, parent, samples);
+        if (cencFragment != null) {
+            cencFragment.addBoxes(parent);
+        }
+    }
+
+    /**
+     * Renames the sample entries of an encrypted track and adds its protection scheme.
+     */
+    @Override
+    protected Box createStbl(StreamingTrack streamingTrack) {
+        SampleTableBox stbl = (SampleTableBox) super.createStbl(streamingTrack);
+        CommonEncryption encryption = this.encryption;
+        if (encryption != null) {
+            List<Box> boxes = new ArrayList<>(stbl.getBoxes());
+            boxes.set(0, encryption.protect(boxes.get(0), "vide".equals(streamingTrack.getHandler())));
+            stbl.setBoxes(boxes);
+        }
+        return stbl;
+    }
+
+    /**
+     * Adds the protection system specific headers of an encrypted stream.
+     */
+    @Override
+    protected Box createMoov() {
+        MovieBox moov = (MovieBox) super.createMoov();
+        CommonEncryption encryption = this.encryption;
+        if (encryption != null) {
+            for (Box pssh : encryption.getPsshBoxes()) {
+                moov.addBox(pssh);
+            }
+        }
+        return moov;
+    }
+
+    /**
+     * Whether a fragment of the samples would be a point to start playing from: it starts with a sync sample of the
+     * video track, or any fragment when there is no video track.
+     */
+    private boolean isRandomAccess(StreamingTrack streamingTrack, List<StreamingSample> samples) {
+        if ("vide".equals(streamingTrack.getHandler())) {
+            SampleFlagsSampleExtension sampleFlags = samples.isEmpty() ? null : samples.get(0).getSampleExtension(SampleFlagsSampleExtension.class);
+            return sampleFlags != null && !sampleFlags.isSampleIsNonSyncSample();
+        }
+        for (StreamingTrack track : source) {
+            if ("vide".equals(track.getHandler())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes to the current channel rather than the one the writer was created with. The boxes are serialized into a
+     * buffer each, except the sample data which is written from the samples' own buffers, and all of it goes to a
+     * gathering channel in one write. With a segment cache or time-shift buffer, serializes the boxes into one buffer
+     * and writes that, keeping it for them.
+     */
+    @Override
+    protected void write(WritableByteChannel channel, Box... boxes) throws IOException {
+        channel = output;
+        if (!keepsWritten()) {
+            if (!(channel instanceof GatheringByteChannel)) {
+                super.write(channel, boxes);
+                return;
+            }
+            List<ByteBuffer> buffers = new ArrayList<>();
+            long size = 0L;
+            for (Box box : boxes) {
+                if (box instanceof SampleDataBox) {
+                    ((SampleDataBox) box).addBuffers(buffers);
+                } else {
+                    buffers.add(serialize(box));
+                }
+                size += box.getSize();
+            }
+            writeFully((GatheringByteChannel) channel, buffers.toArray(new ByteBuffer[buffers.size()]));
+            bytesWritten += size;
+            return;
+        }
+        long size = 0L;
+        for (Box box : boxes) {
+            size += box.getSize();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(CastUtils.l2i(size));
+        ByteBufferByteChannel bufferChannel = new ByteBufferByteChannel(buffer);
+        for (Box box : boxes) {
+            box.getBox(bufferChannel);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        bytesWritten += size;
+        buffer.rewind();
+        lastWritten = buffer;
+    }
+
+    /**
+     * Writes all of the buffers; a gathering write may stop short, ie. at the channel's limit of buffers per call.
+     */
+    private static void writeFully(GatheringByteChannel channel, ByteBuffer[] buffers) throws IOException {
+        int offset = 0;
+        while (offset < buffers.length) {
+            channel.write(buffers, offset, buffers.length - offset);
+            while (offset < buffers.length && !buffers[offset].hasRemaining()) {
+                offset++;
+            }
+        }
+    }
+
+    private static ByteBuffer serialize(Box box) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(CastUtils.l2i(box.getSize()));
+        box.getBox(new ByteBufferByteChannel(buffer));
+        buffer.flip();
+        return buffer;
+    }
+
+    @Override
+    protected void writeHeader(Box... boxes) throws IOException {
+        super.writeHeader(boxes);
+        SegmentCache cache = segmentCache;
+        // subscribers already have the init segment, it's the same for the new channel
+        if (cache != null && lastWritten != null && !rollingOver) {
+            cache.setInitSegment(lastWritten);
+        }
+        TimeShiftBuffer timeShift = timeShiftBuffer;
+        if (timeShift != null && lastWritten != null && !rollingOver) {
+            timeShift.setInitSegment(lastWritten);
+        }
+        lastWritten = null;
+    }
+
+    @Override
+    protected void writeFragment(Box... boxes) throws IOException {
+        CompletableFuture<Void> encrypted = boxes.length > 0 ? encryptions.remove(boxes[0]) : null;
+        if (encrypted != null) {
+            try {
+                encrypted.join();
+            } catch (CompletionException e) {
+                throw new IOException("Fragment encryption failed", e.getCause());
+            }
+        }
+        if (pendingOutput != null && boxes.length > 0 && randomAccessFragments.contains(boxes[0])) {
+            switchOutput();
+        }
+        FragmentWriteEvent event = StreamingEvents.beginFragment();
+        long previousBytes = bytesWritten, trackId = 0L;
+        // the parent never advances the sequence number, so number the fragments in the order they are written
+        long fragmentSequenceNumber = sequenceNumber++;
+        for (Box box : boxes) {
+            if (box instanceof MovieFragmentBox) {
+                MovieFragmentBox moof = (MovieFragmentBox) box;
+                for (TrackFragmentBox traf : moof.getBoxes(TrackFragmentBox.class)) {
+                    trackId = traf.getTrackFragmentHeaderBox().getTrackId();
+                }
+                for (MovieFragmentHeaderBox mfhd : moof.getBoxes(MovieFragmentHeaderBox.class)) {
+                    mfhd.setSequenceNumber(fragmentSequenceNumber);
+                }
+                updateRandomAccessOffset(moof);
+            }
+        }
+        super.writeFragment(boxes);
+        for (Box box : boxes) {
+            if ("mdat".equals(box.getType())) {
+                bufferedBytes -= box.getSize() - 8L;
+            }
+        }
+        boolean randomAccess = boxes.length > 0 && randomAccessFragments.remove(boxes[0]);
+        StreamingEvents.endFragment(event, streamId, trackId, fragmentSequenceNumber, bytesWritten - previousBytes, randomAccess);
+        Long startTime = boxes.length > 0 ? fragmentStartTimes.remove(boxes[0]) : null;
+        SegmentCache cache = segmentCache;
+        if (cache != null && lastWritten != null && startTime != null) {
+            cache.addFragment(fragmentSequenceNumber, lastWritten, startTime, randomAccess);
+        }
+        TimeShiftBuffer timeShift = timeShiftBuffer;
+        if (timeShift != null && lastWritten != null && startTime != null) {
+            timeShift.addFragment(fragmentSequenceNumber, lastWritten, startTime, randomAccess);
+        }
+        lastWritten = null;
+        // the sample data is in the channel now, hand the payloads back
+        List<StreamingSample> written = boxes.length > 0 ? fragmentSamples.remove(boxes[0]) : null;
+        if (written != null) {
+            for (StreamingSample sample : written) {
+                release(sample);
+            }
+        }
+        for (FragmentListener listener : listeners) {
+            try {
+                listener.fragmentWritten(fragmentSequenceNumber, bytesWritten);
+            } catch (Exception e) {
+                log.warn("Exception in fragment listener {}", listener, e);
+            }
+        }
+    }
+
+    /**
+     * Completes the current channel with the random access boxes of the fragments written to it and continues on the
+     * pending one, starting with an init segment. The entries of fragments created but not yet written move along.
+     */
+    private void switchOutput() throws IOException {
+        WritableByteChannel previous = output;
+        Map<StreamingTrack, long[]> movedOffsets = new HashMap<>(), movedTimes = new HashMap<>();
+        if (headerWritten) {
+            for (StreamingTrack track : source) {
+                long[] offsets = tfraOffsets.containsKey(track) ? tfraOffsets.get(track) : new long[0];
+                long[] times = tfraTimes.containsKey(track) ? tfraTimes.get(track) : new long[0];
+                int written = fragmentsWritten.containsKey(track) ? fragmentsWritten.get(track) : 0;
+                tfraOffsets.put(track, Arrays.copyOf(offsets, written));
+                tfraTimes.put(track, Arrays.copyOf(times, written));
+                movedOffsets.put(track, Arrays.copyOfRange(offsets, written, offsets.length));
+                movedTimes.put(track, Arrays.copyOfRange(times, written, times.length));
+            }
+            writeFooter(createFooter());
+        }
+        long previousBytes = bytesWritten;
+        output = pendingOutput;
+        pendingOutput = null;
+        bytesWritten = 0L;
+        fragmentsWritten.clear();
+        channelStartTimes = new HashMap<>(nextFragmentWriteStartTime);
+        if (headerWritten) {
+            tfraOffsets.putAll(movedOffsets);
+            tfraTimes.putAll(movedTimes);
+            rollingOver = true;
+            try {
+                writeHeader(createHeader());
+            } finally {
+                rollingOver = false;
+            }
+        }
+        log.debug("Rolled over after {} bytes at fragment {}", previousBytes, sequenceNumber);
+        for (RolloverListener listener : rolloverListeners) {
+            try {
+                listener.rolledOver(previous, previousBytes, sequenceNumber);
+            } catch (Exception e) {
+                log.warn("Exception in rollover listener {}", listener, e);
+            }
+        }
+    }
+
+    /**
+     * The parent records the offset for the tfra entry when the fragment is created, but fragments of the trailing
+     * track are queued and written later; point the entry at where the fragment really lands.
+     */
+    private void updateRandomAccessOffset(MovieFragmentBox moof) {
+        for (TrackFragmentBox traf : moof.getBoxes(TrackFragmentBox.class)) {
+            long trackId = traf.getTrackFragmentHeaderBox().getTrackId();
+            for (StreamingTrack track : source) {
+                TrackIdTrackExtension trackIdTrackExtension = track.getTrackExtension(TrackIdTrackExtension.class);
+                if (trackIdTrackExtension != null && trackIdTrackExtension.getTrackId() == trackId) {
+                    int index = fragmentsWritten.containsKey(track) ? fragmentsWritten.get(track) : 0;
+                    long[] offsets = tfraOffsets.get(track);
+                    if (offsets != null && index < offsets.length) {
+                        offsets[index] = bytesWritten;
+                    }
+                    fragmentsWritten.put(track, index + 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the fragments still queued for the trailing tracks before the parent writes the remaining samples and the
+     * footer; the parent only drains the queue of the leading track, so anything queued behind it would be lost. A
+     * writer which never had a sample writes nothing and just closes its tracks.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        try {
+            if (!headerWritten && hasSamples()) {
+                // a track which never had a sample would block creating the header, the file goes without it
+                for (StreamingTrack track : source) {
+                    if (nextSampleStartTime.get(track) == 0L) {
+                        source.remove(track);
+                        absentTracks.add(track);
+                        log.info("Leaving {} out of the file, it had no samples", track);
+                    }
+                }
+                startOutput();
+            }
+            if (headerWritten) {
+                StreamingTrack track;
+                while ((track = nextQueuedTrack()) != null) {
+                    writeQueuedFragment(track);
+                }
+            }
+            // the parent only closes the tracks of the file
+            for (StreamingTrack track : absentTracks) {
+                track.close();
+            }
+            if (headerWritten) {
+                super.close();
+            } else {
+                // no track had a sample, so there's no header to follow with fragments or a footer; describing the
+                // tracks would wait on media which will never come
+                log.debug("Closing without output, no samples were received");
+                for (StreamingTrack track : source) {
+                    track.close();
+                }
+            }
+        } finally {
+            // encryptions still running read the payloads, let them finish
+            for (CompletableFuture<Void> encrypted : encryptions.values()) {
+                encrypted.handle((v, t) -> null).join();
+            }
+            encryptions.clear();
+            // whatever could not be written is dropped, its payloads must still go back to the store
+            for (StreamingSample sample : new ArrayList<>(unreleased)) {
+                release(sample);
+            }
+            fragmentSamples.clear();
+            randomAccessFragments.clear();
+            fragmentStartTimes.clear();
+            absentTracks.clear();
+            lastWritten = null;
+            bufferedBytes = 0L;
+            pendingOutput = null;
+        }
+    }
+
+    private void release(StreamingSample sample) {
+        if (unreleased.remove(sample)) {
+            sample.getSampleExtension(Payload.class).release();
+        }
+    }
+
+    /**
+     * Returns the track with the earliest queued fragment or null if nothing is queued.
+     */
+    private StreamingTrack nextQueuedTrack() {
+        StreamingTrack next = null;
+        for (StreamingTrack track : source) {
+            Queue<FragmentContainer> queue = fragmentBuffers.get(track);
+            if (queue != null && !queue.isEmpty()) {
+                if (next == null || nextFragmentWriteStartTime.get(track) * next.getTimescale() < nextFragmentWriteStartTime.get(next) * track.getTimescale()) {
+                    next = track;
+                }
+            }
+        }
+        return next;
+    }
+
+    /**
+     * The media data of a fragment, written from the buffers of its samples; replaces the parent's mdat so the samples
+     * can go to a gathering channel in one write along with the moof.
+     */
+    private static class SampleDataBox implements Box {
+
+        final List<StreamingSample> samples;
+
+        SampleDataBox(List<StreamingSample> samples) {
+            this.samples = samples;
+        }
+
+        @Override
+        public String getType() {
+            return "mdat";
+        }
+
+        @Override
+        public long getSize() {
+            long size = 8L;
+            for (StreamingSample sample : samples) {
+                size += sample.getContent().limit();
+            }
+            return size;
+        }
+
+        /**
+         * Adds the box header and the sample contents, each rewound, to the buffers.
+         */
+        void addBuffers(List<ByteBuffer> buffers) {
+            ByteBuffer header = ByteBuffer.allocate(8);
+            header.putInt(CastUtils.l2i(getSize()));
+            header.put(IsoFile.fourCCtoBytes("mdat"));
+            header.flip();
+            buffers.add(header);
+            for (StreamingSample sample : samples) {
+                ByteBuffer content = sample.getContent().duplicate();
+                content.rewind();
+                buffers.add(content);
+            }
+        }
+
+        @Override
+        public void getBox(WritableByteChannel writableByteChannel) throws IOException {
+            List<ByteBuffer> buffers = new ArrayList<>(samples.size() + 1);
+            addBuffers(buffers);
+            for (ByteBuffer buffer : buffers) {
+                while (buffer.hasRemaining()) {
+                    writableByteChannel.write(buffer);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * A sample given the duration of the disposable samples dropped after it.
+     */
+    private static class RetimedSample implements StreamingSample {
+
+        final StreamingSample sample;
+
+        final long duration;
+
+        RetimedSample(StreamingSample sample, long duration) {
+            this.sample = sample;
+            this.duration = duration;
+        }
+
+        @Override
+        public ByteBuffer getContent() {
+            return sample.getContent();
+        }
+
+        @Override
+        public long getDuration() {
+            return duration;
+        }
+
+        @Override
+        public <T extends SampleExtension> T getSampleExtension(Class<T> clazz) {
+            return sample.getSampleExtension(clazz);
+        }
+
+        @Override
+        public void addSampleExtension(SampleExtension sampleExtension) {
+            sample.addSampleExtension(sampleExtension);
+        }
+
+        @Override
+        public <T extends SampleExtension> T removeSampleExtension(Class<T> clazz) {
+            return sample.removeSampleExtension(clazz);
+        }
+
+    }
+
+    /**
+     * What to do with a track lagging by more than the interleave window.
+     */
+    public enum LagPolicy {
+
+        /**
+         * Always wait for the lagging track; the other tracks' fragments are held in memory until it catches up.
+         */
+        WAIT,
+
+        /**
+         * Write the other tracks' fragments without the lagging track; its fragments follow when it resumes.
+         */
+        SKIP,
+
+        /**
+         * Fill the gap in a lagging audio track with silence, keeping it in step; other tracks are skipped.
+         */
+        FILL_SILENCE
+
+    }
+
+    /**
+     * Notified when the output has been switched to another channel.
+     */
+    public interface RolloverListener {
+
+        /**
+         * @param previous channel written before, complete and no longer used
+         * @param bytesWritten number of bytes written to the previous channel
+         * @param sequenceNumber sequence number of the first fragment written to the new channel
+         */
+        void rolledOver(WritableByteChannel previous, long bytesWritten, long sequenceNumber);
+
+    }
+
+    /**
+     * Notified after each fragment has been written to the channel.
+     */
+    public interface FragmentListener {
+
+        /**
+         * @param sequenceNumber sequence number of the fragment
+         * @param position number of bytes written to the channel, including the fragment
+         */
+        void fragmentWritten(long sequenceNumber, long position);
+
+    }
+
+}
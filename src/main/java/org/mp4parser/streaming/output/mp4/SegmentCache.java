@@ -0,0 +1,320 @@
+package org.mp4parser.streaming.output.mp4;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the init segment of a stream and the fragments of its latest GOP, from the last random access fragment, one
+ * starting with a sync sample of the video track, so a late joining viewer or relay can start right away instead of
+ * waiting for the next key frame. Fragments of other tracks written just ahead of the random access fragment but not
+ * starting before it are kept with it. When the fragments outgrow the byte budget the oldest are dropped, and once the
+ * random access fragment goes, or the cache is evicted, late joiners wait for the next one.
+ * <br>
+ * Subscribers get the init segment and the cached GOP when they subscribe and every fragment after it, on the writing
+ * thread, so they must not block. A subscriber joining while no GOP is cached only gets fragments from the next random
+ * access fragment on.
+ */
+public class SegmentCache {
+
+    private static Logger log = LoggerFactory.getLogger(SegmentCache.class);
+
+    private final long maxBytes;
+
+    private ByteBuffer initSegment;
+
+    private final ArrayDeque<Fragment> fragments = new ArrayDeque<>();
+
+    // bytes of the cached fragments
+    private volatile long fragmentBytes;
+
+    // whether the cached fragments hold a random access fragment to start from
+    private boolean gopStarted;
+
+    private long evictions;
+
+    // sequence number of the last fragment added
+    private long lastSequenceNumber;
+
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    /**
+     * Creates a cache holding up to 8 MB of fragments.
+     */
+    public SegmentCache() {
+        this(8L << 20);
+    }
+
+    /**
+     * @param maxBytes budget for the fragments of a GOP
+     */
+    public SegmentCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Sets the init segment, ftyp and moov, and passes it to the subscribers.
+     *
+     * @param segment init segment
+     */
+    public synchronized void setInitSegment(ByteBuffer segment) {
+        initSegment = segment.asReadOnlyBuffer();
+        for (Subscription subscription : subscriptions) {
+            subscription.initSegment(initSegment.duplicate());
+        }
+    }
+
+    /**
+     * Adds a fragment, moof and mdat, and passes it to the subscribers.
+     *
+     * @param sequenceNumber sequence number of the fragment
+     * @param fragment fragment bytes, not modified afterward
+     * @param startTime start time of the fragment in milliseconds
+     * @param randomAccess whether the fragment starts with a sync sample of the video track
+     */
+    public synchronized void addFragment(long sequenceNumber, ByteBuffer fragment, long startTime, boolean randomAccess) {
+        Fragment cached = new Fragment(sequenceNumber, fragment.asReadOnlyBuffer(), startTime, randomAccess);
+        lastSequenceNumber = sequenceNumber;
+        if (randomAccess) {
+            // a new gop, keep only what starts with it
+            Iterator<Fragment> iterator = fragments.iterator();
+            while (iterator.hasNext()) {
+                Fragment previous = iterator.next();
+                if (previous.startTime < startTime) {
+                    iterator.remove();
+                    fragmentBytes -= previous.size;
+                }
+            }
+            gopStarted = true;
+        }
+        fragments.add(cached);
+        fragmentBytes += cached.size;
+        while (fragmentBytes > maxBytes) {
+            Fragment oldest = fragments.remove();
+            fragmentBytes -= oldest.size;
+            if (oldest.randomAccess && gopStarted) {
+                log.debug("GOP exceeds {} bytes at fragment {}, late joiners wait for the next", maxBytes, sequenceNumber);
+                gopStarted = false;
+                evictions++;
+            }
+        }
+        for (Subscription subscription : subscriptions) {
+            subscription.fragment(cached);
+        }
+    }
+
+    /**
+     * Drops the cached GOP, ie. under memory pressure; the init segment is kept.
+     */
+    public synchronized void evict() {
+        if (!fragments.isEmpty()) {
+            clearFragments();
+            gopStarted = false;
+            evictions++;
+        }
+    }
+
+    private void clearFragments() {
+        fragments.clear();
+        fragmentBytes = 0L;
+    }
+
+    /**
+     * Subscribes to the stream, passing the init segment and the cached GOP straight away.
+     *
+     * @param listener listener
+     */
+    public synchronized void subscribe(SegmentListener listener) {
+        Subscription subscription = new Subscription(listener);
+        if (initSegment != null) {
+            subscription.initSegment(initSegment.duplicate());
+        }
+        if (gopStarted) {
+            subscription.started = true;
+            for (Fragment fragment : fragments) {
+                subscription.fragment(fragment);
+            }
+        }
+        if (!subscription.failed) {
+            subscriptions.add(subscription);
+        }
+    }
+
+    public void unsubscribe(SegmentListener listener) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.listener == listener) {
+                subscriptions.remove(subscription);
+            }
+        }
+    }
+
+    /**
+     * Returns the init segment followed by the cached GOP.
+     *
+     * @return segments, empty if the init segment has not been written
+     */
+    public synchronized List<ByteBuffer> getSegments() {
+        List<ByteBuffer> segments = new ArrayList<>(fragments.size() + 1);
+        if (initSegment != null) {
+            segments.add(initSegment.duplicate());
+            for (Fragment fragment : gopStarted ? fragments : Collections.<Fragment> emptyList()) {
+                segments.add(fragment.content.duplicate());
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Returns a cached fragment.
+     *
+     * @param sequenceNumber sequence number of the fragment
+     * @return moof and mdat or null if the fragment is not cached
+     */
+    public synchronized ByteBuffer getFragment(long sequenceNumber) {
+        for (Fragment fragment : fragments) {
+            if (fragment.sequenceNumber == sequenceNumber) {
+                return fragment.content.duplicate();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the sequence number a late joiner should start from, the first fragment of the cached GOP or the next
+     * fragment when none is cached.
+     *
+     * @return sequence number
+     */
+    public synchronized long getStartSequenceNumber() {
+        return gopStarted ? fragments.peek().sequenceNumber : lastSequenceNumber + 1;
+    }
+
+    /**
+     * Returns the sequence number of the last fragment added.
+     *
+     * @return sequence number or zero if none was added
+     */
+    public synchronized long getLastSequenceNumber() {
+        return lastSequenceNumber;
+    }
+
+    public synchronized ByteBuffer getInitSegment() {
+        return initSegment != null ? initSegment.duplicate() : null;
+    }
+
+    /**
+     * Returns the bytes held, the init segment and the cached fragments.
+     *
+     * @return bytes
+     */
+    public long getCachedBytes() {
+        ByteBuffer init = initSegment;
+        return fragmentBytes + (init != null ? init.limit() : 0);
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Returns the number of GOPs which were dropped for the budget or by eviction before the next one started.
+     *
+     * @return count
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    private static class Fragment {
+
+        final long sequenceNumber;
+
+        final ByteBuffer content;
+
+        final long startTime;
+
+        final boolean randomAccess;
+
+        final int size;
+
+        Fragment(long sequenceNumber, ByteBuffer content, long startTime, boolean randomAccess) {
+            this.sequenceNumber = sequenceNumber;
+            this.content = content;
+            this.startTime = startTime;
+            this.randomAccess = randomAccess;
+            this.size = content.remaining();
+        }
+
+    }
+
+    private class Subscription {
+
+        final SegmentListener listener;
+
+        // whether the subscriber has had a gop to start with
+        boolean started;
+
+        boolean failed;
+
+        Subscription(SegmentListener listener) {
+            this.listener = listener;
+        }
+
+        void initSegment(ByteBuffer segment) {
+            try {
+                listener.initSegment(segment);
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        void fragment(Fragment fragment) {
+            started |= fragment.randomAccess;
+            if (started && !failed) {
+                try {
+                    listener.fragment(fragment.sequenceNumber, fragment.content.duplicate(), fragment.randomAccess);
+                } catch (Exception e) {
+                    fail(e);
+                }
+            }
+        }
+
+        private void fail(Exception e) {
+            log.warn("Exception in segment listener {}, unsubscribing", listener, e);
+            failed = true;
+            subscriptions.remove(this);
+        }
+
+    }
+
+    /**
+     * Receives the segments of a stream.
+     */
+    public interface SegmentListener {
+
+        /**
+         * @param segment ftyp and moov
+         */
+        void initSegment(ByteBuffer segment);
+
+        /**
+         * @param sequenceNumber sequence number of the fragment
+         * @param fragment moof and mdat
+         * @param randomAccess whether the fragment starts with a sync sample of the video track
+         */
+        void fragment(long sequenceNumber, ByteBuffer fragment, boolean randomAccess);
+
+    }
+
+}
@@ -0,0 +1,499 @@
+package org.mp4parser.streaming.output.mp4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the init segment of a stream and its fragments of the last few minutes, for catch-up viewing or rewinding a
+ * live stream, without going back to the recording. The newest fragments are held in memory; once they outgrow the
+ * memory budget the oldest of them are spilled to a local file preallocated up front and used as a ring, so the file
+ * never grows. Fragments are evicted oldest first once they fall out of the time window, or when they would be
+ * overwritten in the spill file; without a spill file they are evicted rather than spilled.
+ * <br>
+ * The fragments are indexed by sequence number in primitive arrays used as a ring, and the random access fragments,
+ * those starting with a sync sample of the video track, by start time in a second one; both are searched in O(log n).
+ * The start times are in milliseconds of media time. Only the random access fragments are indexed by time, the
+ * fragments of the tracks are written in an order which follows their media time only roughly. A seek resolves to the
+ * random access fragment at or before the time, along with the fragments of other tracks written just ahead of it but
+ * not starting before it, as the segment cache keeps them.
+ * <br>
+ * Fragments are added on the writing thread and may be read from any other. Spilled fragments are read from the file
+ * without holding the buffer's lock and discarded if they were evicted meanwhile, as their bytes may have been
+ * overwritten.
+ */
+public class TimeShiftBuffer implements AutoCloseable {
+
+    private static Logger log = LoggerFactory.getLogger(TimeShiftBuffer.class);
+
+    private final long window;
+
+    private final long memoryBudget;
+
+    private final Path spillPath;
+
+    private final long spillCapacity;
+
+    private FileChannel spill;
+
+    private ByteBuffer initSegment;
+
+    // the index, a ring of count entries from first
+    private long[] startTimes = new long[256];
+
+    private long[] sequenceNumbers = new long[256];
+
+    // position in the spill file or -1 while in memory
+    private long[] offsets = new long[256];
+
+    private int[] sizes = new int[256];
+
+    private boolean[] randomAccess = new boolean[256];
+
+    private ByteBuffer[] contents = new ByteBuffer[256];
+
+    private int first, count;
+
+    // the random access fragments, a ring of keyCount entries from keyFirst
+    private long[] keyTimes = new long[64];
+
+    private long[] keySequenceNumbers = new long[64];
+
+    private int keyFirst, keyCount;
+
+    // latest start time added
+    private long endTime;
+
+    // the oldest entries are spilled, the newer ones in memory
+    private int spilledCount;
+
+    // where the next fragment is spilled
+    private long spillPosition;
+
+    private volatile long memoryBytes, spilledBytes;
+
+    private long evictions;
+
+    // changes when the fragments are cleared, so reads can tell an entry they looked up is gone
+    private long generation;
+
+    private boolean closed;
+
+    /**
+     * Creates a buffer held in memory only.
+     *
+     * @param window milliseconds of media time to keep
+     * @param memoryBudget bytes of fragments to keep
+     */
+    public TimeShiftBuffer(long window, long memoryBudget) {
+        this.window = window;
+        this.memoryBudget = memoryBudget;
+        spillPath = null;
+        spillCapacity = 0L;
+    }
+
+    /**
+     * Creates a buffer which spills to a file, written out to its full size here so the space is reserved before the
+     * stream starts. The file is deleted on close.
+     *
+     * @param window milliseconds of media time to keep
+     * @param memoryBudget bytes of fragments to keep in memory
+     * @param spillPath spill file, replaced if it exists
+     * @param spillCapacity size of the spill file
+     * @throws IOException if the file cannot be created or written
+     */
+    public TimeShiftBuffer(long window, long memoryBudget, Path spillPath, long spillCapacity) throws IOException {
+        this.window = window;
+        this.memoryBudget = memoryBudget;
+        this.spillPath = spillPath;
+        this.spillCapacity = spillCapacity;
+        spill = FileChannel.open(spillPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            // write zeros rather than setting the length, which would leave a sparse file to be allocated as it fills
+            ByteBuffer zeros = ByteBuffer.allocateDirect(1 << 20);
+            long position = 0L;
+            while (position < spillCapacity) {
+                zeros.clear();
+                zeros.limit((int) Math.min(zeros.capacity(), spillCapacity - position));
+                while (zeros.hasRemaining()) {
+                    position += spill.write(zeros, position);
+                }
+            }
+            spill.force(false);
+        } catch (IOException e) {
+            spill.close();
+            Files.deleteIfExists(spillPath);
+            throw e;
+        }
+        log.debug("Preallocated {} bytes in {}", spillCapacity, spillPath);
+    }
+
+    /**
+     * Sets the init segment, ftyp and moov. The fragments of a previous stream are dropped, the timeline starts over.
+     *
+     * @param segment init segment
+     */
+    public synchronized void setInitSegment(ByteBuffer segment) {
+        clearFragments();
+        initSegment = segment.asReadOnlyBuffer();
+    }
+
+    /**
+     * Adds a fragment, moof and mdat, evicting or spilling the oldest fragments to stay within the budgets.
+     *
+     * @param sequenceNumber sequence number of the fragment, greater than the last one
+     * @param fragment fragment bytes, not modified afterward
+     * @param startTime start time of the fragment in milliseconds
+     * @param randomAccess whether the fragment starts with a sync sample of the video track
+     */
+    public synchronized void addFragment(long sequenceNumber, ByteBuffer fragment, long startTime, boolean randomAccess) {
+        if (closed) {
+            return;
+        }
+        if (count == startTimes.length) {
+            grow();
+        }
+        int next = index(count);
+        startTimes[next] = startTime;
+        endTime = count > 0 ? Math.max(endTime, startTime) : startTime;
+        sequenceNumbers[next] = sequenceNumber;
+        offsets[next] = -1L;
+        sizes[next] = fragment.remaining();
+        this.randomAccess[next] = randomAccess;
+        contents[next] = fragment.asReadOnlyBuffer();
+        count++;
+        memoryBytes += sizes[next];
+        if (randomAccess) {
+            if (keyCount == keyTimes.length) {
+                keyTimes = copy(keyTimes, new long[keyCount * 2], keyFirst, keyCount);
+                keySequenceNumbers = copy(keySequenceNumbers, new long[keyCount * 2], keyFirst, keyCount);
+                keyFirst = 0;
+            }
+            int key = keyIndex(keyCount);
+            // kept non-decreasing for the search, should the sync samples of a track ever go back in time
+            keyTimes[key] = keyCount > 0 ? Math.max(startTime, keyTimes[keyIndex(keyCount - 1)]) : startTime;
+            keySequenceNumbers[key] = sequenceNumber;
+            keyCount++;
+        }
+        while (count > 1 && endTime - startTimes[first] > window) {
+            evictOldest();
+        }
+        while (memoryBytes > memoryBudget && spilledCount < count) {
+            if (spill != null) {
+                spillOldest();
+            } else {
+                evictOldest();
+            }
+        }
+    }
+
+    /**
+     * Moves the oldest fragment held in memory to the spill file, evicting what it overwrites.
+     */
+    private void spillOldest() {
+        int entry = index(spilledCount);
+        int size = sizes[entry];
+        if (size > spillCapacity) {
+            // can't be spilled, nor kept without the older ones
+            log.debug("Fragment {} of {} bytes exceeds the spill file", sequenceNumbers[entry], size);
+            for (int i = spilledCount; i >= 0; i--) {
+                evictOldest();
+            }
+            return;
+        }
+        if (spillPosition + size > spillCapacity) {
+            // the end of the file is left unused, along with the fragments of the previous lap still in it
+            while (spilledCount > 0 && offsets[first] >= spillPosition) {
+                evictOldest();
+            }
+            spillPosition = 0L;
+        }
+        while (spilledCount > 0 && offsets[first] < spillPosition + size && offsets[first] + sizes[first] > spillPosition) {
+            evictOldest();
+        }
+        ByteBuffer content = contents[entry].duplicate();
+        long position = spillPosition;
+        try {
+            while (content.hasRemaining()) {
+                position += spill.write(content, position);
+            }
+        } catch (IOException e) {
+            log.warn("Exception spilling fragment {}, dropping it", sequenceNumbers[entry], e);
+            for (int i = spilledCount; i >= 0; i--) {
+                evictOldest();
+            }
+            return;
+        }
+        offsets[entry] = spillPosition;
+        contents[entry] = null;
+        spillPosition += size;
+        spilledCount++;
+        memoryBytes -= size;
+        spilledBytes += size;
+    }
+
+    private void evictOldest() {
+        int size = sizes[first];
+        if (offsets[first] >= 0L) {
+            spilledCount--;
+            spilledBytes -= size;
+        } else {
+            memoryBytes -= size;
+        }
+        contents[first] = null;
+        if (randomAccess[first]) {
+            keyFirst = keyIndex(1);
+            keyCount--;
+        }
+        first = index(1);
+        count--;
+        evictions++;
+    }
+
+    private void grow() {
+        int length = startTimes.length;
+        startTimes = copy(startTimes, new long[length * 2], first, length);
+        sequenceNumbers = copy(sequenceNumbers, new long[length * 2], first, length);
+        offsets = copy(offsets, new long[length * 2], first, length);
+        sizes = copy(sizes, new int[length * 2], first, length);
+        randomAccess = copy(randomAccess, new boolean[length * 2], first, length);
+        contents = copy(contents, new ByteBuffer[length * 2], first, length);
+        first = 0;
+    }
+
+    // copies a full ring in order to the start of the larger array
+    private static <T> T copy(T ring, T grown, int first, int length) {
+        System.arraycopy(ring, first, grown, 0, length - first);
+        System.arraycopy(ring, 0, grown, length - first, first);
+        return grown;
+    }
+
+    private int index(int entry) {
+        int index = first + entry;
+        return index < startTimes.length ? index : index - startTimes.length;
+    }
+
+    private int keyIndex(int key) {
+        int index = keyFirst + key;
+        return index < keyTimes.length ? index : index - keyTimes.length;
+    }
+
+    private void clearFragments() {
+        for (int i = 0; i < count; i++) {
+            contents[index(i)] = null;
+        }
+        first = 0;
+        count = 0;
+        keyFirst = 0;
+        keyCount = 0;
+        spilledCount = 0;
+        spillPosition = 0L;
+        memoryBytes = 0L;
+        spilledBytes = 0L;
+        generation++;
+    }
+
+    /**
+     * Returns the sequence number of the fragment to start playing from for a media time: that of the random access
+     * fragment at or before it, or the first one kept when the time is before the window, or of a fragment of another
+     * track written just ahead of it.
+     *
+     * @param time media time in milliseconds
+     * @return sequence number or -1 if no random access fragment is kept
+     */
+    public synchronized long findSequenceNumber(long time) {
+        if (keyCount == 0) {
+            return -1L;
+        }
+        // last random access fragment starting at or before the time
+        int low = 1, high = keyCount - 1, key = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (keyTimes[keyIndex(middle)] <= time) {
+                key = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        int entry = find(keySequenceNumbers[keyIndex(key)]);
+        long keyTime = startTimes[index(entry)];
+        while (entry > 0 && !randomAccess[index(entry - 1)] && startTimes[index(entry - 1)] >= keyTime) {
+            entry--;
+        }
+        return sequenceNumbers[index(entry)];
+    }
+
+    /**
+     * Returns the entry of a sequence number or -1 if it is not kept.
+     */
+    private int find(long sequenceNumber) {
+        int low = 0, high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long found = sequenceNumbers[index(middle)];
+            if (found < sequenceNumber) {
+                low = middle + 1;
+            } else if (found > sequenceNumber) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a fragment, from memory or read from the spill file.
+     *
+     * @param sequenceNumber sequence number of the fragment
+     * @return moof and mdat or null if the fragment is not kept
+     */
+    public ByteBuffer getFragment(long sequenceNumber) {
+        long offset, readGeneration;
+        int size;
+        synchronized (this) {
+            int entry = find(sequenceNumber);
+            if (entry < 0) {
+                return null;
+            }
+            entry = index(entry);
+            if (contents[entry] != null) {
+                return contents[entry].duplicate();
+            }
+            offset = offsets[entry];
+            size = sizes[entry];
+            readGeneration = generation;
+        }
+        ByteBuffer fragment = ByteBuffer.allocate(size);
+        try {
+            while (fragment.hasRemaining()) {
+                if (spill.read(fragment, offset + fragment.position()) < 0) {
+                    return null;
+                }
+            }
+        } catch (IOException e) {
+            log.debug("Exception reading fragment {}", sequenceNumber, e);
+            return null;
+        }
+        synchronized (this) {
+            // evicted while reading, the bytes may belong to a newer fragment
+            if (generation != readGeneration || find(sequenceNumber) < 0) {
+                return null;
+            }
+        }
+        fragment.flip();
+        return fragment;
+    }
+
+    public synchronized ByteBuffer getInitSegment() {
+        return initSegment != null ? initSegment.duplicate() : null;
+    }
+
+    /**
+     * Returns the start time of the oldest random access fragment kept, the earliest time playback can start from.
+     *
+     * @return milliseconds or -1 if none are kept
+     */
+    public synchronized long getStartTime() {
+        return keyCount > 0 ? keyTimes[keyFirst] : -1L;
+    }
+
+    /**
+     * Returns the latest start time of the fragments kept.
+     *
+     * @return milliseconds or -1 if none are kept
+     */
+    public synchronized long getEndTime() {
+        return count > 0 ? endTime : -1L;
+    }
+
+    /**
+     * @return sequence number of the oldest fragment kept or -1 if none are kept
+     */
+    public synchronized long getFirstSequenceNumber() {
+        return count > 0 ? sequenceNumbers[first] : -1L;
+    }
+
+    /**
+     * @return sequence number of the newest fragment kept or -1 if none are kept
+     */
+    public synchronized long getLastSequenceNumber() {
+        return count > 0 ? sequenceNumbers[index(count - 1)] : -1L;
+    }
+
+    public synchronized int getFragmentCount() {
+        return count;
+    }
+
+    /**
+     * Returns the bytes held in memory, the init segment and the fragments not spilled.
+     *
+     * @return bytes
+     */
+    public long getMemoryBytes() {
+        ByteBuffer init = initSegment;
+        return memoryBytes + (init != null ? init.limit() : 0);
+    }
+
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    /**
+     * Returns the number of fragments evicted for the window or the budgets.
+     *
+     * @return count
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public long getWindow() {
+        return window;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public long getSpillCapacity() {
+        return spillCapacity;
+    }
+
+    /**
+     * Spills the fragments held in memory, ie. under memory pressure; without a spill file they are kept.
+     */
+    public synchronized void shed() {
+        while (spill != null && spilledCount < count) {
+            spillOldest();
+        }
+    }
+
+    /**
+     * Drops the fragments and deletes the spill file.
+     */
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            clearFragments();
+            initSegment = null;
+            if (spill != null) {
+                try {
+                    spill.close();
+                    Files.deleteIfExists(spillPath);
+                } catch (IOException e) {
+                    log.warn("Exception removing the spill file {}", spillPath, e);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,111 @@
+package org.gregoire.debug;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.mp4parser.streaming.input.Payload;
+import org.mp4parser.streaming.input.PayloadStore;
+import org.red5.io.ITag;
+import org.red5.server.stream.consumer.ImmutableTag;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that pooled writers are reused and reset between streams.
+ */
+public class MP4WriterPoolTest extends TestCase {
+
+    private Path directory;
+
+    private MP4WriterPool pool;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory("pool");
+        pool = new MP4WriterPool(1, 1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        pool.close();
+        for (String name : new String[] { "a.mp4", "b.mp4", "c.mp4", "d.mp4", "e.mp4" }) {
+            Files.deleteIfExists(directory.resolve(name));
+        }
+        Files.delete(directory);
+    }
+
+    public void testReuse() throws Exception {
+        assertEquals(1, pool.getIdleCount());
+        MP4Writer first = pool.acquire(directory.resolve("a.mp4"));
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(directory.resolve("a.mp4"), first.getFilePath());
+        assertTrue(Files.exists(directory.resolve("a.mp4")));
+        // in use
+        try {
+            first.reset(directory.resolve("c.mp4"));
+            fail("Reset a writer in use");
+        } catch (IllegalStateException e) {
+        }
+        first.setFlvTiming(true);
+        first.setRollover(1000L, 0L);
+        // a second stream while the first is open gets a new writer
+        MP4Writer second = pool.acquire(directory.resolve("b.mp4"));
+        assertNotSame(first, second);
+        first.close();
+        // recycled once closed, beyond the idle limit the writer is released
+        assertEquals(1, pool.getIdleCount());
+        second.close();
+        assertEquals(1, pool.getIdleCount());
+        MP4Writer third = pool.acquire(directory.resolve("c.mp4"));
+        assertSame(first, third);
+        assertEquals(directory.resolve("c.mp4"), third.getFilePath());
+        assertFalse(third.isClosing());
+        assertFalse(third.isFlvTiming());
+        assertEquals(0L, third.getRolloverBytes());
+        assertEquals(0L, third.getBytesWritten());
+        third.close();
+        assertEquals(2L, pool.getCreatedCount());
+        assertEquals(2L, pool.getReusedCount());
+    }
+
+    public void testTimedOutCloseNotRecycled() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        MP4Writer writer = pool.acquire(directory.resolve("d.mp4"));
+        // holds the audio track thread on its first frame, so the track can't drain
+        writer.setPayloadStore(new PayloadStore(1L << 20) {
+            @Override
+            public Payload allocate(int size) {
+                boolean interrupted = false;
+                while (release.getCount() > 0L) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.allocate(size);
+            }
+        });
+        try {
+            // aac lc, 44.1 kHz stereo config and a frame
+            writer.writeTag(ImmutableTag.build(ITag.TYPE_AUDIO, 0, new byte[] { (byte) 0xaf, 0, 0x12, 0x10 }));
+            writer.writeTag(ImmutableTag.build(ITag.TYPE_AUDIO, 0, new byte[] { (byte) 0xaf, 1, 0x21, 0x10, 0x04, 0x60 }));
+            writer.closeAsync(200L, TimeUnit.MILLISECONDS).get(5L, TimeUnit.SECONDS);
+            // released rather than recycled
+            assertEquals(0, pool.getIdleCount());
+            MP4Writer next = pool.acquire(directory.resolve("e.mp4"));
+            assertNotSame(writer, next);
+            assertEquals(2L, pool.getCreatedCount());
+            assertEquals(1L, pool.getReusedCount());
+            next.close();
+        } finally {
+            release.countDown();
+        }
+    }
+
+}
@@ -0,0 +1,39 @@
+package org.gregoire.debug;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks which parameter sets the nal filter drops as redundant.
+ */
+public class NalFilterTest extends TestCase {
+
+    // sps of id 0 differing in the bits after the id, and one of id 1
+    private static final byte[] SPS_A = { 0x67, 0x42, 0x00, 0x1e, (byte) 0xab, 0x40 }, SPS_B = { 0x67, 0x42, 0x00, 0x1e, (byte) 0xac, 0x40 },
+            SPS_ID1 = { 0x67, 0x42, 0x00, 0x1e, 0x4b, 0x40 };
+
+    private static final byte[] PPS = { 0x68, (byte) 0xce, 0x3c, (byte) 0x80 };
+
+    public void testParameterSetSwitch() {
+        NalFilter filter = new NalFilter();
+        assertTrue(filter.accept(SPS_A));
+        assertTrue(filter.accept(PPS));
+        // repeats ahead of an idr
+        assertFalse(filter.accept(SPS_A));
+        assertFalse(filter.accept(PPS));
+        // a switch to another set and back again, the pps is sent again after each
+        assertTrue(filter.accept(SPS_B));
+        assertTrue(filter.accept(PPS));
+        assertTrue(filter.accept(SPS_A));
+        assertTrue(filter.accept(PPS));
+        assertFalse(filter.accept(SPS_A));
+        // another id leaves id 0 as it was
+        assertTrue(filter.accept(SPS_ID1));
+        assertFalse(filter.accept(SPS_A));
+        assertFalse(filter.accept(SPS_ID1));
+        assertEquals(4L, filter.getDroppedNals(7));
+        assertEquals(1L, filter.getDroppedNals(8));
+        filter.setDropRedundantParameterSets(false);
+        assertTrue(filter.accept(SPS_A));
+    }
+
+}
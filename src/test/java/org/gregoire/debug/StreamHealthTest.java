@@ -0,0 +1,51 @@
+package org.gregoire.debug;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the stream health measured from synthetic frames.
+ */
+public class StreamHealthTest extends TestCase {
+
+    public void testSliceType() {
+        // first_mb_in_slice 0, slice_type 1
+        assertEquals(StreamHealth.SLICE_B, StreamHealth.sliceType(new byte[] { 0x41, (byte) 0xa0 }));
+        // first_mb_in_slice 0, slice_type 7
+        assertEquals(StreamHealth.SLICE_I, StreamHealth.sliceType(new byte[] { 0x65, (byte) 0x88 }));
+        // sps
+        assertEquals(-1, StreamHealth.sliceType(new byte[] { 0x67, 0x42 }));
+        // truncated
+        assertEquals(-1, StreamHealth.sliceType(new byte[] { 0x41, 0 }));
+    }
+
+    public void testHealth() {
+        StreamHealth health = new StreamHealth();
+        health.setExpectedFrameRate(30d);
+        // 12 seconds of 25 fps in I B B P order with a key frame every 2 seconds, 1000 byte frames, and audio 100ms
+        // behind with 200 byte frames every 20ms
+        for (int frame = 0; frame < 300; frame++) {
+            long timestamp = frame * 40L;
+            boolean keyFrame = frame % 50 == 0;
+            int sliceType = keyFrame ? StreamHealth.SLICE_I : frame % 3 == 0 ? StreamHealth.SLICE_P : StreamHealth.SLICE_B;
+            health.videoFrame(timestamp, 1000, keyFrame, sliceType == StreamHealth.SLICE_B ? 0 : 120, sliceType);
+            health.audioFrame(timestamp - 100L, 200);
+            health.audioFrame(timestamp - 80L, 200);
+        }
+        assertEquals(50, health.getGopLength());
+        assertEquals(2000, health.getKeyFrameInterval());
+        assertEquals(6L, health.getKeyFrames());
+        assertEquals(25d, health.getFrameRate(), 0.01d);
+        assertEquals(30d, health.getExpectedFrameRate(), 0.01d);
+        assertEquals(200000L, health.getVideoBitrate());
+        assertEquals(80000L, health.getAudioBitrate());
+        assertEquals(3, health.getReorderDepth());
+        assertEquals(80L, health.getAvSkew());
+        // each video frame arrives before its audio
+        assertEquals(120, health.getMaxAvSkew());
+        assertTrue(health.getBFrameRatio() > 0.6d && health.getBFrameRatio() < 0.7d);
+        health.reset();
+        assertEquals(0L, health.getFrames());
+        assertEquals(0d, health.getFrameRate());
+    }
+
+}
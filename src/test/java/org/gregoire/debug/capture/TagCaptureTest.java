@@ -0,0 +1,79 @@
+package org.gregoire.debug.capture;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.red5.io.ITag;
+import org.red5.server.stream.consumer.ImmutableTag;
+
+import junit.framework.TestCase;
+
+/**
+ * Records tags and reads them back.
+ */
+public class TagCaptureTest extends TestCase {
+
+    private Path file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = Files.createTempFile("capture", ".dat");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Files.deleteIfExists(file);
+    }
+
+    public void testRoundTrip() throws Exception {
+        Random random = new Random(11);
+        List<byte[]> bodies = new ArrayList<>();
+        // small buffers, so tags span buffers and the larger ones are written on their own
+        TagCaptureWriter writer = new TagCaptureWriter(file, 1024, 2);
+        writer.setWaitWhenBehind(true);
+        for (int i = 0; i < 500; i++) {
+            byte[] body = new byte[random.nextInt(i % 50 == 0 ? 5000 : 300)];
+            random.nextBytes(body);
+            bodies.add(body);
+            assertTrue(writer.writeTag(ImmutableTag.build(i % 2 == 0 ? ITag.TYPE_VIDEO : ITag.TYPE_AUDIO, i * 20, body)));
+        }
+        writer.close();
+        assertEquals(0L, writer.getDroppedTags());
+        assertEquals(Files.size(file), writer.getBytesWritten());
+        try (TagCaptureReader reader = new TagCaptureReader(file)) {
+            for (int i = 0; i < 500; i++) {
+                ITag tag = reader.next();
+                assertNotNull(tag);
+                assertEquals(i % 2 == 0 ? ITag.TYPE_VIDEO : ITag.TYPE_AUDIO, tag.getDataType());
+                assertEquals(i * 20, tag.getTimestamp());
+                byte[] body = new byte[tag.getBodySize()];
+                tag.getBody().get(body);
+                assertTrue(Arrays.equals(bodies.get(i), body));
+            }
+            assertNull(reader.next());
+        }
+    }
+
+    public void testTruncated() throws Exception {
+        TagCaptureWriter writer = new TagCaptureWriter(file);
+        writer.writeTag(ImmutableTag.build(ITag.TYPE_AUDIO, 0, new byte[100]));
+        writer.writeTag(ImmutableTag.build(ITag.TYPE_AUDIO, 23, new byte[100]));
+        writer.close();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(file) - 10);
+        }
+        try (TagCaptureReader reader = new TagCaptureReader(file)) {
+            assertNotNull(reader.next());
+            // the partial tag ends the capture
+            assertNull(reader.next());
+            assertEquals(1L, reader.getTagsRead());
+        }
+    }
+
+}
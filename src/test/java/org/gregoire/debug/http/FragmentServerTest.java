@@ -0,0 +1,178 @@
+package org.gregoire.debug.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.mp4parser.streaming.output.mp4.SegmentCache;
+import org.mp4parser.streaming.output.mp4.TimeShiftBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ * Exercises the fragment server over localhost.
+ */
+public class FragmentServerTest extends TestCase {
+
+    private Path directory;
+
+    private FragmentServer server;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory("fragments");
+        server = new FragmentServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), directory);
+        server.setSelectorThreads(2);
+        server.setPollTimeout(2000L);
+        server.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.close();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    public void testParseRange() {
+        assertTrue(Arrays.equals(new long[] { 100, 200 }, FragmentServer.parseRange("bytes=100-199", 1000)));
+        assertTrue(Arrays.equals(new long[] { 100, 1000 }, FragmentServer.parseRange("bytes=100-", 1000)));
+        assertTrue(Arrays.equals(new long[] { 900, 1000 }, FragmentServer.parseRange("bytes=-100", 1000)));
+        assertTrue(Arrays.equals(new long[] { 0, 1000 }, FragmentServer.parseRange("bytes=-5000", 1000)));
+        assertTrue(Arrays.equals(new long[] { 990, 1000 }, FragmentServer.parseRange("bytes=990-5000", 1000)));
+        // past the end
+        assertEquals(0, FragmentServer.parseRange("bytes=1000-", 1000).length);
+        assertEquals(0, FragmentServer.parseRange("bytes=-0", 1000).length);
+        // ignored
+        assertNull(FragmentServer.parseRange("bytes=200-100", 1000));
+        assertNull(FragmentServer.parseRange("bytes=0-1,5-6", 1000));
+        assertNull(FragmentServer.parseRange("items=0-1", 1000));
+        assertNull(FragmentServer.parseRange("bytes=a-b", 1000));
+    }
+
+    public void testRecording() throws Exception {
+        byte[] content = new byte[300000];
+        new Random(3).nextBytes(content);
+        Files.write(directory.resolve("test.mp4"), content);
+        HttpURLConnection connection = open("/recordings/test.mp4");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("video/mp4", connection.getContentType());
+        assertTrue(Arrays.equals(content, read(connection)));
+        connection = open("/recordings/test.mp4");
+        connection.setRequestProperty("Range", "bytes=1000-1999");
+        assertEquals(206, connection.getResponseCode());
+        assertEquals("bytes 1000-1999/300000", connection.getHeaderField("Content-Range"));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(content, 1000, 2000), read(connection)));
+        connection = open("/recordings/test.mp4");
+        connection.setRequestProperty("Range", "bytes=300000-");
+        assertEquals(416, connection.getResponseCode());
+        assertEquals(404, open("/recordings/missing.mp4").getResponseCode());
+        assertEquals(404, open("/recordings/../../etc/passwd").getResponseCode());
+    }
+
+    public void testLiveFragments() throws Exception {
+        SegmentCache cache = new SegmentCache();
+        server.addStream("live", cache);
+        // nothing written yet, the init segment is waited for
+        CompletableFuture<byte[]> init = fetch("/live/live/init.mp4");
+        ByteBuffer initSegment = ByteBuffer.wrap(new byte[] { 1, 2, 3, 4 });
+        Thread.sleep(100L);
+        cache.setInitSegment(initSegment);
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3, 4 }, init.get(5, TimeUnit.SECONDS)));
+        HttpURLConnection connection = open("/live/live/init.mp4");
+        assertEquals("1", connection.getHeaderField("X-Start-Sequence"));
+        read(connection);
+        // the next fragment is held until it's written
+        CompletableFuture<byte[]> first = fetch("/live/live/1.m4s");
+        Thread.sleep(100L);
+        assertFalse(first.isDone());
+        byte[] fragment = new byte[50000];
+        new Random(7).nextBytes(fragment);
+        cache.addFragment(1, ByteBuffer.wrap(fragment), 0L, true);
+        assertTrue(Arrays.equals(fragment, first.get(5, TimeUnit.SECONDS)));
+        // served from the cache
+        assertTrue(Arrays.equals(fragment, read(open("/live/live/1.m4s"))));
+        // too far ahead or unknown
+        assertEquals(404, open("/live/live/100.m4s").getResponseCode());
+        assertEquals(404, open("/live/other/1.m4s").getResponseCode());
+        // a held request gives up after the poll timeout
+        assertEquals(404, open("/live/live/2.m4s").getResponseCode());
+        server.removeStream("live");
+    }
+
+    public void testTimeShift() throws Exception {
+        Path spill = directory.resolve("timeshift.dat");
+        TimeShiftBuffer buffer = new TimeShiftBuffer(60000L, 20000L, spill, 200000L);
+        server.addTimeShift("dvr", buffer);
+        assertEquals(404, open("/dvr/dvr/init.mp4").getResponseCode());
+        buffer.setInitSegment(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4 }));
+        Random random = new Random(11);
+        byte[][] fragments = new byte[30][];
+        for (int i = 0; i < fragments.length; i++) {
+            fragments[i] = new byte[5000];
+            random.nextBytes(fragments[i]);
+            buffer.addFragment(i + 1, ByteBuffer.wrap(fragments[i]), i * 1000L, i % 5 == 0);
+        }
+        // the fragment at or before the time to start from, and the window
+        HttpURLConnection connection = open("/dvr/dvr/init.mp4?t=12500");
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3, 4 }, read(connection)));
+        assertEquals("11", connection.getHeaderField("X-Start-Sequence"));
+        assertEquals("0", connection.getHeaderField("X-Window-Start"));
+        assertEquals("29000", connection.getHeaderField("X-Window-End"));
+        assertEquals("1", open("/dvr/dvr/init.mp4").getHeaderField("X-Start-Sequence"));
+        assertEquals(400, open("/dvr/dvr/init.mp4?t=x").getResponseCode());
+        // from the spill file and from memory
+        assertTrue(Arrays.equals(fragments[0], read(open("/dvr/dvr/1.m4s"))));
+        assertTrue(Arrays.equals(fragments[29], read(open("/dvr/dvr/30.m4s"))));
+        assertEquals(404, open("/dvr/dvr/31.m4s").getResponseCode());
+        assertEquals(404, open("/dvr/other/1.m4s").getResponseCode());
+        server.removeTimeShift("dvr");
+        assertEquals(404, open("/dvr/dvr/1.m4s").getResponseCode());
+        buffer.close();
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http", "127.0.0.1", server.getPort(), path).openConnection();
+        connection.setReadTimeout(10000);
+        return connection;
+    }
+
+    private CompletableFuture<byte[]> fetch(String path) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return read(open(path));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    private static byte[] read(HttpURLConnection connection) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = connection.getInputStream()) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return out.toByteArray();
+    }
+
+}
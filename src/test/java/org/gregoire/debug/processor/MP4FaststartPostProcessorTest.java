@@ -0,0 +1,144 @@
+package org.gregoire.debug.processor;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.gregoire.debug.MP4Writer;
+import org.gregoire.debug.load.SyntheticStream;
+import org.mp4parser.Box;
+import org.mp4parser.IsoFile;
+import org.mp4parser.boxes.iso14496.part12.CompositionTimeToSample;
+import org.mp4parser.boxes.iso14496.part12.MovieFragmentBox;
+import org.mp4parser.boxes.iso14496.part12.SampleTableBox;
+import org.mp4parser.boxes.iso14496.part12.TimeToSampleBox;
+import org.mp4parser.boxes.iso14496.part12.TrackBox;
+import org.mp4parser.boxes.iso14496.part12.TrackFragmentBox;
+import org.mp4parser.boxes.iso14496.part12.TrackFragmentHeaderBox;
+import org.mp4parser.boxes.iso14496.part12.TrackRunBox;
+import org.red5.io.ITag;
+
+import junit.framework.TestCase;
+
+/**
+ * Converts a fragmented recording and checks the progressive file holds the same samples.
+ */
+public class MP4FaststartPostProcessorTest extends TestCase {
+
+    private Path source, destination;
+
+    @Override
+    protected void setUp() throws Exception {
+        source = Files.createTempFile("fragmented", ".mp4");
+        destination = Files.createTempFile("faststart", ".mp4");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Files.deleteIfExists(source);
+        Files.deleteIfExists(destination);
+    }
+
+    public void testRoundTrip() throws Exception {
+        MP4Writer writer = new MP4Writer(source, false);
+        SyntheticStream stream = new SyntheticStream(7);
+        stream.setBFrames(2);
+        ITag tag;
+        while ((tag = stream.next(3000L)) != null) {
+            writer.writeTag(tag);
+        }
+        writer.close();
+        Map<Long, Samples> fragments = readFragments(source);
+        assertEquals(2, fragments.size());
+        MP4FaststartPostProcessor processor = new MP4FaststartPostProcessor();
+        processor.init(source, destination);
+        processor.process();
+        byte[] data = Files.readAllBytes(destination);
+        try (IsoFile isoFile = new IsoFile(destination.toFile())) {
+            // progressive, the moov first and a single mdat
+            List<String> types = new ArrayList<>();
+            for (Box box : isoFile.getBoxes()) {
+                types.add(box.getType());
+            }
+            assertEquals(Arrays.asList("ftyp", "moov", "mdat"), types);
+            for (TrackBox trak : isoFile.getMovieBox().getBoxes(TrackBox.class)) {
+                Samples expected = fragments.get(trak.getTrackHeaderBox().getTrackId());
+                SampleTableBox stbl = trak.getSampleTableBox();
+                long[] sizes = stbl.getSampleSizeBox().getSampleSizes();
+                long[] offsets = stbl.getChunkOffsetBox().getChunkOffsets();
+                // a chunk per track run
+                assertEquals(expected.runs, offsets.length);
+                assertEquals(expected.sizes.size(), sizes.length);
+                assertTrue(sizes.length > 0);
+                long[] durations = TimeToSampleBox.blowupTimeToSamples(stbl.getTimeToSampleBox().getEntries());
+                CompositionTimeToSample ctts = stbl.getCompositionTimeToSample();
+                int[] compositionOffsets = ctts != null ? CompositionTimeToSample.blowupCompositionTimes(ctts.getEntries()) : new int[sizes.length];
+                long[] samplesPerChunk = stbl.getSampleToChunkBox().blowup(offsets.length);
+                int sample = 0;
+                for (int chunk = 0; chunk < offsets.length; chunk++) {
+                    long offset = offsets[chunk];
+                    for (int i = 0; i < samplesPerChunk[chunk]; i++, sample++) {
+                        assertEquals(expected.sizes.get(sample).longValue(), sizes[sample]);
+                        assertEquals(expected.durations.get(sample).longValue(), durations[sample]);
+                        assertEquals(expected.compositionOffsets.get(sample).intValue(), compositionOffsets[sample]);
+                        byte[] content = Arrays.copyOfRange(data, (int) offset, (int) (offset + sizes[sample]));
+                        assertTrue(Arrays.equals(expected.contents.get(sample), content));
+                        offset += sizes[sample];
+                    }
+                }
+                assertEquals(sizes.length, sample);
+            }
+        }
+    }
+
+    /**
+     * Reads the samples of each track from the track runs of the fragments.
+     */
+    private static Map<Long, Samples> readFragments(Path path) throws Exception {
+        byte[] data = Files.readAllBytes(path);
+        Map<Long, Samples> tracks = new HashMap<>();
+        try (IsoFile isoFile = new IsoFile(path.toFile())) {
+            long position = 0L;
+            for (Box box : isoFile.getBoxes()) {
+                if (box instanceof MovieFragmentBox) {
+                    for (TrackFragmentBox traf : ((MovieFragmentBox) box).getBoxes(TrackFragmentBox.class)) {
+                        TrackFragmentHeaderBox tfhd = traf.getTrackFragmentHeaderBox();
+                        Samples samples = tracks.computeIfAbsent(tfhd.getTrackId(), id -> new Samples());
+                        long base = tfhd.hasBaseDataOffset() ? tfhd.getBaseDataOffset() : position;
+                        for (TrackRunBox trun : traf.getBoxes(TrackRunBox.class)) {
+                            long offset = base + trun.getDataOffset();
+                            for (TrackRunBox.Entry entry : trun.getEntries()) {
+                                long size = trun.isSampleSizePresent() ? entry.getSampleSize() : tfhd.getDefaultSampleSize();
+                                samples.sizes.add(size);
+                                samples.durations.add(trun.isSampleDurationPresent() ? entry.getSampleDuration() : tfhd.getDefaultSampleDuration());
+                                samples.compositionOffsets.add(trun.isSampleCompositionTimeOffsetPresent() ? (int) entry.getSampleCompositionTimeOffset() : 0);
+                                samples.contents.add(Arrays.copyOfRange(data, (int) offset, (int) (offset + size)));
+                                offset += size;
+                            }
+                            samples.runs++;
+                        }
+                    }
+                }
+                position += box.getSize();
+            }
+        }
+        return tracks;
+    }
+
+    private static class Samples {
+
+        final List<Long> sizes = new ArrayList<>(), durations = new ArrayList<>();
+
+        final List<Integer> compositionOffsets = new ArrayList<>();
+
+        final List<byte[]> contents = new ArrayList<>();
+
+        int runs;
+
+    }
+
+}
@@ -0,0 +1,100 @@
+package org.mp4parser.streaming.input.aac;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the ADTS frame splitter.
+ */
+public class AdtsFrameSplitterTest extends TestCase {
+
+    public void testParseHeader() {
+        // 44.1kHz stereo lc, protection absent, 0x1a3 bytes long
+        byte[] frame = adts(0x1a3 - 7, true, 1);
+        AdtsHeader hdr = AdtsFrameSplitter.parseHeader(ByteBuffer.wrap(frame), 0);
+        assertNotNull(hdr);
+        assertEquals(0x1a3, hdr.frameLength);
+        assertEquals(44100, hdr.sampleRate);
+        assertEquals(2, hdr.channelconfig);
+        assertEquals(1, hdr.numAacFramesPerAdtsFrame);
+        assertEquals(7, AdtsFrameSplitter.headerSize(hdr));
+        // with a crc and three blocks the header holds two positions and the crc
+        hdr = AdtsFrameSplitter.parseHeader(ByteBuffer.wrap(adts(100, false, 3)), 0);
+        assertEquals(3, hdr.numAacFramesPerAdtsFrame);
+        assertEquals(13, AdtsFrameSplitter.headerSize(hdr));
+        // bad syncword
+        frame[1] = (byte) 0xe1;
+        assertNull(AdtsFrameSplitter.parseHeader(ByteBuffer.wrap(frame), 0));
+    }
+
+    public void testSplitWithResync() {
+        Random random = new Random(5);
+        for (int n = 0; n < 200; n++) {
+            List<byte[]> frames = new ArrayList<>();
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            int count = 1 + random.nextInt(20);
+            boolean damaged = false;
+            for (int i = 0; i < count; i++) {
+                // garbage between frames, such as a damaged frame or a partial write, is skipped; the frame after it has
+                // to be followed by an intact one to be told apart from a false syncword
+                damaged = !damaged && random.nextInt(5) == 0;
+                if (damaged) {
+                    byte[] junk = new byte[1 + random.nextInt(20)];
+                    for (int j = 1; j < junk.length; j++) {
+                        junk[j] = (byte) (random.nextInt(2) == 0 ? 0xff : random.nextInt(256));
+                    }
+                    stream.write(junk, 0, junk.length);
+                }
+                byte[] frame = adts(random.nextInt(1500), random.nextBoolean(), 1);
+                for (int j = AdtsFrameSplitter.headerSize(AdtsFrameSplitter.parseHeader(ByteBuffer.wrap(frame), 0)); j < frame.length; j++) {
+                    // keep the payload free of syncwords so the junk is the only thing to resync on
+                    frame[j] = (byte) random.nextInt(0xff);
+                }
+                frames.add(frame);
+                stream.write(frame, 0, frame.length);
+            }
+            byte[] data = stream.toByteArray();
+            final List<byte[]> split = new ArrayList<>();
+            AdtsFrameSplitter splitter = new AdtsFrameSplitter(frame -> {
+                byte[] bytes = new byte[frame.remaining()];
+                frame.get(bytes);
+                split.add(bytes);
+            });
+            int offset = 0;
+            while (offset < data.length) {
+                int length = Math.min(data.length - offset, 1 + random.nextInt(n % 2 == 0 ? 8 : 3000));
+                splitter.feed(ByteBuffer.wrap(data, offset, length));
+                offset += length;
+            }
+            splitter.end();
+            assertEquals(frames.size(), split.size());
+            for (int i = 0; i < frames.size(); i++) {
+                assertTrue("frame " + i, Arrays.equals(frames.get(i), split.get(i)));
+            }
+        }
+    }
+
+    /**
+     * Builds a 44.1kHz stereo AAC LC frame with a zeroed payload.
+     */
+    private static byte[] adts(int payload, boolean protectionAbsent, int blocks) {
+        int headerSize = protectionAbsent ? 7 : 7 + 2 * (blocks - 1) + 2;
+        int length = headerSize + payload;
+        byte[] frame = new byte[length];
+        frame[0] = (byte) 0xff;
+        frame[1] = (byte) (0xf0 | (protectionAbsent ? 1 : 0));
+        frame[2] = (byte) ((1 << 6) | (4 << 2));
+        frame[3] = (byte) ((2 << 6) | ((length >> 11) & 0x3));
+        frame[4] = (byte) (length >> 3);
+        frame[5] = (byte) (((length & 0x7) << 5) | 0x1f);
+        frame[6] = (byte) (0xfc | (blocks - 1));
+        return frame;
+    }
+
+}
@@ -0,0 +1,86 @@
+package org.mp4parser.streaming.input.h264;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the Annex B nal splitter.
+ */
+public class AnnexBNalSplitterTest extends TestCase {
+
+    public void testIndexOfStartCode() {
+        Random random = new Random(7);
+        for (int n = 0; n < 2000; n++) {
+            byte[] data = new byte[random.nextInt(64)];
+            for (int i = 0; i < data.length; i++) {
+                // mostly small values so zeros and start codes turn up often
+                data[i] = (byte) random.nextInt(4);
+            }
+            int from = data.length > 0 ? random.nextInt(data.length) : 0;
+            int expected = -1;
+            for (int i = from; i + 3 <= data.length; i++) {
+                if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) {
+                    expected = i;
+                    break;
+                }
+            }
+            assertEquals(expected, AnnexBNalSplitter.indexOfStartCode(ByteBuffer.wrap(data), from, data.length));
+        }
+    }
+
+    public void testSplitAcrossBuffers() {
+        Random random = new Random(11);
+        for (int n = 0; n < 200; n++) {
+            List<byte[]> nals = new ArrayList<>();
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            // some junk ahead of the first start code is ignored
+            stream.write(0x17);
+            int count = 1 + random.nextInt(20);
+            for (int i = 0; i < count; i++) {
+                byte[] nal = new byte[1 + random.nextInt(300)];
+                for (int j = 0; j < nal.length; j++) {
+                    nal[j] = (byte) random.nextInt(256);
+                    // avoid emulating a start code, which an encoder would have escaped
+                    if (j >= 2 && nal[j - 2] == 0 && nal[j - 1] == 0 && (nal[j] & 0xff) <= 3) {
+                        nal[j] = 3;
+                    }
+                }
+                if (nal[nal.length - 1] == 0) {
+                    nal[nal.length - 1] = (byte) 0x80;
+                }
+                nals.add(nal);
+                if (random.nextBoolean()) {
+                    stream.write(0);
+                }
+                stream.write(0);
+                stream.write(0);
+                stream.write(1);
+                stream.write(nal, 0, nal.length);
+            }
+            byte[] data = stream.toByteArray();
+            final List<byte[]> split = new ArrayList<>();
+            AnnexBNalSplitter splitter = new AnnexBNalSplitter(nal -> {
+                byte[] bytes = new byte[nal.remaining()];
+                nal.get(bytes);
+                split.add(bytes);
+            });
+            int offset = 0;
+            while (offset < data.length) {
+                int length = Math.min(data.length - offset, 1 + random.nextInt(n % 2 == 0 ? 4 : 400));
+                splitter.feed(ByteBuffer.wrap(data, offset, length));
+                offset += length;
+            }
+            splitter.end();
+            assertEquals(nals.size(), split.size());
+            for (int i = 0; i < nals.size(); i++) {
+                assertTrue("nal " + i, java.util.Arrays.equals(nals.get(i), split.get(i)));
+            }
+        }
+    }
+
+}
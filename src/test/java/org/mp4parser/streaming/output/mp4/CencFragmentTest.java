@@ -0,0 +1,72 @@
+package org.mp4parser.streaming.output.mp4;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.mp4parser.streaming.StreamingSample;
+import org.mp4parser.streaming.input.StreamingSampleImpl;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the subsample layout and encryption of a fragment.
+ */
+public class CencFragmentTest extends TestCase {
+
+    private static final byte[] KEY = new byte[16];
+
+    // sei, idr slice of 100 bytes, non-idr slice of 10 bytes
+    private static ByteBuffer accessUnit() {
+        ByteBuffer unit = ByteBuffer.allocate(4 + 20 + 4 + 100 + 4 + 10);
+        unit.putInt(20).put((byte) 6).put(new byte[19]);
+        unit.putInt(100).put((byte) 0x65);
+        for (int i = 1; i < 100; i++) {
+            unit.put((byte) i);
+        }
+        unit.putInt(10).put((byte) 0x41).put(new byte[9]);
+        unit.flip();
+        return unit;
+    }
+
+    public void testSubsamples() {
+        // cenc protects whole blocks of the idr slice, the short slice stays clear
+        int[] cenc = CencFragment.subsamples(accessUnit(), CommonEncryption.Scheme.CENC);
+        assertTrue(Arrays.toString(cenc), Arrays.equals(new int[] { 24 + 4 + 100 - 96, 96, 14, 0 }, cenc));
+        // cbcs protects everything after the nal unit header
+        int[] cbcs = CencFragment.subsamples(accessUnit(), CommonEncryption.Scheme.CBCS);
+        assertTrue(Arrays.toString(cbcs), Arrays.equals(new int[] { 24 + 5, 99, 5, 9 }, cbcs));
+        // a truncated unit is left clear
+        ByteBuffer truncated = accessUnit();
+        truncated.limit(40);
+        assertTrue(Arrays.equals(new int[] { 40, 0 }, CencFragment.subsamples(truncated, CommonEncryption.Scheme.CENC)));
+    }
+
+    public void testCencRoundTrip() throws Exception {
+        CommonEncryption encryption = new CommonEncryption(CommonEncryption.Scheme.CENC, UUID.randomUUID(), KEY);
+        ByteBuffer clear = accessUnit();
+        StreamingSample sample = new StreamingSampleImpl(clear.duplicate(), 3000L);
+        CencFragment fragment = new CencFragment(encryption, true, Collections.singletonList(sample), 42L);
+        fragment.encrypt();
+        ByteBuffer encrypted = fragment.getSamples().get(0).getContent();
+        byte[] data = new byte[encrypted.remaining()];
+        encrypted.get(data);
+        // the clear leading bytes and the short slice are untouched
+        assertEquals(clear.get(28 + 3), data[28 + 3]);
+        assertEquals(clear.get(clear.limit() - 1), data[data.length - 1]);
+        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        byte[] counter = new byte[16];
+        ByteBuffer.wrap(counter).putLong(42L);
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(KEY, "AES"), new IvParameterSpec(counter));
+        cipher.doFinal(data, 32, 96, data, 32);
+        byte[] expected = new byte[clear.remaining()];
+        clear.get(expected);
+        assertTrue(Arrays.equals(expected, data));
+    }
+
+}
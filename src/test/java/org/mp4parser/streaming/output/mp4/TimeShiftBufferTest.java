@@ -0,0 +1,138 @@
+package org.mp4parser.streaming.output.mp4;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the window, budgets, spill file and index of the time-shift buffer.
+ */
+public class TimeShiftBufferTest extends TestCase {
+
+    private static ByteBuffer fragment(long sequenceNumber, int size) {
+        byte[] data = new byte[size];
+        new Random(sequenceNumber).nextBytes(data);
+        return ByteBuffer.wrap(data);
+    }
+
+    public void testWindow() {
+        TimeShiftBuffer buffer = new TimeShiftBuffer(10000L, 1L << 20);
+        buffer.setInitSegment(ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+        // a fragment a second, every fourth one random access
+        for (long sequenceNumber = 1; sequenceNumber <= 30; sequenceNumber++) {
+            buffer.addFragment(sequenceNumber, fragment(sequenceNumber, 1000), (sequenceNumber - 1) * 1000L, sequenceNumber % 4 == 1);
+        }
+        assertEquals(20L, buffer.getFirstSequenceNumber());
+        assertEquals(30L, buffer.getLastSequenceNumber());
+        // from the first random access fragment
+        assertEquals(20000L, buffer.getStartTime());
+        assertEquals(29000L, buffer.getEndTime());
+        assertEquals(19L, buffer.getEvictions());
+        assertEquals(25L, buffer.findSequenceNumber(25500L));
+        assertEquals(29L, buffer.findSequenceNumber(Long.MAX_VALUE));
+        // before the window, the first random access fragment kept
+        assertEquals(21L, buffer.findSequenceNumber(0L));
+        assertNull(buffer.getFragment(19L));
+        assertEquals(fragment(20L, 1000), buffer.getFragment(20L));
+        assertEquals(11 * 1000L + 3L, buffer.getMemoryBytes());
+        // a new stream starts over
+        buffer.setInitSegment(ByteBuffer.wrap(new byte[] { 4 }));
+        assertEquals(0, buffer.getFragmentCount());
+        assertEquals(-1L, buffer.findSequenceNumber(0L));
+    }
+
+    public void testMemoryBudget() {
+        TimeShiftBuffer buffer = new TimeShiftBuffer(60000L, 5000L);
+        for (long sequenceNumber = 1; sequenceNumber <= 20; sequenceNumber++) {
+            buffer.addFragment(sequenceNumber, fragment(sequenceNumber, 1000), sequenceNumber * 100L, true);
+        }
+        assertEquals(5, buffer.getFragmentCount());
+        assertEquals(16L, buffer.getFirstSequenceNumber());
+        assertEquals(5000L, buffer.getMemoryBytes());
+    }
+
+    public void testGrowWrapped() {
+        TimeShiftBuffer buffer = new TimeShiftBuffer(3600000L, 2000L);
+        for (long sequenceNumber = 0; sequenceNumber < 300; sequenceNumber++) {
+            buffer.addFragment(sequenceNumber, fragment(sequenceNumber, 10), sequenceNumber * 10L, sequenceNumber % 10 == 0);
+        }
+        assertEquals(100L, buffer.getFirstSequenceNumber());
+        // smaller fragments, so the index grows while it wraps around
+        for (long sequenceNumber = 300; sequenceNumber < 800; sequenceNumber++) {
+            buffer.addFragment(sequenceNumber, fragment(sequenceNumber, 1), sequenceNumber * 10L, sequenceNumber % 10 == 0);
+        }
+        assertEquals(150L, buffer.getFirstSequenceNumber());
+        assertEquals(650, buffer.getFragmentCount());
+        for (long sequenceNumber = 150; sequenceNumber < 800; sequenceNumber++) {
+            assertEquals(fragment(sequenceNumber, sequenceNumber < 300 ? 10 : 1), buffer.getFragment(sequenceNumber));
+        }
+        assertEquals(290L, buffer.findSequenceNumber(2985L));
+        assertEquals(790L, buffer.findSequenceNumber(7985L));
+        assertEquals(150L, buffer.findSequenceNumber(0L));
+    }
+
+    public void testInterleaved() {
+        TimeShiftBuffer buffer = new TimeShiftBuffer(60000L, 1L << 20);
+        // video fragments of 4 seconds, audio of 3 written well ahead of them
+        long[] times = { 0, 3000, 6000, 4000, 9000, 8000, 12000 };
+        boolean[] video = { true, false, false, true, false, true, false };
+        for (int i = 0; i < times.length; i++) {
+            buffer.addFragment(i + 1, fragment(i + 1, 100), times[i], video[i]);
+        }
+        // the audio written just ahead of the key fragment and not starting before it comes along
+        assertEquals(3L, buffer.findSequenceNumber(7000L));
+        assertEquals(5L, buffer.findSequenceNumber(8500L));
+        assertEquals(1L, buffer.findSequenceNumber(2000L));
+        assertEquals(0L, buffer.getStartTime());
+        assertEquals(12000L, buffer.getEndTime());
+    }
+
+    public void testSpill() throws Exception {
+        Path spill = Files.createTempFile("timeshift", ".dat");
+        TimeShiftBuffer buffer = new TimeShiftBuffer(3600000L, 3000L, spill, 10000L);
+        assertEquals(10000L, Files.size(spill));
+        Map<Long, Integer> sizes = new HashMap<>();
+        Random random = new Random(5);
+        for (long sequenceNumber = 1; sequenceNumber <= 60; sequenceNumber++) {
+            int size = 700 + random.nextInt(800);
+            sizes.put(sequenceNumber, size);
+            buffer.addFragment(sequenceNumber, fragment(sequenceNumber, size), sequenceNumber * 1000L, true);
+            assertTrue(buffer.getMemoryBytes() <= 3000L);
+            assertTrue(buffer.getSpilledBytes() <= 10000L);
+        }
+        // the spill file never grows, the oldest fragments are overwritten
+        assertEquals(10000L, Files.size(spill));
+        long first = buffer.getFirstSequenceNumber();
+        assertTrue(first > 1L);
+        assertEquals(60L - first + 1L, buffer.getFragmentCount());
+        assertEquals(first - 1L, buffer.getEvictions());
+        for (long sequenceNumber = 1; sequenceNumber <= 60; sequenceNumber++) {
+            ByteBuffer read = buffer.getFragment(sequenceNumber);
+            if (sequenceNumber < first) {
+                assertNull(read);
+            } else {
+                assertEquals(fragment(sequenceNumber, sizes.get(sequenceNumber)), read);
+            }
+        }
+        // shedding spills what's in memory, whatever it overwrites goes
+        buffer.shed();
+        assertEquals(0L, buffer.getMemoryBytes());
+        assertEquals(60L, buffer.getLastSequenceNumber());
+        for (long sequenceNumber = buffer.getFirstSequenceNumber(); sequenceNumber <= 60; sequenceNumber++) {
+            assertEquals(fragment(sequenceNumber, sizes.get(sequenceNumber)), buffer.getFragment(sequenceNumber));
+        }
+        // too large to spill, dropped with everything before it
+        buffer.addFragment(61, fragment(61, 20000), 61000L, true);
+        assertEquals(0, buffer.getFragmentCount());
+        buffer.close();
+        assertFalse(Files.exists(spill));
+        assertNull(buffer.getFragment(60L));
+        assertEquals(-1L, buffer.getFirstSequenceNumber());
+    }
+
+}